@@ -17,24 +17,34 @@
  */
 package ch.dermitza.securenio;
 
+import ch.dermitza.securenio.packet.BackpressureListener;
 import ch.dermitza.securenio.packet.PacketListener;
+import ch.dermitza.securenio.packet.WritabilityListener;
 import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.socket.OutboundQueue;
 import ch.dermitza.securenio.socket.SocketContainer;
 import ch.dermitza.securenio.socket.SocketIF;
 import ch.dermitza.securenio.socket.secure.HandshakeListener;
 import ch.dermitza.securenio.socket.secure.TaskListener;
 import ch.dermitza.securenio.socket.secure.TaskWorker;
 import ch.dermitza.securenio.socket.timeout.TimeoutListener;
+import ch.dermitza.securenio.socket.timeout.worker.Timeout;
 import ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker;
-import ch.dermitza.securenio.util.PropertiesReader;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.Configuration;
 import ch.dermitza.securenio.util.logging.LoggerHandler;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -45,17 +55,21 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManagerFactory;
 
 /**
@@ -67,7 +81,8 @@ import javax.net.ssl.TrustManagerFactory;
  * @version 0.21
  * @since 0.18
  */
-public abstract class AbstractSelector implements Runnable, TaskListener, HandshakeListener, TimeoutListener {
+public abstract class AbstractSelector implements Runnable, TaskListener,
+        HandshakeListener, TimeoutListener, BackpressureListener {
 
     /**
      *
@@ -82,19 +97,91 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      * The port to listen on or connect to
      */
     protected int port;
+    // The default size of the buffer we read into, grown to the application
+    // buffer size of the SSL/TLS session so that records are unwrapped
+    // straight into it, see setupSSL()
+    private static final int READ_BUFFER_SIZE = 8192;
+    // SSLParameters.setUseCipherSuitesOrder(boolean), or null if the JVM
+    // predates it (Java 7)
+    private static final Method USE_CIPHER_SUITES_ORDER = useCipherSuitesOrderMethod();
     // The buffer into which we'll read data when it's available
-    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
-    private final ArrayDeque<ChangeRequest> pendingChanges = new ArrayDeque<>();
+    private ByteBuffer readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
     /**
-     * Maps a SocketChannel to a list of ByteBuffer instances
+     * The configuration of this selector
      */
-    protected final HashMap<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<>();
+    protected final Configuration config;
+    // Reusable array gathering queued buffers for a single vectored write
+    private final ByteBuffer[] writeBuffers;
+    // Bytes after which no more buffers are gathered for a single write
+    private final long writeMaxBytes;
+    // Bytes read from a single ready key before servicing the next one
+    private final int readBudget;
+    // Outbound queue watermarks and slow consumer eviction policy
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long hardLimit;
+    private final long evictionMS;
+    private final ArrayList<WritabilityListener> wListeners = new ArrayList<>();
+    // Premature empty selects tolerated within the spin window before the
+    // selector is rebuilt, and the current count of such selects
+    private final int spinThreshold;
+    private final boolean optimizedKeys;
+    private final long spinWindowMS;
+    private int spinCount = 0;
+    private long spinStart;
+    private final AtomicLong rebuilds = new AtomicLong();
+    // Writes left incomplete as a socket's channel was full, see write()
+    private final AtomicLong writeRetries = new AtomicLong();
+    // Calls to select(), whether blocking or not
+    private final AtomicLong selects = new AtomicLong();
+    // Handshakes completed, resuming a cached session or not
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    // Array-backed selected-key set of the current selector, null if the
+    // selector uses its default set
+    private SelectedKeySet selectedKeySet = null;
+    // Loop lag: when the selector thread last returned from select(), 0
+    // while parked in it
+    private volatile long busySince = 0;
+    // Multi-producer, single-consumer (the selector thread) queue of changes
+    private final ConcurrentLinkedQueue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<>();
+    // Multi-producer, single-consumer queue of sockets with operations marked
+    // pending on them; a socket is queued at most once until dequeued, see
+    // SocketIF.markPending()
+    private final ConcurrentLinkedQueue<SocketIF> dirtySockets = new ConcurrentLinkedQueue<>();
+    // Operations marked pending on a socket, one bit per ChangeRequest type
+    private static final int PENDING_TASK = 1 << ChangeRequest.TYPE_TASK;
+    private static final int PENDING_WRITE = 1 << ChangeRequest.TYPE_OPS;
+    private static final int PENDING_TIMEOUT = 1 << ChangeRequest.TYPE_TIMEOUT;
+    private static final int PENDING_SESSION = 1 << ChangeRequest.TYPE_SESSION;
+    private static final int PENDING_CRYPTO = 1 << ChangeRequest.TYPE_CRYPTO;
+    // Not a ChangeRequest type, the socket was found closed (or failing)
+    // while offloaded to the CryptoWorker and needs to be closed
+    private static final int PENDING_CLOSE = 1 << 16;
+    // Not a ChangeRequest type, reading from the socket was paused while the
+    // packet worker was backpressured, or stopped with input left buffered
+    // in the socket, and may resume
+    private static final int PENDING_READ = 1 << 17;
+    // Sockets whose reading is paused while the packet worker is
+    // backpressured, see armRead()
+    private final ConcurrentLinkedQueue<SocketIF> paused = new ConcurrentLinkedQueue<>();
+    // Outcomes of writeSocket()
+    private static final int WRITE_DONE = 0;
+    private static final int WRITE_INCOMPLETE = 1;
+    private static final int WRITE_FAILED = -1;
+    // Whether the selector thread is (about to be) parked in select() and
+    // needs to be woken up for newly queued changes to be processed
+    private final AtomicBoolean wakeupNeeded = new AtomicBoolean(false);
     /**
      * The selector we'll be monitoring
      */
-    protected Selector selector;
+    protected volatile Selector selector;
     private boolean running = false;
-    private boolean processAll = true;
+    private final boolean processAll;
+    // Changes processed per iteration and select() timeout (ms), if not
+    // processing all changes
+    private final int maxChanges;
+    private final long selectorTimeoutMS;
     /**
      * Whether we are using SSL/TLS
      */
@@ -117,13 +204,19 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      */
     protected final TimeoutWorker toWorker;
     /**
-     *
+     * The underlying CryptoWorker, null if the application data of secure
+     * sockets is wrapped and unwrapped on the selector thread
      */
-    protected String[] protocols;
+    protected final CryptoWorker crypto;
+    // Sockets currently offloaded to the CryptoWorker, along with the
+    // operations marked pending on them meanwhile, accessed by the selector
+    // thread only
+    private final HashMap<SocketIF, Integer> offloaded = new HashMap<>();
     /**
-     *
+     * The SSL/TLS parameters applied to every SSLEngine of this listener,
+     * computed once in {@link #setupSSL(SSLContext)}
      */
-    protected String[] cipherSuits;
+    private volatile SSLParameters sslParameters;
     /**
      * Whether this AbstractSelector is a client
      */
@@ -138,7 +231,8 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
     protected final boolean singleThreaded;
 
     /**
-     * Create a new AbstractSelector instance.
+     * Create a new AbstractSelector instance using the default
+     * {@link Configuration}.
      *
      * @param address The address this selector will use
      * @param port The port this selector will use
@@ -154,26 +248,67 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
     public AbstractSelector(InetAddress address, int port,
             AbstractPacketWorker packetWorker, boolean usingSSL,
             boolean isClient, boolean needClientAuth) {
+        this(address, port, packetWorker, usingSSL, isClient, needClientAuth,
+                Configuration.getDefault());
+    }
+
+    /**
+     * Create a new AbstractSelector instance.
+     *
+     * @param address The address this selector will use
+     * @param port The port this selector will use
+     * @param packetWorker The instance of packet worker to use
+     * @param usingSSL Whether we are using SSL/TLS
+     * {@link ch.dermitza.securenio.socket.secure.TaskWorker} thread.
+     * @param isClient If the current Selector implementation is a client
+     * implementation (false indicates it is a server implementation).
+     * @param needClientAuth If the current implementation is a server
+     * implementation, whether the client should also verify its authenticity
+     * (i.e. sets up SSLEngine.setNeedClientAuth(true)).
+     * @param config The Configuration of this selector
+     */
+    public AbstractSelector(InetAddress address, int port,
+            AbstractPacketWorker packetWorker, boolean usingSSL,
+            boolean isClient, boolean needClientAuth, Configuration config) {
         this.address = address;
         this.port = port;
-        this.singleThreaded = PropertiesReader.getSelectorSingleThreaded();
-        this.processAll = PropertiesReader.getSelectorProcessAll();
+        this.config = config;
+        this.singleThreaded = config.getSelectorSingleThreaded();
+        this.processAll = config.getSelectorProcessAll();
+        this.maxChanges = config.getMaxChanges();
+        this.selectorTimeoutMS = config.getSelectorTimeoutMS();
+        this.writeBuffers = new ByteBuffer[config.getWriteMaxBuffers()];
+        this.writeMaxBytes = config.getWriteMaxBytes();
+        this.readBudget = config.getReadBudget();
+        this.highWatermark = config.getHighWatermark();
+        this.lowWatermark = config.getLowWatermark();
+        this.hardLimit = config.getHardLimit();
+        this.evictionMS = config.getEvictionMS();
+        this.spinThreshold = config.getSpinThreshold();
+        this.optimizedKeys = config.getOptimizedKeys();
+        this.spinWindowMS = config.getSpinWindowMS();
         this.usingSSL = usingSSL;
         this.isClient = isClient;
         this.needClientAuth = needClientAuth;
         this.packetWorker = packetWorker;
-        this.taskWorker = (singleThreaded) ? null : new TaskWorker(this);
+        packetWorker.addBackpressureListener(this);
+        this.taskWorker = (singleThreaded) ? null : new TaskWorker(this,
+                config.getTaskThreads(), config.getTaskQueue());
         //this.taskWorker = new TaskWorker(this);
         this.toWorker = new TimeoutWorker();
+        this.crypto = (usingSSL && config.getCryptoThreads() > 0)
+                ? new CryptoWorker(this, config.getCryptoThreads(),
+                        config.getWriteMaxBuffers()) : null;
         LOGGER.log(Level.FINE, "Using ssl: {0}", usingSSL);
     }
 
     /**
      * If the server/client has been initialized to use SSL/TLS, this method is
      * used to setup and initialize the SSL/TLS required parameters. WARNING: if
-     * the protocols or cipher suites used in the application are invalid, the
-     * default SSL/TLS protocols and cipher suites will be used instead, as per
-     * SSLEngine.getEnabledProtocols() and SSLEngine.getEnabledCipherSuites().
+     * none of the protocols or cipher suites used in the application are
+     * supported, the default SSL/TLS protocols and cipher suites will be used
+     * instead, see {@link #createParameters(SSLContext, Configuration,
+     * boolean, boolean)}.
      *
      * @param trustStoreLoc The location of the trustStore on the disk. The
      * trustore is *ALWAYS* required for a client implementation. For a server
@@ -197,9 +332,236 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
             return;
         }
 
-        protocols = PropertiesReader.getProtocols();
-        cipherSuits = PropertiesReader.getCipherSuites();
-        
+        setupSSL(createContext(isClient, needClientAuth, trustStoreLoc,
+                keyStoreLoc, tsPassPhrase, ksPassPhrase));
+    }
+
+    /**
+     * If the server/client has been initialized to use SSL/TLS, this method is
+     * used to setup the SSL/TLS required parameters with an already
+     * initialized {@link SSLContext}, e.g. one obtained from
+     * {@link #getSSLContext()} of another client. <p> Sessions are cached and
+     * resumed per SSLContext, so clients that connect to the same server over
+     * and over (e.g. a new TCPClient per connection) should share a single
+     * SSLContext in order to resume their sessions instead of performing a
+     * full handshake on each connection. The session cache of the given
+     * context is configured as per
+     * {@link Configuration#getSessionCacheSize()} and
+     * {@link Configuration#getSessionTimeout()}, and the {@link SSLParameters}
+     * of this listener are computed from it, see {@link #getSSLParameters()}.
+     *
+     * @param context The initialized SSLContext to create SSLEngines from
+     */
+    public void setupSSL(SSLContext context) {
+        if (!usingSSL) {
+            LOGGER.log(Level.WARNING, "Trying to set SSL parameters with a "
+                    + "non-SSL/TLS {0}" + ". SSL/TLS was NOT set or initialized.",
+                    (isClient ? "client" : "server"));
+            return;
+        }
+
+        if (context != null) {
+            setupSessions(context, config);
+            shareSSL(context, createParameters(context, config, isClient,
+                    needClientAuth));
+        } else {
+            this.context = null;
+        }
+    }
+
+    /**
+     * Use the given, already set up, {@link SSLContext} and
+     * {@link SSLParameters}, sizing the read buffer to hold a full record of
+     * the context's sessions. Unlike {@link #setupSSL(SSLContext)}, neither
+     * the session cache of the context nor the parameters are configured
+     * anew. This is how a {@link TCPServer} shares its SSL/TLS setup with its
+     * {@link EventLoop}s, and must be called before the selector is started.
+     *
+     * @param context The initialized SSLContext to create SSLEngines from
+     * @param sslParameters The SSLParameters to apply to every SSLEngine
+     */
+    void shareSSL(SSLContext context, SSLParameters sslParameters) {
+        this.context = context;
+        this.sslParameters = sslParameters;
+        int appBufSize = context.createSSLEngine().getSession()
+                .getApplicationBufferSize();
+        if (readBuffer.capacity() < appBufSize) {
+            BufferPool.release(readBuffer);
+            readBuffer = BufferPool.acquire(appBufSize);
+        }
+    }
+
+    /**
+     * Returns the {@link SSLContext} this server/client creates its
+     * SSLEngines from, so that it can be shared with other clients, see
+     * {@link #setupSSL(SSLContext)}.
+     *
+     * @return the SSLContext of this server/client, or null if SSL/TLS has
+     * not been set up
+     */
+    public SSLContext getSSLContext() {
+        return this.context;
+    }
+
+    /**
+     * Returns the {@link SSLParameters} applied to every {@link SSLEngine} of
+     * this server/client, as computed by {@link #setupSSL(SSLContext)} or set
+     * via {@link #setSSLParameters(SSLParameters)}.
+     *
+     * @return the SSLParameters of this server/client, or null if SSL/TLS has
+     * not been set up
+     */
+    public SSLParameters getSSLParameters() {
+        return this.sslParameters;
+    }
+
+    /**
+     * Replace the {@link SSLParameters} applied to every {@link SSLEngine} of
+     * this server/client, e.g. to enable a different set of protocols and
+     * cipher suites on one listener than on the others. This must be called
+     * after {@link #setupSSL(SSLContext)}, which computes the parameters from
+     * the {@link Configuration}. The given parameters are applied as they are
+     * to SSLEngines created from then on, and should not be modified
+     * afterwards. Starting from {@link #getSSLParameters()} keeps a server
+     * preferring its own cipher suite order.
+     *
+     * @param sslParameters The SSLParameters to apply to every SSLEngine
+     */
+    public void setSSLParameters(SSLParameters sslParameters) {
+        this.sslParameters = sslParameters;
+    }
+
+    /**
+     * Compute the {@link SSLParameters} of a listener once, from the default
+     * parameters of the given {@link SSLContext} with the protocols and cipher
+     * suites of the given {@link Configuration}, in their configured order.
+     * Protocols and cipher suites the context does not support are left out;
+     * if none of them is supported, the defaults of the context are kept. A
+     * server picks the first of its cipher suites the client also supports,
+     * rather than the client's preferred one, as the default differs between
+     * JVMs (it is off up to Java 8). This is also used by the
+     * {@link BlockingServer}.
+     *
+     * @param context The SSLContext whose engines the parameters apply to
+     * @param config The Configuration to read the protocols and suites from
+     * @param isClient Whether the parameters are for a client
+     * @param needClientAuth Whether clients also need to authenticate
+     * @return the SSLParameters to apply to every SSLEngine of the listener
+     */
+    static SSLParameters createParameters(SSLContext context,
+            Configuration config, boolean isClient, boolean needClientAuth) {
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters params = context.getDefaultSSLParameters();
+        String[] protocols = retain(config.getProtocols(), supported.getProtocols());
+        if (protocols.length > 0) {
+            params.setProtocols(protocols);
+        } else {
+            LOGGER.log(Level.WARNING, "Provided protocols invalid, using default");
+        }
+        String[] suites = retain(config.getCipherSuites(), supported.getCipherSuites());
+        if (suites.length > 0) {
+            params.setCipherSuites(suites);
+        } else {
+            LOGGER.log(Level.WARNING, "Provided cipher suites invalid, using default");
+        }
+        params.setNeedClientAuth(needClientAuth);
+        if (!isClient) {
+            useCipherSuitesOrder(params);
+        }
+        return params;
+    }
+
+    /**
+     * Have a server prefer its own cipher suite order over the client's, via
+     * SSLParameters.setUseCipherSuitesOrder(true), where the JVM supports it.
+     *
+     * @param params The SSLParameters of the server
+     */
+    private static void useCipherSuitesOrder(SSLParameters params) {
+        if (USE_CIPHER_SUITES_ORDER == null) {
+            LOGGER.config("Server cipher suite order not supported, using the client's");
+            return;
+        }
+        try {
+            USE_CIPHER_SUITES_ORDER.invoke(params, true);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.log(Level.CONFIG, "Could not set the server cipher suite order", e);
+        }
+    }
+
+    /**
+     * Look up SSLParameters.setUseCipherSuitesOrder(boolean), which is only
+     * available from Java 8 on.
+     *
+     * @return the setUseCipherSuitesOrder method, or null if not supported
+     */
+    private static Method useCipherSuitesOrderMethod() {
+        try {
+            return SSLParameters.class.getMethod("setUseCipherSuitesOrder",
+                    boolean.class);
+        } catch (NoSuchMethodException nsme) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the given names that are also in the supported ones, in their
+     * given order.
+     *
+     * @param names The names to filter
+     * @param supported The supported names
+     * @return the supported names among the given ones
+     */
+    private static String[] retain(String[] names, String[] supported) {
+        List<String> supportedList = Arrays.asList(supported);
+        ArrayList<String> retained = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (supportedList.contains(name)) {
+                retained.add(name);
+            } else {
+                LOGGER.log(Level.CONFIG, "{0} not supported, ignored", name);
+            }
+        }
+        return retained.toArray(new String[retained.size()]);
+    }
+
+    /**
+     * Configure the client and server session caches of the given
+     * {@link SSLContext} as per {@link Configuration#getSessionCacheSize()}
+     * and {@link Configuration#getSessionTimeout()}. This is also used by the
+     * {@link BlockingServer}.
+     *
+     * @param context The SSLContext whose session caches to configure
+     * @param config The Configuration to read the cache size and timeout from
+     */
+    static void setupSessions(SSLContext context, Configuration config) {
+        context.getClientSessionContext().setSessionCacheSize(config.getSessionCacheSize());
+        context.getClientSessionContext().setSessionTimeout(config.getSessionTimeout());
+        context.getServerSessionContext().setSessionCacheSize(config.getSessionCacheSize());
+        context.getServerSessionContext().setSessionTimeout(config.getSessionTimeout());
+    }
+
+    /**
+     * Create and initialize an {@link SSLContext} from the given trustStore
+     * and keyStore, as described in {@link #setupSSL(String, String, char[],
+     * char[])}. This is also used by the {@link BlockingServer}, so that both
+     * engines are set up identically.
+     *
+     * @param isClient Whether the context is used by a client implementation
+     * @param needClientAuth Whether clients also need to authenticate
+     * @param trustStoreLoc The location of the trustStore on the disk, or null
+     * if the truststore is not required
+     * @param keyStoreLoc The location of the keyStore on the disk, or null if
+     * the keystore is not required
+     * @param tsPassPhrase The passphrase to use with the trustStore or null if
+     * the truststore is not required.
+     * @param ksPassPhrase The passphrase to use with the keyStore or null if
+     * the keystore is not required.
+     * @return the initialized SSLContext, or null if it could not be created
+     */
+    static SSLContext createContext(boolean isClient, boolean needClientAuth,
+            String trustStoreLoc, String keyStoreLoc, char[] tsPassPhrase,
+            char[] ksPassPhrase) {
         TrustManagerFactory tmf = null;
         KeyManagerFactory kmf = null;
         KeyStore ks = null;
@@ -286,6 +648,7 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
             }
         }
         // Finally, initialize the context
+        SSLContext context = null;
         try {
             context = SSLContext.getInstance("TLS");
             if (kmf == null) {
@@ -302,18 +665,21 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
             kme.printStackTrace();
             // context.init()
         }
+        return context;
     }
 
     /**
      * Sets up the underlying {@link SSLEngine} to be used with a
      * {@link ch.dermitza.securenio.socket.secure.SecureSocket} implementation.
      * The SSLEngine is initialized based on whether this instance is a server
-     * or a client, whether we need clientAuth or not, and based on the provided
-     * protocols and cipher suites provided in {@link
-     * #setupSSL(String trustStoreLoc, String keyStoreLoc, char[] tsPassPhrase,
-     * char[] ksPassPhrase, String protocolsLoc, String cipherSuitesLoc)}. The
-     * peerHost and peerPort parameters are passed as hints to the
-     * {@link SSLEngine} for engine re-usage purposes but can also be null.
+     * or a client, and by applying the {@link SSLParameters} of this listener
+     * (clientAuth, protocols and cipher suites) computed once in
+     * {@link #setupSSL(SSLContext)}, rather than setting them up anew on every
+     * engine. The peerHost and peerPort parameters are passed as hints to the
+     * {@link SSLEngine} for engine re-usage purposes but can also be null. A
+     * client engine only resumes a cached session if it is created with the
+     * same peerHost and peerPort as the engine that negotiated it, hence
+     * clients pass the address and port they are configured to connect to.
      *
      * @param peerHost The peer host of the socket
      * @param peerPort The peer port of the socket
@@ -322,19 +688,7 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
     protected SSLEngine setupEngine(String peerHost, int peerPort) {
         SSLEngine engine = context.createSSLEngine(peerHost, peerPort);
         engine.setUseClientMode(isClient);
-        engine.setNeedClientAuth(needClientAuth);
-        // Setup protocols and suites
-        try {
-            engine.setEnabledProtocols(protocols);
-        } catch (IllegalArgumentException iae) {
-            LOGGER.log(Level.WARNING, "Provided protocols invalid, using default", iae);
-        }
-
-        try {
-            engine.setEnabledCipherSuites(cipherSuits);
-        } catch (IllegalArgumentException iae) {
-            LOGGER.log(Level.WARNING, "Provided cipher suites invalid, using default", iae);
-        }
+        engine.setSSLParameters(sslParameters);
         return engine;
     }
 
@@ -353,13 +707,11 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
     public void run() {
         try {
             // Initialize the selector
-            selector = SelectorProvider.provider().openSelector();
+            selector = openSelector();
             // Now init the connection
             // this is implementation specific (server or client wise)
             initConnection();
-            new Thread(packetWorker, "PacketWorkerThread").start();
-            new Thread(taskWorker, "TaskWorkerThread").start();
-            new Thread(toWorker, "TimeoutWorkerThread").start();
+            startWorkers();
             running = true;
         } catch (IOException ioe) {
             running = false;
@@ -367,60 +719,58 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
         }
 
         int keyNo;
+        busySince = System.nanoTime();
         while (running) {
             try {
                 // Process any pending changes
                 processChanges();
-                // Wait for an event on one of the registered channels
-                keyNo = (processAll) ? selector.select() : selector.select(PropertiesReader.getSelectorTimeoutMS());
+                // Parking, this loop is no longer lagging behind
+                busySince = 0;
+                // Announce that we are about to park in select(), so that
+                // producers queueing changes from now on wake us up. Changes
+                // queued before the announcement are caught by the re-check
+                // and processed without blocking.
+                wakeupNeeded.set(true);
+                if (!pendingChanges.isEmpty() || !dirtySockets.isEmpty()) {
+                    wakeupNeeded.set(false);
+                    keyNo = selector.selectNow();
+                } else {
+                    // Wait for an event on one of the registered channels
+                    long timeout = (processAll) ? 0 : selectorTimeoutMS;
+                    long selectStart = System.currentTimeMillis();
+                    keyNo = (processAll) ? selector.select() : selector.select(timeout);
+                    // If a producer cleared the flag, it also woke us up
+                    boolean wokenUp = !wakeupNeeded.getAndSet(false);
+                    if (keyNo == 0 && !wokenUp
+                            && !Thread.currentThread().isInterrupted()
+                            && (processAll || System.currentTimeMillis() - selectStart < timeout)) {
+                        // select() returned early without anything to do
+                        checkSpin();
+                    } else {
+                        spinCount = 0;
+                    }
+                }
+                busySince = System.nanoTime();
+                selects.incrementAndGet();
 
                 if (keyNo > 0) {
-                    // Iterate over the set of keys for which events are available
-                    Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-                    while (selectedKeys.hasNext()) {
-                        SelectionKey key = selectedKeys.next();
-                        selectedKeys.remove();
-
-                        // Key could have been invalidated, if so
-                        // just ignore it and go back to selecting
-                        if (!key.isValid()) {
-                            continue;
-                        }
-
-                        // Check what event is available and deal with it
-                        // IMPORTANT: key can be A COMBINATION OF all states
-                        // e.g. acceptable and connectable and readable etc.
-                        // Elseifs would ignore the multistatus, use separate
-                        // ifs instead
-                        if (key.isAcceptable()) {
-                            // Accept, we are inside a server
-                            accept(key);
-                        }
-                        if (key.isConnectable()) {
-                            // Connect, we are inside a client
-                            connect(key);
+                    SelectedKeySet keySet = selectedKeySet;
+                    if (keySet != null) {
+                        // Iterate over the array of keys for which events are
+                        // available, without allocating an iterator
+                        SelectionKey[] keys = keySet.keys();
+                        int size = keySet.size();
+                        for (int i = 0; i < size; i++) {
+                            processKey(keys[i]);
                         }
-                        if (key.isValid() && key.isReadable()) {
-                            // Ready to read stuff
-                            read(key);
-                        }
-                        if (key.isValid() && key.isWritable()) {
-                            // Ready to write stuff
-                            // however, application data will be consumed (destroyed)
-                            // if we are still handshaking. In this case, we need
-                            // to unregister the key for being writable until the
-                            // handshake is complete
-                            //if(container.getSocket(key.channel()).handshakePending()){
-                            // need to flush
-                            //    try{
-                            //         container.getSocket(key.channel()).flush();
-                            //     } catch(IOException ioe){
-                            //         System.out.println("IOE while flushing");
-                            //         closeSocket(container.getSocket(key.channel()));
-                            //     }
-                            // }else{
-                            write(key);
-                            // }
+                        keySet.reset();
+                    } else {
+                        // Iterate over the set of keys for which events are available
+                        Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                        while (selectedKeys.hasNext()) {
+                            SelectionKey key = selectedKeys.next();
+                            selectedKeys.remove();
+                            processKey(key);
                         }
                     }
                 }
@@ -434,6 +784,45 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
         shutdown();
     }
 
+    /**
+     * Starts the worker threads used by this selector, i.e. the
+     * {@link AbstractPacketWorker}, the {@link TaskWorker} and the
+     * {@link TimeoutWorker}. Implementations sharing a worker with another
+     * selector (e.g. an {@link EventLoop} sharing the packet worker of its
+     * {@link TCPServer}) can override this method to only start the workers
+     * they own.
+     *
+     * @see #stopWorkers()
+     */
+    protected void startWorkers() {
+        new Thread(packetWorker, "PacketWorkerThread").start();
+        new Thread(taskWorker, "TaskWorkerThread").start();
+        new Thread(toWorker, "TimeoutWorkerThread").start();
+    }
+
+    /**
+     * Stops the worker threads started in {@link #startWorkers()}. This method
+     * is called as part of the {@link #shutdown()} procedure.
+     *
+     * @see #startWorkers()
+     */
+    protected void stopWorkers() {
+        // Close the packetworker
+        if (packetWorker.isRunning()) {
+            packetWorker.setRunning(false);
+        }
+        // Close the taskWorker
+        if (!singleThreaded) {
+            if (taskWorker.isRunning()) {
+                taskWorker.setRunning(false);
+            }
+        }
+        // Cancel all pending timeouts
+        if (toWorker.isRunning()) {
+            toWorker.setRunning(false);
+        }
+    }
+
     /**
      * Invalidate the {@link javax.net.ssl.SSLSession} associated with the
      * provided {@link SocketIF}. The invalidation is queued as a pending change
@@ -448,11 +837,8 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      * @see #processChanges()
      */
     protected void invalidateSession(SocketIF socket) {
-        synchronized (this.pendingChanges) {
-            socket.invalidateSession();
-            pendingChanges.add(new ChangeRequest(socket, ChangeRequest.TYPE_SESSION, 0));
-            this.selector.wakeup();
-        }
+        socket.invalidateSession();
+        markPending(socket, PENDING_SESSION);
     }
 
     /**
@@ -464,6 +850,23 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      * {@link SelectionKey} to SelectionKey.OP_WRITE. In case of an SSL/TLS
      * implementation and where the handshaking is not completed, the
      * SelectionKey is not changed until the handshake has finished.
+     * <p>
+     * For plain sockets, heap buffers are copied into a direct buffer acquired
+     * from the {@link BufferPool}, so that the caller is free to reuse them
+     * once this method returns; the copy is released to the pool once
+     * written. Direct buffers, and all buffers of secure sockets, are queued
+     * as-is and still belong to the caller, who MUST NOT modify them until
+     * they have been written. They are never released to the
+     * {@link BufferPool} by this selector.
+     * <p>
+     * This method never blocks nor refuses data. If the data queued on the
+     * socket crosses the socket.high_watermark, the socket becomes unwritable
+     * and registered {@link WritabilityListener}s are notified; it becomes
+     * writable again once the queued data drops to the socket.low_watermark.
+     * If the data queued crosses the socket.hard_limit, the socket is
+     * disconnected unless it drops back below the hard limit within
+     * socket.eviction_ms. Use {@link #trySend(SocketIF, ByteBuffer)} or
+     * {@link #send(SocketIF, ByteBuffer, long)} to respect the watermarks.
      *
      * @param socket The SocketIF to send the packet through
      * @param data The ByteBuffer to send through the associated SocketIF
@@ -471,286 +874,1129 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      * @see #processChanges()
      */
     protected void send(SocketIF socket, ByteBuffer data) {
-        synchronized (this.pendingChanges) {
-            // If the handshake has been completed, indicate that we want the
-            // interest ops changed to OP_WRITE. If the handshake is still
-            // pending, a PendingChange will be issued when the handshake has
-            // been completed.
-            if (!socket.handshakePending()) {
-                pendingChanges.add(new ChangeRequest(
-                        socket, ChangeRequest.TYPE_OPS, SelectionKey.OP_WRITE));
-            }
-
-            // Queue the data we want written to the remote end. If a queue does
-            // not yet exist, a new one will be created and the data will be 
-            // added to it.
-            synchronized (this.pendingData) {
-                List<ByteBuffer> queue = this.pendingData.get(socket.getSocket());
-                if (queue == null) {
-                    queue = new ArrayList<>();
-                    this.pendingData.put(socket.getSocket(), queue);
-                }
-                queue.add(data);
+        boolean pooled = false;
+        if (!usingSSL && !data.isDirect()) {
+            // The JDK would otherwise copy the heap buffer into a temporary
+            // direct buffer on every write. SSL/TLS sockets wrap the data
+            // into their own (direct) buffers anyway.
+            ByteBuffer direct = BufferPool.acquire(data.remaining());
+            direct.put(data);
+            direct.flip();
+            data = direct;
+            pooled = true;
+        }
+        // Queue the data we want written to the remote end in the socket's
+        // own outbound queue. The data is queued before the change request,
+        // so that it is there by the time the selector thread processes the
+        // change.
+        OutboundQueue queue = socket.getOutboundQueue();
+        long queued = queue.add(data, pooled);
+        if (queued > highWatermark && queue.setWritable(false)) {
+            fireWritabilityChanged(socket, false);
+        }
+        if (hardLimit > 0 && queued > hardLimit && !queue.isEvictionArmed()) {
+            // Give the remote peer some time to catch up, or be evicted
+            Timeout eviction = new Timeout(socket, this, evictionMS);
+            if (queue.armEviction(eviction)) {
+                LOGGER.log(Level.CONFIG, "Outbound hard limit exceeded, {0} bytes queued",
+                        queued);
+                toWorker.insert(eviction);
             }
         }
 
-        // If the handshake has been previously completed, wake up our selecting
-        // thread so it can make the required changes. If the handshake is still
-        // pending, there are no changes to be made, so we can leave the selector
-        // in the select() state until an actual change happens.
+        // If the handshake has been completed, indicate that we want the
+        // interest ops changed to OP_WRITE and wake up our selecting thread
+        // (if parked) so it can make the required changes. Any number of
+        // sends before the selecting thread gets to the socket result in a
+        // single interest change. If the handshake is still pending, the
+        // change will be marked when the handshake has been completed, so we
+        // can leave the selector in the select() state until an actual change
+        // happens.
         if (!socket.handshakePending()) {
-            this.selector.wakeup();
+            markPending(socket, PENDING_WRITE);
         }
     }
 
     /**
-     * Any pending {@link ChangeRequest}s are processed via this method, in the
-     * {@link AbstractSelector} thread. There is an option to process everything
-     * at once, once this method is called, or to process a part of changes
-     * queued. In the first case, care should be taken that the queued changes
-     * are not so many that the main thread cannot return to the select() fast
-     * enough to process a large number of connections or data reads. In the
-     * second case, care should be taken that sufficiently many changes are
-     * processed in time, such that the change queue does not grow too large
-     * and/or remotely connected systems timeout (and potentially fail) due to
-     * our inactivity to process changes fast enough.
+     * Send a {@link ByteBuffer} over the specified {@link SocketIF}, if and
+     * only if the socket is currently writable (its outbound queue is not
+     * above the high watermark). If the data is not sent, ownership of the
+     * data remains with the caller.
      *
-     * @param processAll Whether or not to process all changes in a single pass
+     * @param socket The SocketIF to send the packet through
+     * @param data The ByteBuffer to send through the associated SocketIF
+     * @return true if the data was queued for sending, false if the socket is
+     * not writable
      *
-     * @see ChangeRequest
+     * @see #send(SocketIF, ByteBuffer)
+     * @see #isWritable(SocketIF)
      */
-    private void processChanges() {
-        int changeCount = 0;
-        synchronized (this.pendingChanges) {
-            for (ChangeRequest change : this.pendingChanges) {
-                SelectionKey key;
-                switch (change.getType()) {
-                    // The request concerns switching the interestOps of a key
-                    // associated with a particular socket
-                    case ChangeRequest.TYPE_OPS:
-                        key = change.getChannel().getSocket().keyFor(selector);
-                        // At this point we might get a CancelledKeyException if
-                        // we are trying to set the interestOps on a key that has
-                        // been previously been cancelled. Check if it is valid
-                        // before changing the interestOps;
-                        // It can also be the case that the the socket has already been
-                        // unregistered with the selector, thus having a null key. In this
-                        // case, we do not need to process anything regarding that socket
-                        if (key != null && key.isValid()) {
-                            key.interestOps(change.getOps());
-                        }
-                        break;
-                    // The request concerns an SSLEngineTask that has just
-                    // finished running on the TaskWorker thread
-                    case ChangeRequest.TYPE_TASK:
-                        // At this point, we need to resume processing the
-                        // SSL/TLS handshake on the associated socket.
-                        try {
-                        // First update the result of the finished task
-                        change.getChannel().updateResult();
-                        // Then continue processing the handshake
-                        // TODO, processHandshake can be merged with
-                        // inithandshake
-                        change.getChannel().processHandshake();
-                    } catch (IOException ioe) {
-                        // At this point, the handshake is NOT completed.
-                        // Drop the socket.
-                        LOGGER.log(Level.INFO, "IOE after task", ioe);
-                        closeSocket(change.getChannel());
-                    }
-                    break;
-                    case ChangeRequest.TYPE_TIMEOUT:
-                        // The timeout has expired on the given socket.
-                        // As such, the socket needs to be closed
-                        LOGGER.config("Timeout expired");
-                        closeSocket(change.getChannel());
-                        break;
-                    case ChangeRequest.TYPE_SESSION:
-                        // The SSL/TLS session has been invalidated, we need to
-                        // re-initiate handshaking
-                        try {
-                        change.getChannel().initHandshake();
-                    } catch (IOException ioe) {
-                        // At this point, the handshake is NOT completed.
-                        // Drop the socket.
-                        LOGGER.log(Level.INFO, "IOE while initializing handshake", ioe);
-                        closeSocket(change.getChannel());
-                    }
-                }
-                // Remove the change we just processed
-                pendingChanges.removeFirst();
-                changeCount++;
-                if (!processAll && changeCount >= PropertiesReader.getMaxChanges()) {
-                    // processed the changes we were asked to. Break from the 
-                    // loop only clearing the changes we just processed. The
-                    // rest of changes will be processed in a subsequent iteration.
-                    return;
-                }
-            }
-            // All pending changes have been processed at this point
-            // we are free to clear the list. NOTE: if the pending changes to
-            // be processed are too many, this can cause the selecting thread
-            // to start refusing connections. It could in this case be better
-            // to not process everything at once, but rather process them one at
-            // a time
-            this.pendingChanges.clear();
+    protected boolean trySend(SocketIF socket, ByteBuffer data) {
+        if (!socket.getOutboundQueue().isWritable()) {
+            return false;
         }
+        send(socket, data);
+        return true;
     }
 
     /**
-     * Initialize a connection. This method is up to the server or client
-     * implementations to implement, but at the minimum it should set
-     * implemented channels to non-blocking, and set-up any SSL/TLS
-     * configuration if necessary.
+     * Send a {@link ByteBuffer} over the specified {@link SocketIF}, blocking
+     * the calling thread while the socket is not writable (its outbound queue
+     * is above the high watermark), for at most the given timeout. This method
+     * MUST NOT be called from the selector thread. If the data is not sent,
+     * ownership of the data remains with the caller.
      *
-     * @throws IOException Propagates all underlying IOExceptions as thrown, to
-     * be handled by the application layer.
+     * @param socket The SocketIF to send the packet through
+     * @param data The ByteBuffer to send through the associated SocketIF
+     * @param timeoutMS The maximum time to wait (ms) for the socket to become
+     * writable, 0 to wait indefinitely
+     * @return true if the data was queued for sending, false if the timeout
+     * elapsed or the socket was closed while waiting
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
      *
-     * @see AbstractSelector#run()
+     * @see #send(SocketIF, ByteBuffer)
      */
-    protected abstract void initConnection() throws IOException;
+    protected boolean send(SocketIF socket, ByteBuffer data, long timeoutMS)
+            throws InterruptedException {
+        if (!socket.getOutboundQueue().awaitWritable(timeoutMS)) {
+            return false;
+        }
+        send(socket, data);
+        return true;
+    }
 
     /**
-     * Should accept incoming connections and bind new non-blocking
-     * {@link SocketIF} instances to them. If the server implementation is using
-     * SSL/TLS, it should also set up the {@link SSLEngine}, to be used.
-     *
-     * @param key The selection key with the underlying {@link SocketChannel} to
-     * be accepted
+     * Returns whether the given {@link SocketIF} is writable, i.e. whether the
+     * data queued on it has not crossed the high watermark, or has dropped
+     * back to the low watermark since.
      *
-     * @see AbstractSelector#run()
-     */
-    protected abstract void accept(SelectionKey key);
-
-    /**
-     * Should finish the connection to the server. This method should also
-     * instantiate an SSLEngine handshake if the underlying {@link SocketIF} is
-     * a secure socket. Finally, after the connection has been established, the
-     * socket should be registered to the underlying {@link Selector}, with a
-     * {@link SelectionKey} of OP_READ, signalling it is ready to read data.
+     * @param socket The socket to check
+     * @return true if the socket is writable
      *
-     * @param key The selection key with the underlying {@link SocketChannel}
-     * that needs a connection finalization.
+     * @see WritabilityListener
      */
-    protected abstract void connect(SelectionKey key);
+    public boolean isWritable(SocketIF socket) {
+        return socket.getOutboundQueue().isWritable();
+    }
 
     /**
-     * Writes data to the socket associated with the given {@link SelectionKey}.
-     * This method is ONLY called once we have set the {@link SelectionKey}
-     * associated with the socket to OP_WRITE. It tries to write as much data as
-     * possible before returning. Once there is no more data to be written on
-     * this socket, it sets the {@link SelectionKey} to OP_READ, disallowing any
-     * further calls to this method until more data is available.
-     *
-     * @param key The SelectionKey whose associated socket we should write on
+     * Dispatch the events available on a selected {@link SelectionKey} to
+     * {@link #accept(SelectionKey)}, {@link #connect(SelectionKey)},
+     * {@link #read(SelectionKey)} and/or {@link #write(SelectionKey)}. If this
+     * selector has a {@link CryptoWorker}, reads and writes of established
+     * secure sockets are offloaded to it instead, see
+     * {@link #offload(SelectionKey, SocketIF, int)}.
      *
-     * @see #processChanges()
-     * @see #send(ch.dermitza.securenio.socket.SocketIF, java.nio.ByteBuffer)
+     * @param key The selected key to dispatch the events of
      */
-    protected void write(SelectionKey key) {
-        SocketIF socketChannel = container.getSocket(key.channel());
-
-        synchronized (this.pendingData) {
-            List<ByteBuffer> queue = this.pendingData.get(socketChannel.getSocket());
-
-            // Write until there's not more data ...
-            while (!queue.isEmpty()) {
-                ByteBuffer buf = queue.get(0);
-                try {
-                    int written = socketChannel.write(buf);
-                    LOGGER.log(Level.FINEST, "Written {0} bytes", written);
-                } catch (IOException ioe) {
-                    // If a IOE happens when writing, something really bad
-                    // happened (generally). Close the socket where the write
-                    // was happening
-                    LOGGER.log(Level.INFO, "IOE while writing", ioe);
-                    closeSocket(socketChannel);
-                    return;
-                }
-                if (buf.remaining() > 0) {
-                    // ... or the socket's buffer fills up
-                    break;
-                }
-                queue.remove(0);
-            }
+    private void processKey(SelectionKey key) {
+        // Key could have been invalidated, if so
+        // just ignore it and go back to selecting
+        if (!key.isValid()) {
+            return;
+        }
 
-            if (queue.isEmpty()) {
-                // We wrote away all data, so we're no longer interested
-                // in writing on this socket. Switch back to waiting for
-                // data.
-                key.interestOps(SelectionKey.OP_READ);
+        // Check what event is available and deal with it
+        // IMPORTANT: key can be A COMBINATION OF all states
+        // e.g. acceptable and connectable and readable etc.
+        // Elseifs would ignore the multistatus, use separate
+        // ifs instead
+        if (key.isAcceptable()) {
+            // Accept, we are inside a server
+            accept(key);
+        }
+        if (key.isConnectable()) {
+            // Connect, we are inside a client
+            connect(key);
+        }
+        if (crypto != null && key.isValid() && (key.readyOps()
+                & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0) {
+            SocketIF socket = (SocketIF) key.attachment();
+            // Handshakes continue on this thread, only the application data
+            // of established sockets is offloaded
+            if (!socket.handshakePending()
+                    && offload(key, socket, key.readyOps())) {
+                return;
             }
         }
+        if (key.isValid() && key.isReadable()) {
+            // Ready to read stuff
+            read(key);
+        }
+        if (key.isValid() && key.isWritable()) {
+            // Ready to write stuff
+            // however, application data will be consumed (destroyed)
+            // if we are still handshaking. In this case, we need
+            // to unregister the key for being writable until the
+            // handshake is complete
+            //if(container.getSocket(key.channel()).handshakePending()){
+            // need to flush
+            //    try{
+            //         container.getSocket(key.channel()).flush();
+            //     } catch(IOException ioe){
+            //         System.out.println("IOE while flushing");
+            //         closeSocket(container.getSocket(key.channel()));
+            //     }
+            // }else{
+            write(key);
+            // }
+        }
     }
 
     /**
-     * Reads data from the socket associated with the given
-     * {@link SelectionKey}. This method is called as soon as data is ready to
-     * be read. It tries to read as much data as possible, handing bytes read to
-     * the underlying {@link AbstractPacketWorker} for reconstruction and
-     * further processing. It also handles potential socket disconnections
-     * and/or errors, upon which, it makes a best effort to close the socket
-     * cleanly.
-     *
-     * @param key The SelectionKey whose associated socket we should read from
+     * Hand a selected, established secure socket to the {@link CryptoWorker}
+     * of this selector, which reads, unwraps, wraps and writes its data. The
+     * interest of the socket's key is suspended until the socket is handed
+     * back, so that it is never serviced by this thread and a crypto lane at
+     * the same time. Operations marked pending on the socket meanwhile are
+     * deferred until then, see {@link #resume(SocketIF, int)}.
      *
-     * @see AbstractPacketWorker#addData(SocketIF, ByteBuffer, int)
-     * @see #closeSocket(ch.dermitza.securenio.socket.SocketIF)
+     * @param key The selected key of the socket
+     * @param socket The socket to offload
+     * @param readyOps The operations to service the socket for
+     * @return true if the socket was offloaded, false if the CryptoWorker has
+     * been shut down and the socket should be serviced on this thread
      */
-    protected void read(SelectionKey key) {
-        SocketIF socketChannel = container.getSocket(key.channel());
-        // Clear out our read buffer so it's ready for new data
-        this.readBuffer.clear();
-
-        // Attempt to read off the channel
-        int numRead;
-        try {
-            numRead = socketChannel.read(readBuffer);
-            //numRead = socketChannel.read(this.readBuffer);
-            LOGGER.log(Level.FINEST, "Read {0} bytes", numRead);
-        } catch (IOException ioe) {
-            // The remote forcibly closed the connection, cancel
-            // the selection key and close the channel.
-            // Closing the channel automatically cancels the key
-            // TODO, recover the IP here
-            LOGGER.log(Level.INFO, "Remote forcibly disconnected", ioe);
-            closeSocket(socketChannel);
-            return;
-        } catch (BufferOverflowException boe) {
-            // Can be thrown during read from a secure socket
-            // We would need to handle this, TODO
-            LOGGER.log(Level.INFO, "BufferOverflowException while reading", boe);
-            closeSocket(socketChannel);
-            return;
+    private boolean offload(SelectionKey key, SocketIF socket, int readyOps) {
+        int interest = key.interestOps();
+        key.interestOps(0);
+        offloaded.put(socket, 0);
+        if (!crypto.submit(socket, readyOps)) {
+            offloaded.remove(socket);
+            key.interestOps(interest);
+            return false;
         }
+        return true;
+    }
 
-        if (numRead == -1) {
-            // Remote entity shut the socket down cleanly. Do the
-            // same from our end and cancel the channel.
-            // Closing the channel automatically cancels the key
-            // TODO, recover the IP here
-            LOGGER.config("Remote disconnected");
-            closeSocket(socketChannel);
-            return;
+    /**
+     * Service a socket offloaded to the {@link CryptoWorker}, on one of its
+     * lanes. If the socket was selected as readable, the available records
+     * are read and unwrapped and the plaintext is handed to the
+     * {@link AbstractPacketWorker}; the data queued on the socket is then
+     * wrapped and written. The socket is finally handed back to the selector
+     * thread, along with whether it needs to be closed, to be written to once
+     * writable, or to be read from again as it still holds input.
+     *
+     * @param socket The offloaded socket
+     * @param readyOps The operations the socket's key was selected for
+     * @param readBuffer The read buffer of the lane
+     * @param writeBuffers The gathering array of the lane
+     */
+    void service(SocketIF socket, int readyOps, ByteBuffer readBuffer,
+            ByteBuffer[] writeBuffers) {
+        boolean close = false;
+        boolean incomplete = false;
+        boolean buffered = false;
+        if ((readyOps & SelectionKey.OP_READ) != 0) {
+            close = !readSocket(socket, readBuffer);
+            buffered = !close && socket.hasBufferedInput();
         }
-
-        if (numRead > 0) {
-            // Here we have a bytebuffer with some data on a SocketChannel
-            // We need to construct a packet and then fire the listener methods
-            // this happens in the worker thread
-            packetWorker.addData(socketChannel, readBuffer, numRead);
+        if (!close) {
+            // Also flushes the records reading may have produced
+            int result = writeSocket(socket, writeBuffers);
+            close = (result == WRITE_FAILED);
+            incomplete = (result == WRITE_INCOMPLETE);
         }
+        serviced(socket, close, incomplete, buffered);
     }
 
     /**
-     * Closes the given {@link SocketIF}. In doing that, it also removes any
-     * potentially queued {@link ChangeRequest}s not yet processed on that
+     * Hand a socket serviced by the {@link CryptoWorker} back to the selector
+     * thread, see {@link ChangeRequest#TYPE_CRYPTO}.
+     *
+     * @param socket The serviced socket
+     * @param close Whether the socket needs to be closed
+     * @param write Whether data is left to be written once the socket's
+     * channel becomes writable
+     * @param read Whether input is left buffered in the socket, see
+     * {@link SocketIF#hasBufferedInput()}
+     */
+    void serviced(SocketIF socket, boolean close, boolean write, boolean read) {
+        markPending(socket, PENDING_CRYPTO | (close ? PENDING_CLOSE : 0)
+                | (write ? PENDING_WRITE : 0) | (read ? PENDING_READ : 0));
+    }
+
+    /**
+     * Returns the size of the buffers data is read into, i.e. the application
+     * buffer size of the SSL/TLS session once set up, see
+     * {@link #setupSSL(SSLContext)}.
+     *
+     * @return the size (bytes) of the read buffers
+     */
+    int getReadBufferSize() {
+        return readBuffer.capacity();
+    }
+
+    /**
+     * Open a new {@link Selector} for this {@link AbstractSelector}. If the
+     * selector.optimized_keys property is set, the selected-key set of the
+     * new selector is replaced with a {@link SelectedKeySet}, which can be
+     * iterated without allocating anything. This relies on the internals of
+     * the JDK selector implementation (sun.nio.ch.SelectorImpl); if these are
+     * not accessible (e.g. on a JDK 9+ without
+     * --add-opens java.base/sun.nio.ch=ALL-UNNAMED), the selector keeps its
+     * default selected-key set.
+     *
+     * @return the newly opened Selector
+     * @throws IOException if the Selector could not be opened
+     */
+    private Selector openSelector() throws IOException {
+        Selector sel = SelectorProvider.provider().openSelector();
+        selectedKeySet = null;
+        if (!optimizedKeys) {
+            return sel;
+        }
+        try {
+            Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false,
+                    ClassLoader.getSystemClassLoader());
+            if (!impl.isAssignableFrom(sel.getClass())) {
+                LOGGER.log(Level.CONFIG, "Unknown selector implementation {0}, "
+                        + "using default selected keys", sel.getClass().getName());
+                return sel;
+            }
+            Field selectedKeys = impl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = impl.getDeclaredField("publicSelectedKeys");
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+            SelectedKeySet keySet = new SelectedKeySet();
+            selectedKeys.set(sel, keySet);
+            publicSelectedKeys.set(sel, keySet);
+            selectedKeySet = keySet;
+            LOGGER.config("Using optimized selected keys");
+        } catch (ClassNotFoundException | NoSuchFieldException
+                | IllegalAccessException | RuntimeException e) {
+            // RuntimeException covers InaccessibleObjectException (JDK 9+)
+            LOGGER.log(Level.CONFIG, "Could not optimize selected keys, "
+                    + "using default selected keys", e);
+        }
+        return sel;
+    }
+
+    /**
+     * Called every time select() returns prematurely, i.e. without any keys
+     * selected, without having been woken up and before its timeout elapsed.
+     * Some kernels (e.g. the epoll bug on some Linux versions) make select()
+     * return such immediately and forever, spinning the selector thread at
+     * 100% CPU. If selector.spin_threshold consecutive premature returns
+     * happen within selector.spin_window_ms, the selector is rebuilt via
+     * {@link #rebuildSelector()}.
+     */
+    private void checkSpin() {
+        if (spinThreshold == 0) {
+            // Spin detection is disabled
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (spinCount == 0 || now - spinStart > spinWindowMS) {
+            // Start a new window
+            spinCount = 0;
+            spinStart = now;
+        }
+        if (++spinCount >= spinThreshold) {
+            LOGGER.log(Level.WARNING, "select() returned prematurely {0} times "
+                    + "in a row within {1} ms, rebuilding selector",
+                    new Object[]{spinCount, now - spinStart});
+            spinCount = 0;
+            rebuildSelector();
+        }
+    }
+
+    /**
+     * Replace the current {@link Selector} with a newly opened one, migrating
+     * all valid keys, along with their interest sets and attachments, to it.
+     * The {@link SocketContainer} is keyed on the channels themselves, which
+     * are unaffected by the migration. Channels that fail to migrate are
+     * closed. This method is called on the selector thread only.
+     *
+     * @see #getSelectorRebuilds()
+     */
+    private void rebuildSelector() {
+        Selector oldSelector = selector;
+        Selector newSelector;
+        try {
+            newSelector = openSelector();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Could not open a new selector, keeping the old one", ioe);
+            return;
+        }
+        int migrated = 0;
+        for (SelectionKey key : oldSelector.keys()) {
+            Object attachment = key.attachment();
+            try {
+                if (!key.isValid() || key.channel().keyFor(newSelector) != null) {
+                    continue;
+                }
+                int ops = key.interestOps();
+                key.cancel();
+                key.channel().register(newSelector, ops, attachment);
+                migrated++;
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                LOGGER.log(Level.INFO, "Could not migrate key to the new selector", e);
+                if (attachment instanceof SocketIF
+                        && !defer((SocketIF) attachment, PENDING_CLOSE)) {
+                    closeSocket((SocketIF) attachment);
+                }
+            }
+        }
+        selector = newSelector;
+        try {
+            oldSelector.close();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.INFO, "IOE while closing old selector", ioe);
+        }
+        rebuilds.incrementAndGet();
+        LOGGER.log(Level.INFO, "Selector rebuilt, migrated {0} keys", migrated);
+    }
+
+    /**
+     * Returns the number of times the underlying {@link Selector} was rebuilt
+     * due to select() spinning (returning prematurely without any selected
+     * keys).
+     *
+     * @return the number of selector rebuilds so far
+     */
+    public long getSelectorRebuilds() {
+        return rebuilds.get();
+    }
+
+    /**
+     * Returns the number of times a socket could not be written to or
+     * flushed completely as its channel's send buffer was full. Each of these
+     * leaves OP_WRITE armed on the socket's key, resuming the write on the
+     * next writability event instead of spinning on the channel.
+     *
+     * @return the number of incomplete writes so far
+     */
+    public long getWriteRetries() {
+        return writeRetries.get();
+    }
+
+    /**
+     * Returns the number of times this selector has selected its keys,
+     * whether blocking in select() or not. Dividing the bytes transferred by
+     * this gives the work done per select() call, which the read budget and
+     * the gathering writes raise.
+     *
+     * @return the number of selects so far
+     */
+    public long getSelects() {
+        return selects.get();
+    }
+
+    /**
+     * Returns the {@link TaskWorker} running the SSLEngine tasks of the
+     * sockets of this selector, e.g. to monitor its queueing delay, see
+     * {@link TaskWorker#getQueueDelayUS()}.
+     *
+     * @return the TaskWorker of this selector, or null if SSLEngine tasks are
+     * run on the selector thread
+     */
+    public TaskWorker getTaskWorker() {
+        return taskWorker;
+    }
+
+    /**
+     * Returns the {@link CryptoWorker} wrapping and unwrapping the application
+     * data of the secure sockets of this selector, e.g. to monitor its
+     * queueing delay, see {@link CryptoWorker#getQueueDelayUS()}.
+     *
+     * @return the CryptoWorker of this selector, or null if application data
+     * is wrapped and unwrapped on the selector thread
+     */
+    public CryptoWorker getCryptoWorker() {
+        return crypto;
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the sockets of
+     * this selector that resumed a cached session, see
+     * {@link SocketIF#isSessionResumed()}.
+     *
+     * @return the number of abbreviated handshakes so far
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the sockets of
+     * this selector that negotiated a new session.
+     *
+     * @return the number of full handshakes so far
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns the lag (ms) of this selector's thread, i.e. how late events
+     * and changes are being handled. While the thread is busy, this is the
+     * time since it last returned from select(). While it is parked in
+     * select(), nothing is waiting on it and the lag is 0, no matter how
+     * long it was busy before parking. An overloaded thread rarely parks, so
+     * its lag is seen by whoever samples it.
+     *
+     * @return the current lag (ms) of this selector's thread
+     */
+    public long getLoopLagMS() {
+        long since = busySince;
+        if (since == 0) {
+            return 0;
+        }
+        return (System.nanoTime() - since) / 1000000;
+    }
+
+    /**
+     * Returns the {@link Configuration} this selector was created with.
+     *
+     * @return the Configuration of this selector
+     */
+    public Configuration getConfiguration() {
+        return this.config;
+    }
+
+    /**
+     * Any pending {@link ChangeRequest}s are processed via this method, in the
+     * {@link AbstractSelector} thread. There is an option to process everything
+     * at once, once this method is called, or to process a part of changes
+     * queued. In the first case, care should be taken that the queued changes
+     * are not so many that the main thread cannot return to the select() fast
+     * enough to process a large number of connections or data reads. In the
+     * second case, care should be taken that sufficiently many changes are
+     * processed in time, such that the change queue does not grow too large
+     * and/or remotely connected systems timeout (and potentially fail) due to
+     * our inactivity to process changes fast enough.
+     *
+     * @param processAll Whether or not to process all changes in a single pass
+     *
+     * @see ChangeRequest
+     */
+    private void processChanges() {
+        int changeCount = 0;
+        ChangeRequest change;
+        // Changes are consumed in a FIFO fashion, only by this thread. Changes
+        // queued while we are processing are picked up in this same pass.
+        while ((change = pendingChanges.poll()) != null) {
+            SelectionKey key;
+            switch (change.getType()) {
+                // The request concerns switching the interestOps of a key
+                // associated with a particular socket
+                case ChangeRequest.TYPE_OPS:
+                    changeOps(change.getChannel(), change.getOps());
+                    break;
+                // The request concerns an SSLEngineTask that has just
+                // finished running on the TaskWorker thread
+                case ChangeRequest.TYPE_TASK:
+                    if (!defer(change.getChannel(), PENDING_TASK)) {
+                        taskCompleted(change.getChannel());
+                    }
+                    break;
+                case ChangeRequest.TYPE_TIMEOUT:
+                    // The timeout has expired on the given socket.
+                    // As such, the socket needs to be closed
+                    if (!defer(change.getChannel(), PENDING_TIMEOUT)) {
+                        LOGGER.config("Timeout expired");
+                        closeSocket(change.getChannel());
+                    }
+                    break;
+                case ChangeRequest.TYPE_SESSION:
+                    if (!defer(change.getChannel(), PENDING_SESSION)) {
+                        sessionInvalidated(change.getChannel());
+                    }
+                    break;
+                case ChangeRequest.TYPE_REGISTER:
+                    // A socket accepted on another thread has been handed
+                    // to this selector, register it and start tracking it.
+                    // Data sent meanwhile may have been marked for writing
+                    // before the socket was registered, catch up on it.
+                    try {
+                        int ops = change.getOps();
+                        if (!change.getChannel().handshakePending()
+                                && dataExists(change.getChannel())) {
+                            ops |= SelectionKey.OP_WRITE;
+                        }
+                        change.getChannel().register(selector, ops);
+                        container.addSocket(change.getChannel().getSocket(),
+                                change.getChannel());
+                    } catch (ClosedChannelException cce) {
+                        // The remote disconnected before we got the chance
+                        // to register the socket, nothing to do but clean up
+                        LOGGER.log(Level.INFO, "Channel closed before registration", cce);
+                        closeSocket(change.getChannel());
+                    }
+                    break;
+                case ChangeRequest.TYPE_ACCEPT:
+                    // Accepting was paused by admission control, resume
+                    resumeAccept();
+            }
+            changeCount++;
+            if (!processAll && changeCount >= maxChanges) {
+                // processed the changes we were asked to. Break from the 
+                // loop leaving the rest of changes queued. They will be
+                // processed in a subsequent iteration.
+                return;
+            }
+        }
+        // Then process the operations marked pending on sockets, each socket
+        // counting as a single change no matter how many operations were
+        // marked on it
+        SocketIF socket;
+        while ((socket = dirtySockets.poll()) != null) {
+            int pending = socket.takePending();
+            if ((pending & PENDING_CRYPTO) != 0) {
+                // Handed back by the CryptoWorker, catch up on everything
+                // marked pending on it meanwhile
+                Integer deferred = offloaded.remove(socket);
+                resume(socket, (deferred == null) ? pending : pending | deferred);
+            } else if (defer(socket, pending)) {
+                // Still offloaded, processed once handed back
+            } else if ((pending & PENDING_TIMEOUT) != 0) {
+                // Closing the socket supersedes anything else pending on it
+                LOGGER.config("Timeout expired");
+                closeSocket(socket);
+            } else {
+                if ((pending & PENDING_SESSION) != 0) {
+                    sessionInvalidated(socket);
+                }
+                if ((pending & PENDING_TASK) != 0) {
+                    taskCompleted(socket);
+                }
+                if ((pending & PENDING_WRITE) != 0) {
+                    armWrite(socket);
+                }
+                if ((pending & PENDING_READ) != 0) {
+                    resumeReading(socket);
+                }
+            }
+            changeCount++;
+            if (!processAll && changeCount >= maxChanges) {
+                return;
+            }
+        }
+        // All pending changes have been processed at this point. NOTE: if the
+        // pending changes to be processed are too many, this can cause the
+        // selecting thread to start refusing connections. It could in this
+        // case be better to not process everything at once, but rather process
+        // them one at a time
+    }
+
+    /**
+     * Defer the given operations marked pending on the given socket, if the
+     * socket is currently offloaded to the {@link CryptoWorker}. They are
+     * processed once the socket is handed back, see
+     * {@link #resume(SocketIF, int)}.
+     *
+     * @param socket The socket the operations are pending on
+     * @param pending The pending operations, PENDING_* bits
+     * @return true if the operations were deferred, false if the socket is
+     * not offloaded and they should be processed right away
+     */
+    private boolean defer(SocketIF socket, int pending) {
+        if (offloaded.isEmpty()) {
+            return false;
+        }
+        Integer deferred = offloaded.get(socket);
+        if (deferred == null) {
+            return false;
+        }
+        offloaded.put(socket, deferred | pending);
+        return true;
+    }
+
+    /**
+     * Resume servicing a socket handed back by the {@link CryptoWorker}, see
+     * {@link ChangeRequest#TYPE_CRYPTO}. The socket is closed if it needs to
+     * be; otherwise, the interest of its key is resumed, with OP_WRITE if
+     * data is left to be written, and the operations deferred while it was
+     * offloaded are processed.
+     *
+     * @param socket The socket handed back
+     * @param pending The operations pending on the socket, PENDING_* bits
+     */
+    private void resume(SocketIF socket, int pending) {
+        if ((pending & (PENDING_CLOSE | PENDING_TIMEOUT)) != 0
+                || !socket.getSocket().isOpen()) {
+            if ((pending & PENDING_TIMEOUT) != 0) {
+                LOGGER.config("Timeout expired");
+            }
+            closeSocket(socket);
+            return;
+        }
+        armRead(socket, ((pending & PENDING_WRITE) != 0)
+                ? SelectionKey.OP_WRITE : 0);
+        if ((pending & PENDING_READ) != 0) {
+            readBuffered(socket);
+        }
+        if ((pending & PENDING_SESSION) != 0) {
+            sessionInvalidated(socket);
+        }
+        if ((pending & PENDING_TASK) != 0) {
+            taskCompleted(socket);
+        }
+    }
+
+    /**
+     * Set the interestOps of the key of the given socket to the given
+     * operations along with OP_READ, unless the packet worker is
+     * backpressured. Reading from the socket is paused in that case, until
+     * the packet worker has caught up, see {@link #backpressureRelieved()}.
+     *
+     * @param socket The socket whose interestOps to set
+     * @param ops The interestOps to set, other than OP_READ
+     */
+    private void armRead(SocketIF socket, int ops) {
+        SelectionKey key = socket.getSocket().keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (!packetWorker.isBackpressured()) {
+            key.interestOps(ops | SelectionKey.OP_READ);
+            return;
+        }
+        key.interestOps(ops);
+        paused.add(socket);
+        if (!packetWorker.isBackpressured()) {
+            // The packet worker caught up meanwhile, possibly before the
+            // socket was paused
+            markPending(socket, PENDING_READ);
+        }
+    }
+
+    /**
+     * Arm OP_WRITE on the key of the given socket, as data has been queued on
+     * it, keeping OP_READ armed along with it, so that the socket keeps being
+     * read from while its queue drains. OP_READ is only left out while the
+     * packet worker is backpressured, see {@link #armRead(SocketIF, int)}. If
+     * the socket is offloaded to the {@link CryptoWorker}, this is deferred
+     * until it is handed back.
+     *
+     * @param socket The socket data has been queued on
+     */
+    private void armWrite(SocketIF socket) {
+        if (defer(socket, PENDING_WRITE)) {
+            return;
+        }
+        armRead(socket, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Resume reading from a socket paused while the packet worker was
+     * backpressured, unless it still is, or that stopped reading with input
+     * left buffered in it.
+     *
+     * @param socket The socket to resume reading from
+     */
+    private void resumeReading(SocketIF socket) {
+        SelectionKey key = socket.getSocket().keyFor(selector);
+        if (key != null && key.isValid()) {
+            armRead(socket, key.interestOps() & ~SelectionKey.OP_READ);
+            readBuffered(socket);
+        }
+    }
+
+    /**
+     * Read the input left buffered in the given socket, see
+     * {@link SocketIF#hasBufferedInput()}, as no selection of its key reports
+     * it. Established secure sockets are offloaded to the
+     * {@link CryptoWorker}, if any.
+     *
+     * @param socket The socket to read from
+     */
+    private void readBuffered(SocketIF socket) {
+        SelectionKey key = socket.getSocket().keyFor(selector);
+        if (key == null || !key.isValid() || !socket.hasBufferedInput()
+                || packetWorker.isBackpressured()) {
+            return;
+        }
+        if (crypto != null && !socket.handshakePending()
+                && offload(key, socket, SelectionKey.OP_READ)) {
+            return;
+        }
+        read(key);
+    }
+
+    /**
+     * Switch the interestOps of the key of the given socket, see
+     * {@link ChangeRequest#TYPE_OPS}. If the socket is offloaded to the
+     * {@link CryptoWorker}, its interest is left suspended and a switch to
+     * OP_WRITE is deferred until it is handed back.
+     *
+     * @param socket The socket whose interestOps to switch
+     * @param ops The new interestOps
+     */
+    private void changeOps(SocketIF socket, int ops) {
+        if (defer(socket, ((ops & SelectionKey.OP_WRITE) != 0) ? PENDING_WRITE : 0)) {
+            return;
+        }
+        SelectionKey key = socket.getSocket().keyFor(selector);
+        // At this point we might get a CancelledKeyException if
+        // we are trying to set the interestOps on a key that has
+        // been previously been cancelled. Check if it is valid
+        // before changing the interestOps;
+        // It can also be the case that the the socket has already been
+        // unregistered with the selector, thus having a null key. In this
+        // case, we do not need to process anything regarding that socket
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Resume processing the SSL/TLS handshake of the given socket, once an
+     * SSLEngine task has finished running on the TaskWorker thread, see
+     * {@link ChangeRequest#TYPE_TASK}.
+     *
+     * @param socket The socket whose SSLEngine task has finished
+     */
+    private void taskCompleted(SocketIF socket) {
+        // At this point, we need to resume processing the
+        // SSL/TLS handshake on the associated socket, unless it
+        // has been closed (and its buffers released) meanwhile.
+        if (!socket.getSocket().isOpen()) {
+            return;
+        }
+        try {
+            // First update the result of the finished task
+            socket.updateResult();
+            // Then continue processing the handshake
+            // TODO, processHandshake can be merged with
+            // inithandshake
+            socket.processHandshake();
+            flushPending(socket);
+        } catch (IOException ioe) {
+            // At this point, the handshake is NOT completed.
+            // Drop the socket.
+            LOGGER.log(Level.INFO, "IOE after task", ioe);
+            closeSocket(socket);
+        }
+    }
+
+    /**
+     * Re-initiate handshaking on the given socket, once its SSL/TLS session
+     * has been invalidated, see {@link ChangeRequest#TYPE_SESSION}.
+     *
+     * @param socket The socket whose session has been invalidated
+     */
+    private void sessionInvalidated(SocketIF socket) {
+        if (!socket.getSocket().isOpen()) {
+            return;
+        }
+        try {
+            socket.initHandshake();
+            flushPending(socket);
+        } catch (IOException ioe) {
+            // At this point, the handshake is NOT completed.
+            // Drop the socket.
+            LOGGER.log(Level.INFO, "IOE while initializing handshake", ioe);
+            closeSocket(socket);
+        }
+    }
+
+    /**
+     * Initialize a connection. This method is up to the server or client
+     * implementations to implement, but at the minimum it should set
+     * implemented channels to non-blocking, and set-up any SSL/TLS
+     * configuration if necessary.
+     *
+     * @throws IOException Propagates all underlying IOExceptions as thrown, to
+     * be handled by the application layer.
+     *
+     * @see AbstractSelector#run()
+     */
+    protected abstract void initConnection() throws IOException;
+
+    /**
+     * Resume accepting incoming connections, once paused by admission control.
+     * Called on the selector thread upon a {@link ChangeRequest#TYPE_ACCEPT}
+     * change. This implementation does nothing, as only selectors owning a
+     * listener accept connections.
+     */
+    protected void resumeAccept() {
+        // Nothing to resume
+    }
+
+    /**
+     * Should accept incoming connections and bind new non-blocking
+     * {@link SocketIF} instances to them. If the server implementation is using
+     * SSL/TLS, it should also set up the {@link SSLEngine}, to be used.
+     *
+     * @param key The selection key with the underlying {@link SocketChannel} to
+     * be accepted
+     *
+     * @see AbstractSelector#run()
+     */
+    protected abstract void accept(SelectionKey key);
+
+    /**
+     * Should finish the connection to the server. This method should also
+     * instantiate an SSLEngine handshake if the underlying {@link SocketIF} is
+     * a secure socket. Finally, after the connection has been established, the
+     * socket should be registered to the underlying {@link Selector}, with a
+     * {@link SelectionKey} of OP_READ, signalling it is ready to read data.
+     *
+     * @param key The selection key with the underlying {@link SocketChannel}
+     * that needs a connection finalization.
+     */
+    protected abstract void connect(SelectionKey key);
+
+    /**
+     * Writes data to the socket associated with the given {@link SelectionKey}.
+     * This method is ONLY called once we have set the {@link SelectionKey}
+     * associated with the socket to OP_WRITE. It tries to write as much data as
+     * possible before returning, gathering as many queued buffers as allowed
+     * by the selector.write_max_buffers and selector.write_max_bytes
+     * properties in each (vectored) write. Once there is no more data to be
+     * written on this socket, it sets the {@link SelectionKey} to OP_READ,
+     * disallowing any further calls to this method until more data is
+     * available.
+     *
+     * @param key The SelectionKey whose associated socket we should write on
+     *
+     * @see #processChanges()
+     * @see #send(ch.dermitza.securenio.socket.SocketIF, java.nio.ByteBuffer)
+     */
+    protected void write(SelectionKey key) {
+        SocketIF socketChannel = (SocketIF) key.attachment();
+        int result = writeSocket(socketChannel, writeBuffers);
+        if (result == WRITE_FAILED) {
+            closeSocket(socketChannel);
+        } else if (result == WRITE_DONE) {
+            // We wrote away all data, so we're no longer interested
+            // in writing on this socket. Switch back to waiting for
+            // data. Data queued after this point comes with its own
+            // change request, switching back to OP_WRITE.
+            armRead(socketChannel, 0);
+        }
+        // Otherwise resume on the next writability event, OP_WRITE stays armed
+    }
+
+    /**
+     * Write the data queued on the given socket, as described in
+     * {@link #write(SelectionKey)}, using the given array to gather the
+     * queued buffers. This is called on the selector thread, or on a lane of
+     * the {@link CryptoWorker} for offloaded sockets, and never closes the
+     * socket itself.
+     *
+     * @param socketChannel The socket to write on
+     * @param writeBuffers The array to gather the queued buffers in
+     * @return WRITE_DONE if all data was written, WRITE_INCOMPLETE if the
+     * socket's channel filled up before that, WRITE_FAILED if the socket
+     * needs to be closed
+     */
+    private int writeSocket(SocketIF socketChannel, ByteBuffer[] writeBuffers) {
+        OutboundQueue queue = socketChannel.getOutboundQueue();
+
+        // Data the socket could not flush last time goes first
+        boolean flushed;
+        try {
+            flushed = socketChannel.flush();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.INFO, "IOE while flushing", ioe);
+            return WRITE_FAILED;
+        }
+        if (!flushed) {
+            // Still full, keep OP_WRITE armed
+            writeRetries.incrementAndGet();
+            return WRITE_INCOMPLETE;
+        }
+        if (socketChannel.handshakePending()) {
+            // Only the handshake was waiting on the channel, application
+            // data is written once it completes
+            return WRITE_DONE;
+        }
+
+        // Write until there's not more data ...
+        int count;
+        while ((count = queue.gather(writeBuffers, writeMaxBytes)) > 0) {
+            long before = 0;
+            for (int i = 0; i < count; i++) {
+                before += writeBuffers[i].remaining();
+            }
+            try {
+                long written = socketChannel.write(writeBuffers, 0, count);
+                LOGGER.log(Level.FINEST, "Written {0} bytes", written);
+            } catch (IOException ioe) {
+                // If a IOE happens when writing, something really bad
+                // happened (generally). Close the socket where the write
+                // was happening
+                LOGGER.log(Level.INFO, "IOE while writing", ioe);
+                Arrays.fill(writeBuffers, 0, count, null);
+                return WRITE_FAILED;
+            }
+            // Remove all fully written buffers from the queue
+            int done = 0;
+            while (done < count && !writeBuffers[done].hasRemaining()) {
+                queue.remove();
+                done++;
+            }
+            long after = 0;
+            for (int i = done; i < count; i++) {
+                after += writeBuffers[i].remaining();
+            }
+            queue.written(before - after);
+            // Do not hold on to the written buffers
+            Arrays.fill(writeBuffers, 0, count, null);
+            if (done < count) {
+                // ... or the socket's buffer fills up
+                break;
+            }
+        }
+        try {
+            // A secure socket may hold records it could not flush yet
+            flushed = socketChannel.flush();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.INFO, "IOE while flushing", ioe);
+            return WRITE_FAILED;
+        }
+
+        long queued = queue.getBytes();
+        if (queued <= lowWatermark && queue.setWritable(true)) {
+            fireWritabilityChanged(socketChannel, true);
+        }
+        if (queued <= hardLimit) {
+            // The remote peer caught up in time
+            cancelEviction(queue);
+        }
+
+        if (!queue.isEmpty() || !flushed) {
+            writeRetries.incrementAndGet();
+            return WRITE_INCOMPLETE;
+        }
+        return WRITE_DONE;
+    }
+
+    /**
+     * Reads data from the socket associated with the given
+     * {@link SelectionKey}. This method is called as soon as data is ready to
+     * be read. It keeps reading until the socket has no more data available,
+     * the selector.read_budget (bytes) of this key is spent, or the underlying
+     * {@link AbstractPacketWorker} signals backpressure, handing bytes read to
+     * the underlying {@link AbstractPacketWorker} for reconstruction and
+     * further processing. While the packet worker is backpressured, OP_READ is
+     * cleared from the key until the worker has caught up, see
+     * {@link #backpressureRelieved()}. The budget prevents a single busy socket from
+     * starving all other sockets of this selector. It also handles potential socket disconnections
+     * and/or errors, upon which, it makes a best effort to close the socket
+     * cleanly.
+     *
+     * @param key The SelectionKey whose associated socket we should read from
+     *
+     * @see AbstractPacketWorker#addData(SocketIF, ByteBuffer, int)
+     * @see #closeSocket(ch.dermitza.securenio.socket.SocketIF)
+     */
+    protected void read(SelectionKey key) {
+        SocketIF socketChannel = (SocketIF) key.attachment();
+        if (!readSocket(socketChannel, readBuffer)) {
+            closeSocket(socketChannel);
+            return;
+        }
+        if (packetWorker.isBackpressured()) {
+            // Stop reading until the packet worker catches up
+            armRead(socketChannel, key.interestOps() & ~SelectionKey.OP_READ);
+        } else if (socketChannel.hasBufferedInput()) {
+            // The read budget is spent with input left in the socket, which
+            // no selection of its key reports, read it in the next pass
+            markPending(socketChannel, PENDING_READ);
+        }
+        // Reading may have progressed the handshake, flush its records
+        flushPending(socketChannel);
+    }
+
+    /**
+     * Read from the given socket into the given buffer, as described in
+     * {@link #read(SelectionKey)}. This is called on the selector thread, or
+     * on a lane of the {@link CryptoWorker} for offloaded sockets, and never
+     * closes the socket itself.
+     *
+     * @param socketChannel The socket to read from
+     * @param readBuffer The buffer to read into
+     * @return true if the socket is still open, false if the remote
+     * disconnected or reading failed and the socket needs to be closed
+     */
+    private boolean readSocket(SocketIF socketChannel, ByteBuffer readBuffer) {
+        // Keep reading until the channel is drained, the read budget of this
+        // key is spent, or the packet worker cannot keep up
+        int budget = readBudget;
+        int numRead;
+        while (budget > 0 && !packetWorker.isBackpressured()) {
+            // Clear out our read buffer so it's ready for new data
+            readBuffer.clear();
+
+            // Attempt to read off the channel
+            try {
+                numRead = socketChannel.read(readBuffer);
+                LOGGER.log(Level.FINEST, "Read {0} bytes", numRead);
+            } catch (IOException ioe) {
+                // The remote forcibly closed the connection, cancel
+                // the selection key and close the channel.
+                // Closing the channel automatically cancels the key
+                // TODO, recover the IP here
+                LOGGER.log(Level.INFO, "Remote forcibly disconnected", ioe);
+                return false;
+            } catch (BufferOverflowException boe) {
+                // Can be thrown during read from a secure socket, if growing
+                // its buffers to the session sizes did not resolve an overflow
+                LOGGER.log(Level.INFO, "BufferOverflowException while reading", boe);
+                return false;
+            }
+
+            if (numRead == -1) {
+                // Remote entity shut the socket down cleanly. Do the
+                // same from our end and cancel the channel.
+                // Closing the channel automatically cancels the key
+                // TODO, recover the IP here
+                LOGGER.config("Remote disconnected");
+                return false;
+            }
+
+            if (numRead == 0) {
+                // The channel is drained
+                break;
+            }
+            // Here we have a bytebuffer with some data on a SocketChannel
+            // We need to construct a packet and then fire the listener methods
+            // this happens in the worker thread
+            packetWorker.addData(socketChannel, readBuffer, numRead);
+            budget -= numRead;
+        }
+        return true;
+    }
+
+    /**
+     * Flush the data the given socket holds internally (e.g. the records of
+     * its SSL/TLS handshake), arming OP_WRITE on its key if it could not be
+     * flushed completely, so that flushing (and the handshake) resumes once
+     * the socket's channel becomes writable, see {@link #write(SelectionKey)}.
+     * OP_READ stays armed meanwhile, see {@link #armWrite(SocketIF)}.
+     *
+     * @param socket The socket to flush
+     */
+    private void flushPending(SocketIF socket) {
+        if (!socket.getSocket().isOpen()) {
+            return;
+        }
+        try {
+            if (!socket.flush()) {
+                writeRetries.incrementAndGet();
+                armWrite(socket);
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.INFO, "IOE while flushing", ioe);
+            closeSocket(socket);
+        }
+    }
+
+    /**
+     * Closes the given {@link SocketIF}. In doing that, it also removes any
+     * potentially queued {@link ChangeRequest}s not yet processed on that
      * socket, and also removes the socket from the underlying
      * {@link SocketContainer}.
      *
-     * TODO: Only pending data is being removed. A correct implementation would
-     * also remove all other pendingChanges instances. Alternatively, we should
-     * check for closed sockets when processing changes
+     * TODO: Only the outbound queue of the socket is being cleared. A correct
+     * implementation would also remove all other pendingChanges instances.
+     * Alternatively, we should check for closed sockets when processing changes
      * ({@link #processChanges()}) and not perform any changes if the socket is
      * closed.
      *
@@ -778,15 +2024,11 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
                 }
             } finally {
                 // remove all pending bytebuffers registered to be sent through this
-                // socket in pendingData
-                synchronized (this.pendingData) {
-                    List<ByteBuffer> queue = this.pendingData.get(socket.getSocket());
-                    // clear the queue if it is not empty
-                    if (queue != null && !queue.isEmpty()) {
-                        queue.clear();
-                    }
-                    // remove the socket reference from pendingData
-                    pendingData.remove(socket.getSocket());
+                // socket
+                cancelEviction(socket.getOutboundQueue());
+                socket.getOutboundQueue().clear();
+                if (!paused.isEmpty()) {
+                    paused.remove(socket);
                 }
                 // remove the reference from the container
                 container.removeSocket(socket.getSocket());
@@ -832,35 +2074,31 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      */
     protected void shutdown() {
         LOGGER.config("Shutting down..");
-        // Close the packetworker
-        if (packetWorker.isRunning()) {
-            packetWorker.setRunning(false);
-        }
-        // Close the taskWorker
-        if (!singleThreaded) {
-            if (taskWorker.isRunning()) {
-                taskWorker.setRunning(false);
-            }
-        }
-        // Cancel all pending timeouts
-        if (toWorker.isRunning()) {
-            toWorker.setRunning(false);
+        // Stop the packetworker, taskWorker and timeoutWorker
+        stopWorkers();
+        // Wait for the sockets handed to the crypto lanes, so that none is
+        // in use by a lane once closed
+        if (crypto != null) {
+            crypto.shutdown();
         }
+        offloaded.clear();
         // Close all channels registered with the selector
         // This automatically invalidates the keys, so we dont
         // need to invalidate them ourselves
         Set<SelectionKey> keys = selector.keys();
         for (SelectionKey key : keys) {
             if (key.channel().isOpen()) {
-                closeSocket(container.getSocket(key.channel()));
+                closeSocket((SocketIF) key.attachment());
             }
         }
         // After all sockets are closed, clear pending changes.
         // Pending data associated with the sockets has already been invalidated
         // by the closeSocket() method
-        synchronized (this.pendingChanges) {
-            pendingChanges.clear();
-        }
+        pendingChanges.clear();
+        dirtySockets.clear();
+        paused.clear();
+        packetWorker.removeBackpressureListener(this);
+        BufferPool.release(readBuffer);
         // Close the selector too
         try {
             selector.close();
@@ -871,34 +2109,67 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
     //----------------------- CHANGES METHODS -------------------------------//
 
     /**
-     * Unused future clean-up implementation TODO
+     * Queue a {@link ChangeRequest} to be processed in the
+     * {@link AbstractSelector} thread and wake the selecting thread up so it
+     * can make the required changes. If the selector has not been opened yet,
+     * the change is processed as soon as the selector thread starts.
      *
-     * @param changeRequest
+     * @param changeRequest The ChangeRequest to queue
+     *
+     * @see #processChanges()
      */
-    private void queueChangeRequest(ChangeRequest changeRequest) {
-        // Queue the ChangeRequest
-        synchronized (this.pendingChanges) {
-            pendingChanges.add(changeRequest);
-        }
+    protected void queueChangeRequest(ChangeRequest changeRequest) {
+        // Queue the ChangeRequest, this is lock-free
+        pendingChanges.add(changeRequest);
         // And wake up the selecting thread so it can make the required changes
-        this.selector.wakeup();
+        wakeup();
     }
 
     /**
-     * Unused future clean-up implementation TODO
+     * Mark the given operations as pending on the given socket, to be
+     * processed in the {@link AbstractSelector} thread. The socket is only
+     * queued (and the selecting thread only woken up) if no operations were
+     * pending on it yet, so that any number of operations marked on a socket
+     * before the selecting thread gets to it cost a single queue entry and a
+     * single interest change, see {@link SocketIF#markPending(int)}.
      *
-     * @param changeRequest
+     * @param socket The socket to mark the operations on
+     * @param ops The operations to mark, PENDING_* bits
+     *
+     * @see #processChanges()
      */
-    private boolean dataExists(SocketIF socket) {
-        // Check if data exists for the socket supplied to us
-        synchronized (this.pendingData) {
-            List<ByteBuffer> queue = this.pendingData.get(socket.getSocket());
-            // There is no data to be written, we do not need to register
-            return !(queue == null || queue.isEmpty());
-            // for writing, we can just return.
+    private void markPending(SocketIF socket, int ops) {
+        if (socket.markPending(ops)) {
+            dirtySockets.add(socket);
+            wakeup();
+        }
+    }
+
+    /**
+     * Wake the selecting thread up, if and only if it is parked (or about to
+     * park) in select(). Only the first of any number of concurrent callers
+     * issues the (costly) {@link Selector#wakeup()} call, all others return
+     * immediately; calls made from the selector thread itself never issue it.
+     */
+    private void wakeup() {
+        if (wakeupNeeded.compareAndSet(true, false)) {
+            Selector sel = this.selector;
+            if (sel != null) {
+                sel.wakeup();
+            }
         }
     }
 
+    /**
+     * Check whether data is queued to be written on the given socket.
+     *
+     * @param socket The socket to check for queued data
+     * @return true if data is queued in the socket's {@link OutboundQueue}
+     */
+    private boolean dataExists(SocketIF socket) {
+        return !socket.getOutboundQueue().isEmpty();
+    }
+
     //----------------------- LISTENER METHODS -------------------------------//
     /**
      * The timeout on this socket has expired. We need to close the socket. As
@@ -909,11 +2180,23 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      */
     @Override
     public void timeoutExpired(SocketIF socket) {
-        synchronized (this.pendingChanges) {
-            pendingChanges.add(new ChangeRequest(socket, ChangeRequest.TYPE_TIMEOUT, 0));
+        // Queue the change and wake up our selecting thread so it can make the
+        // required changes
+        markPending(socket, PENDING_TIMEOUT);
+    }
+
+    /**
+     * The packet worker has caught up on the data handed to it, resume
+     * reading from the sockets paused while it was backpressured. As this is
+     * called from the packet worker thread, reading is resumed via the
+     * pending operations of each socket.
+     */
+    @Override
+    public void backpressureRelieved() {
+        SocketIF socket;
+        while ((socket = paused.poll()) != null) {
+            markPending(socket, PENDING_READ);
         }
-        // Finally, wake up our selecting thread so it can make the required changes
-        this.selector.wakeup();
     }
 
     /**
@@ -932,11 +2215,7 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
         // socket is ready to continue immediately. Since this method is called
         // from the TaskWorker thread, we need to queue a request for continuing
         // to process the handshake
-        synchronized (this.pendingChanges) {
-            pendingChanges.add(new ChangeRequest(socket, ChangeRequest.TYPE_TASK, 0));
-        }
-        // Finally, wake up our selecting thread so it can make the required changes
-        this.selector.wakeup();
+        markPending(socket, PENDING_TASK);
     }
 
     // @Override
@@ -956,22 +2235,79 @@ public abstract class AbstractSelector implements Runnable, TaskListener, Handsh
      */
     @Override
     public void handshakeComplete(SocketIF socket) {
-        synchronized (this.pendingData) {
-            List<ByteBuffer> queue = this.pendingData.get(socket.getSocket());
-            if (queue == null || queue.isEmpty()) {
-                // There is no data to be written, we do not need to register
-                // for writing, we can just return.
+        if (socket.isSessionResumed()) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+        if (!dataExists(socket)) {
+            // There is no data to be written, we do not need to register
+            // for writing, we can just return.
+            return;
+        }
+        // Data exists, we need to register for writing
+        markPending(socket, PENDING_WRITE);
+    }
+
+    /**
+     * Cancel the slow consumer eviction {@link Timeout} armed on the given
+     * {@link OutboundQueue}, if any.
+     *
+     * @param queue The OutboundQueue whose eviction timeout to cancel
+     */
+    private void cancelEviction(OutboundQueue queue) {
+        Timeout eviction = queue.disarmEviction();
+        if (eviction != null && !eviction.hasExpired()) {
+            toWorker.cancel(eviction);
+        }
+    }
+
+    /**
+     * Allows registration of multiple {@link WritabilityListener}s to this
+     * {@link AbstractSelector}.
+     *
+     * @param listener The listener to register to this AbstractSelector
+     */
+    public void addWritabilityListener(WritabilityListener listener) {
+        synchronized (wListeners) {
+            wListeners.add(listener);
+        }
+    }
+
+    /**
+     * Allows de-registration of multiple {@link WritabilityListener}s from
+     * this {@link AbstractSelector}.
+     *
+     * @param listener The listener to unregister from this AbstractSelector
+     */
+    public void removeWritabilityListener(WritabilityListener listener) {
+        synchronized (wListeners) {
+            wListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Once the writability of a {@link SocketIF} has changed, registered
+     * listeners are notified via this method. This method creates a local copy
+     * of the already registered listeners when firing events, to avoid
+     * potential concurrent modification exceptions.
+     *
+     * @param socket The SocketIF whose writability has changed
+     * @param writable Whether the SocketIF became writable or unwritable
+     *
+     * @see WritabilityListener#writabilityChanged(SocketIF, boolean)
+     */
+    protected void fireWritabilityChanged(SocketIF socket, boolean writable) {
+        WritabilityListener[] temp;
+        synchronized (wListeners) {
+            if (wListeners.isEmpty()) {
                 return;
-            } else {
-                // Data exists, we need to register for writing
-                synchronized (this.pendingChanges) {
-                    pendingChanges.add(new ChangeRequest(socket, ChangeRequest.TYPE_OPS, SelectionKey.OP_WRITE));
-                }
             }
+            temp = wListeners.toArray(new WritabilityListener[wListeners.size()]);
+        }
+        for (WritabilityListener listener : temp) {
+            listener.writabilityChanged(socket, writable);
         }
-
-        // Finally, wake up our selecting thread so it can make the required changes
-        this.selector.wakeup();
     }
 
     /**
@@ -0,0 +1,214 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio;
+
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accept-time admission control of a {@link TCPServer}. Before accepting a
+ * connection, the server asks its AdmissionController whether the connection
+ * is admitted via {@link #admit(long)}. A connection is not admitted if:
+ * <ul><li>the server is overloaded, i.e. as many SSL/TLS handshakes as
+ * allowed are in progress, or one of its selector threads lags behind by more
+ * than allowed; or</li><li>the connection rate exceeds the allowed rate,
+ * enforced via a token bucket.</li></ul> If a connection is not admitted, the
+ * server pauses its OP_ACCEPT interest for {@link #getPauseMS()} and leaves
+ * pending connections in the kernel backlog, instead of accepting them only
+ * to time them out later. <p> All limits are read from the server's
+ * {@link Configuration}, and each can be disabled by setting it to zero.
+ * This class is thread-safe, as a server sharding its port accepts on
+ * several threads.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class AdmissionController {
+
+    private final long rate;
+    private final long burst;
+    private final int maxHandshakes;
+    private final long maxLagMS;
+    private final long pauseMS;
+    // Token bucket state, guarded by this
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    // Sockets accepted whose initial handshake is in progress
+    private final ConcurrentHashMap<SocketIF, Boolean> handshakes = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create an AdmissionController using the limits of the default
+     * {@link Configuration}, i.e. of the admission.* properties.
+     */
+    public AdmissionController() {
+        this(Configuration.getDefault());
+    }
+
+    /**
+     * Create an AdmissionController using the limits of the given
+     * {@link Configuration}.
+     *
+     * @param config The Configuration to read the limits from
+     */
+    public AdmissionController(Configuration config) {
+        this(config.getAdmissionRate(), config.getAdmissionBurst(),
+                config.getAdmissionMaxHandshakes(),
+                config.getAdmissionMaxLagMS(), config.getAdmissionPauseMS());
+    }
+
+    /**
+     * Create an AdmissionController using the given limits.
+     *
+     * @param rate The number of connections admitted per second, 0 for no
+     * limit
+     * @param burst The number of connections admitted at once, i.e. the size
+     * of the token bucket
+     * @param maxHandshakes The maximum number of SSL/TLS handshakes in
+     * progress, 0 for no limit
+     * @param maxLagMS The maximum lag (ms) of the server's selector threads,
+     * 0 for no limit
+     * @param pauseMS The time (ms) accepting is paused for, if a connection is
+     * not admitted
+     */
+    public AdmissionController(long rate, long burst, int maxHandshakes,
+            long maxLagMS, long pauseMS) {
+        this.rate = rate;
+        this.burst = Math.max(burst, 1);
+        this.maxHandshakes = maxHandshakes;
+        this.maxLagMS = maxLagMS;
+        this.pauseMS = pauseMS;
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Decide whether the next pending connection is admitted, taking a token
+     * from the token bucket if it is.
+     *
+     * @param lagMS The current lag (ms) of the server's most lagging selector
+     * thread
+     * @return true if the connection is admitted and should be accepted
+     */
+    public boolean admit(long lagMS) {
+        if (isOverloaded(lagMS) || !tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the token taken by a successful {@link #admit(long)} that was
+     * not followed by a connection, as none was pending or accepting it
+     * failed.
+     */
+    public synchronized void refund() {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+
+    /**
+     * Returns whether the server is overloaded, i.e. whether too many
+     * handshakes are in progress or its selector threads lag too far behind.
+     *
+     * @param lagMS The current lag (ms) of the server's most lagging selector
+     * thread
+     * @return true if the server is overloaded
+     */
+    public boolean isOverloaded(long lagMS) {
+        return (maxHandshakes > 0 && handshakes.size() >= maxHandshakes)
+                || (maxLagMS > 0 && lagMS > maxLagMS);
+    }
+
+    /**
+     * Take a token from the token bucket, refilling it first based on the
+     * time elapsed since it was last refilled.
+     *
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    private synchronized boolean tryAcquire() {
+        if (rate <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Called once an SSL/TLS socket has been accepted, before its handshake
+     * starts.
+     *
+     * @param socket The accepted socket
+     */
+    public void handshakeStarted(SocketIF socket) {
+        if (maxHandshakes > 0) {
+            handshakes.put(socket, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Called once the handshake of an accepted socket has completed, or the
+     * socket has been closed. Calling this more than once, or for a socket
+     * whose handshake was not started, has no effect.
+     *
+     * @param socket The accepted socket
+     */
+    public void handshakeFinished(SocketIF socket) {
+        handshakes.remove(socket);
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes currently in progress. This is
+     * only tracked if the number of handshakes is limited.
+     *
+     * @return the number of handshakes in progress
+     */
+    public int getHandshakes() {
+        return handshakes.size();
+    }
+
+    /**
+     * Returns the number of times a connection was not admitted, i.e. the
+     * number of times accepting was paused.
+     *
+     * @return the number of connections not admitted so far
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the time (ms) accepting is paused for, if a connection is not
+     * admitted.
+     *
+     * @return the time (ms) accepting is paused for
+     */
+    public long getPauseMS() {
+        return pauseMS;
+    }
+}
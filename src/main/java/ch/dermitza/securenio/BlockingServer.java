@@ -0,0 +1,704 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio;
+
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.PacketListener;
+import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.packet.worker.PacketWorkerFactory;
+import ch.dermitza.securenio.socket.PlainSocket;
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.socket.secure.HandshakeListener;
+import ch.dermitza.securenio.socket.secure.SecureSocket;
+import ch.dermitza.securenio.socket.timeout.TimeoutListener;
+import ch.dermitza.securenio.socket.timeout.worker.Timeout;
+import ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.Configuration;
+import ch.dermitza.securenio.util.logging.LoggerHandler;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A blocking, thread-per-connection TCP server, as an alternative engine to
+ * the selector-based {@link TCPServer}. <p> Every accepted connection is
+ * serviced by a thread of its own, which performs the SSL/TLS handshake,
+ * reads and unwraps incoming data, reassembles packets and dispatches them to
+ * the registered {@link PacketListener}s inline, without any handoff to a
+ * selector, {@link ch.dermitza.securenio.socket.secure.TaskWorker} or packet
+ * worker thread. Connections use the same {@link PlainSocket} and
+ * {@link SecureSocket} implementations (in blocking mode) and the same
+ * {@link PacketIF} and {@link PacketListener} contracts as the
+ * {@link TCPServer}, so that both engines can be compared under the same
+ * load. As packets are reassembled on the connection thread, each connection
+ * has a packet worker of its own, created by a {@link PacketWorkerFactory}.
+ * <p> Connection threads spend most of their time blocked in reads and are
+ * best run on virtual threads, which are used by default if the JVM supports
+ * them, see {@link Configuration#getVirtualThreads()}. <p> Sending data
+ * blocks the sending thread until the data has been written to the socket.
+ * Sends on the same socket are serialized, and a socket is writable as long
+ * as no other thread is writing to it. A handshake initiated by the peer
+ * after the initial one (renegotiation) is not supported by this engine.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class BlockingServer implements Runnable, SenderIF, HandshakeListener,
+        TimeoutListener {
+
+    private static final Logger LOGGER = LoggerHandler.getLogger(BlockingServer.class.getName());
+    private static final int BUFFER_SIZE = 8192;
+    private final InetAddress address;
+    private final int port;
+    private final PacketWorkerFactory workerFactory;
+    private final boolean usingSSL;
+    private final boolean needClientAuth;
+    private final ThreadFactory threadFactory;
+    private final TimeoutWorker toWorker = new TimeoutWorker();
+    private final ArrayList<PacketListener> listeners = new ArrayList<>();
+    private final ConcurrentHashMap<SocketIF, Connection> connections = new ConcurrentHashMap<>();
+    private ServerSocketChannel ssc;
+    private volatile boolean running = false;
+    private SSLContext context = null;
+    // Handshakes completed, resuming a cached session or not
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    // Grown to the application buffer size of the SSL/TLS session, so that
+    // records are unwrapped straight into the read buffer
+    private int bufferSize = BUFFER_SIZE;
+    // Applied to every SSLEngine, computed once in setupSSL()
+    private SSLParameters sslParameters;
+    private final Configuration config;
+
+    /**
+     * Create a BlockingServer instance using the default
+     * {@link Configuration}. Connections are run on virtual threads if the
+     * blocking.virtual_threads property is set and the JVM supports them, on
+     * platform threads otherwise.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param workerFactory The factory creating the packet worker of each
+     * connection
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     */
+    public BlockingServer(InetAddress address, int port,
+            PacketWorkerFactory workerFactory, boolean usingSSL,
+            boolean needClientAuth) {
+        this(address, port, workerFactory, usingSSL, needClientAuth, null);
+    }
+
+    /**
+     * Create a BlockingServer instance running its connections on threads
+     * created by the given {@link ThreadFactory}.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param workerFactory The factory creating the packet worker of each
+     * connection
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     * @param threadFactory The factory creating the thread of each connection,
+     * or null to use the default threads, see
+     * {@link Configuration#getVirtualThreads()}
+     */
+    public BlockingServer(InetAddress address, int port,
+            PacketWorkerFactory workerFactory, boolean usingSSL,
+            boolean needClientAuth, ThreadFactory threadFactory) {
+        this(address, port, workerFactory, usingSSL, needClientAuth,
+                threadFactory, Configuration.getDefault());
+    }
+
+    /**
+     * Create a BlockingServer instance using the given {@link Configuration},
+     * running its connections on threads created by the given
+     * {@link ThreadFactory}.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param workerFactory The factory creating the packet worker of each
+     * connection
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     * @param threadFactory The factory creating the thread of each connection,
+     * or null to use the default threads, see
+     * {@link Configuration#getVirtualThreads()}
+     * @param config The Configuration of this server
+     */
+    public BlockingServer(InetAddress address, int port,
+            PacketWorkerFactory workerFactory, boolean usingSSL,
+            boolean needClientAuth, ThreadFactory threadFactory,
+            Configuration config) {
+        this.address = address;
+        this.port = port;
+        this.workerFactory = workerFactory;
+        this.usingSSL = usingSSL;
+        this.needClientAuth = needClientAuth;
+        this.config = config;
+        this.threadFactory = (threadFactory == null)
+                ? defaultThreadFactory(config.getVirtualThreads())
+                : threadFactory;
+    }
+
+    /**
+     * Setup and initialize the SSL/TLS required parameters, exactly as
+     * {@link AbstractSelector#setupSSL(String, String, char[], char[])} does
+     * for a {@link TCPServer}.
+     *
+     * @param trustStoreLoc The location of the trustStore on the disk. It is
+     * only required if needClientAuth is true; it can be null otherwise.
+     * @param keyStoreLoc The location of the keyStore on the disk.
+     * @param tsPassPhrase The passphrase to use with the trustStore or null if
+     * the truststore is not required.
+     * @param ksPassPhrase The passphrase to use with the keyStore.
+     */
+    public void setupSSL(String trustStoreLoc, String keyStoreLoc,
+            char[] tsPassPhrase, char[] ksPassPhrase) {
+        if (!usingSSL) {
+            LOGGER.warning("Trying to set SSL parameters with a non-SSL/TLS "
+                    + "server. SSL/TLS was NOT set or initialized.");
+            return;
+        }
+        context = AbstractSelector.createContext(false, needClientAuth,
+                trustStoreLoc, keyStoreLoc, tsPassPhrase, ksPassPhrase);
+        if (context != null) {
+            AbstractSelector.setupSessions(context, config);
+            sslParameters = AbstractSelector.createParameters(context, config,
+                    false, needClientAuth);
+            bufferSize = Math.max(BUFFER_SIZE, context.createSSLEngine()
+                    .getSession().getApplicationBufferSize());
+        }
+    }
+
+    /**
+     * Sets up the server-side {@link SSLEngine} of an accepted connection,
+     * see {@link AbstractSelector#setupEngine(String, int)}.
+     *
+     * @param peerHost The peer host of the socket
+     * @param peerPort The peer port of the socket
+     * @return An initialized and configured SSLEngine ready to be used
+     */
+    private SSLEngine setupEngine(String peerHost, int peerPort) {
+        SSLEngine engine = context.createSSLEngine(peerHost, peerPort);
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(sslParameters);
+        return engine;
+    }
+
+    /**
+     * Returns the {@link ThreadFactory} used if none is given: a factory of
+     * virtual threads if the blocking.virtual_threads property is set and
+     * the JVM supports them, a factory of platform threads otherwise. Virtual
+     * threads are looked up reflectively, as this code also runs on JVMs
+     * predating them.
+     *
+     * @param virtual Whether to use virtual threads where supported
+     * @return the default ThreadFactory for connection threads
+     */
+    private static ThreadFactory defaultThreadFactory(boolean virtual) {
+        if (virtual) {
+            try {
+                // Thread.ofVirtual().name("BlockingConnection-", 0).factory()
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class)
+                        .invoke(builder, "BlockingConnection-", 0L);
+                ThreadFactory factory = (ThreadFactory) builderClass
+                        .getMethod("factory").invoke(builder);
+                LOGGER.config("Using virtual threads");
+                return factory;
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                LOGGER.config("Virtual threads not supported, using platform threads");
+            }
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BlockingConnection-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * The run() method of the {@link BlockingServer}. The server socket is
+     * bound and incoming connections are accepted, each being handed to a new
+     * connection thread, until {@link #setRunning(boolean)} is set to false.
+     */
+    @Override
+    public void run() {
+        running = true;
+        try {
+            LOGGER.config("Creating blocking ServerSocketChannel");
+            ssc = ServerSocketChannel.open();
+            LOGGER.log(Level.CONFIG, "Binding ServerSocket to *:{0}", port);
+            ssc.socket().bind(new InetSocketAddress(address, port),
+                    config.getBacklog());
+            if (usingSSL) {
+                new Thread(toWorker, "TimeoutWorkerThread").start();
+            }
+            while (running) {
+                accept(ssc.accept());
+            }
+        } catch (IOException ioe) {
+            if (running) {
+                LOGGER.log(Level.SEVERE, "IOE in the acceptor, shutting down", ioe);
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Set up an accepted {@link SocketChannel}, bind a new blocking
+     * {@link SocketIF} to it and start the thread servicing it.
+     *
+     * @param socketChannel The accepted SocketChannel
+     */
+    private void accept(SocketChannel socketChannel) {
+        SocketIF socket;
+        String peerHost;
+        int peerPort;
+        try {
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, config.getTCPNoDelay());
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSoSndBuf());
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getSoRcvBuf());
+            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, config.getKeepAlive());
+            socketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, config.getReuseAddress());
+            socketChannel.setOption(StandardSocketOptions.IP_TOS, config.getIPTos());
+            peerHost = socketChannel.socket().getInetAddress().getHostAddress();
+            peerPort = socketChannel.socket().getPort();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.INFO, "IOE accepting the connection", ioe);
+            try {
+                socketChannel.close();
+            } catch (IOException ioe2) {
+                // Nothing more to do
+            }
+            return;
+        }
+        if (usingSSL) {
+            // Delegated tasks run inline, on the connection thread
+            socket = new SecureSocket(socketChannel,
+                    setupEngine(peerHost, peerPort), true, null, toWorker,
+                    this, this, config.getTimeoutMS());
+        } else {
+            socket = new PlainSocket(socketChannel);
+        }
+        Connection connection = new Connection(socket);
+        connections.put(socket, connection);
+        threadFactory.newThread(connection).start();
+        LOGGER.log(Level.CONFIG, "{0}:{1} connected", new Object[]{peerHost, peerPort});
+    }
+
+    /**
+     * Shutdown procedure, called once the acceptor stops. The channels of all
+     * connections are closed, so that their threads stop and clean up.
+     */
+    private void shutdown() {
+        LOGGER.config("Shutting down...");
+        running = false;
+        try {
+            if (ssc != null) {
+                ssc.close();
+            }
+        } catch (IOException ioe) {
+            LOGGER.log(Level.FINEST, "IOE closing the server socket", ioe);
+        }
+        for (SocketIF socket : connections.keySet()) {
+            closeChannel(socket);
+        }
+        if (toWorker.isRunning()) {
+            toWorker.setRunning(false);
+        }
+    }
+
+    /**
+     * Close the underlying {@link SocketChannel} of the given socket only.
+     * This can be called from any thread, and unblocks the connection thread
+     * reading from the socket, which then closes and releases the socket
+     * itself.
+     *
+     * @param socket The socket whose channel should be closed
+     */
+    private void closeChannel(SocketIF socket) {
+        try {
+            socket.getSocket().close();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.FINEST, "IOE closing the channel", ioe);
+        }
+    }
+
+    /**
+     * Send an {@link PacketIF} over the specified {@link SocketIF}, blocking
+     * until it has been written. The packet is dropped if the socket has
+     * already been closed.
+     *
+     * @param sc The SocketIF to send the packet through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     */
+    @Override
+    public void send(SocketIF sc, PacketIF packet) {
+        Connection connection = connections.get(sc);
+        if (connection == null) {
+            return;
+        }
+        connection.writeLock.lock();
+        try {
+            connection.write(packet.toBytes());
+        } finally {
+            connection.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send an {@link PacketIF} over the specified {@link SocketIF}, if and
+     * only if no other thread is currently writing to the socket.
+     *
+     * @param sc The SocketIF to send the packet through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @return true if the packet was written, false if the socket is not
+     * writable or has been closed
+     */
+    @Override
+    public boolean trySend(SocketIF sc, PacketIF packet) {
+        Connection connection = connections.get(sc);
+        if (connection == null || !connection.writeLock.tryLock()) {
+            return false;
+        }
+        try {
+            return connection.write(packet.toBytes());
+        } finally {
+            connection.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send an {@link PacketIF} over the specified {@link SocketIF}, waiting
+     * for at most the given timeout for other threads to finish writing to
+     * the socket.
+     *
+     * @param sc The SocketIF to send the packet through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @param timeoutMS The maximum time to wait (ms) for the socket to become
+     * writable, 0 to wait indefinitely
+     * @return true if the packet was written, false if the timeout elapsed or
+     * the socket has been closed
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
+     */
+    @Override
+    public boolean send(SocketIF sc, PacketIF packet, long timeoutMS)
+            throws InterruptedException {
+        Connection connection = connections.get(sc);
+        if (connection == null) {
+            return false;
+        }
+        if (timeoutMS == 0) {
+            connection.writeLock.lockInterruptibly();
+        } else if (!connection.writeLock.tryLock(timeoutMS, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        try {
+            return connection.write(packet.toBytes());
+        } finally {
+            connection.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of connections currently serviced by this server.
+     *
+     * @return the number of open connections
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the connections
+     * of this server that resumed a cached session.
+     *
+     * @return the number of abbreviated handshakes so far
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the connections
+     * of this server that negotiated a new session.
+     *
+     * @return the number of full handshakes so far
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Check whether the {@link BlockingServer} is running.
+     *
+     * @return true if it is running, false otherwise
+     */
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Set the running status of the {@link BlockingServer}. If the running
+     * status is set to false, the server socket is closed, interrupting the
+     * acceptor so that it cleanly shuts down.
+     *
+     * @param running Whether the BlockingServer should run or not
+     */
+    public void setRunning(boolean running) {
+        this.running = running;
+        if (!running && ssc != null) {
+            try {
+                ssc.close();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINEST, "IOE closing the server socket", ioe);
+            }
+        }
+    }
+
+    /**
+     * The handshake of a connection is driven to completion on the connection
+     * thread before any data is read or sent, so there is nothing to do once
+     * it completes, other than counting whether it resumed a session.
+     *
+     * @param socket The SocketIF that completed the handshake
+     */
+    @Override
+    public void handshakeComplete(SocketIF socket) {
+        if (socket.isSessionResumed()) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+        LOGGER.log(Level.FINEST, "{0} handshake complete",
+                socket.getSocket().socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * A timeout has expired on the given socket. Its channel is closed, which
+     * unblocks the connection thread so that it closes the socket.
+     *
+     * @param socket The SocketIF whose timeout has expired
+     */
+    @Override
+    public void timeoutExpired(SocketIF socket) {
+        closeChannel(socket);
+    }
+
+    //----------------------- LISTENER METHODS -------------------------------//
+    /**
+     * Allows registration of multiple {@link PacketListener}s to this
+     * {@link BlockingServer}. Listeners are called on the thread of the
+     * connection a packet arrived on.
+     *
+     * @param listener The listener to register to this BlockingServer
+     */
+    public void addListener(PacketListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Allows de-registration of multiple {@link PacketListener}s from this
+     * {@link BlockingServer}.
+     *
+     * @param listener The listener to unregister from this BlockingServer
+     */
+    public void removeListener(PacketListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Notify the registered listeners of a reassembled packet. This method
+     * creates a local copy of the already registered listeners when firing
+     * events, to avoid potential concurrent modification exceptions.
+     *
+     * @param socket The SocketIF the packet arrived on
+     * @param packet The reassembled packet
+     */
+    private void fireListeners(SocketIF socket, PacketIF packet) {
+        PacketListener[] temp;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                return;
+            }
+            temp = listeners.toArray(new PacketListener[listeners.size()]);
+        }
+        for (PacketListener listener : temp) {
+            listener.paketArrived(socket, packet);
+        }
+    }
+
+    /**
+     * A connection of this server, serviced by a thread of its own. The
+     * connection thread is the only thread reading from the socket, and
+     * closes and releases the socket once it stops. Writes are serialized
+     * via the write lock of the connection, which the connection thread also
+     * holds while handshaking.
+     */
+    private final class Connection implements Runnable, PacketListener {
+
+        private final SocketIF socket;
+        private final AbstractPacketWorker worker;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        Connection(SocketIF socket) {
+            this.socket = socket;
+            this.worker = workerFactory.newPacketWorker();
+            worker.addListener(this);
+        }
+
+        @Override
+        public void run() {
+            // This thread ends with the connection, so any buffers it cached
+            // would be lost along with it
+            BufferPool.bypassThreadCache();
+            ByteBuffer buffer = BufferPool.acquire(bufferSize);
+            int count;
+            try {
+                if (usingSSL) {
+                    handshake();
+                }
+                while ((count = socket.read(buffer)) != -1) {
+                    if (count > 0) {
+                        // Reassemble and dispatch on this thread
+                        worker.processInline(socket, buffer, count);
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException ioe) {
+                if (running) {
+                    LOGGER.log(Level.FINE, "IOE on connection, closing", ioe);
+                }
+            } finally {
+                BufferPool.release(buffer);
+                close();
+            }
+        }
+
+        /**
+         * Drive the SSL/TLS handshake of the socket to completion, reading
+         * from the socket as needed. A handshake timeout closes the channel
+         * if the peer stalls.
+         *
+         * @throws IOException If the handshake fails or the channel is closed
+         */
+        private void handshake() throws IOException {
+            SecureSocket secure = (SecureSocket) socket;
+            Timeout timeout = new Timeout(socket, BlockingServer.this,
+                    config.getTimeoutMS());
+            toWorker.insert(timeout);
+            writeLock.lock();
+            try {
+                secure.initHandshake();
+                while (secure.handshakePending()) {
+                    if (secure.getEngine().isInboundDone()
+                            || secure.getEngine().isOutboundDone()) {
+                        throw new SSLException("SSLEngine closed during handshake");
+                    }
+                    secure.processHandshake();
+                }
+            } finally {
+                writeLock.unlock();
+                if (!timeout.hasExpired()) {
+                    toWorker.cancel(timeout);
+                }
+            }
+        }
+
+        /**
+         * Write the given data to the socket, blocking until it has been
+         * written completely. Must be called while holding the write lock. If
+         * writing fails, the channel is closed, stopping the connection.
+         *
+         * @param data The data to write
+         * @return true if the data was written, false otherwise
+         */
+        private boolean write(ByteBuffer data) {
+            try {
+                while (data.hasRemaining()) {
+                    socket.write(data);
+                }
+                return true;
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINE, "IOE writing, closing the connection", ioe);
+                closeChannel(socket);
+                return false;
+            }
+        }
+
+        /**
+         * Close the socket once the connection thread stops, cleanly shutting
+         * down the SSL/TLS session where possible.
+         */
+        private void close() {
+            connections.remove(socket);
+            if (!writeLock.tryLock()) {
+                // A sender is blocked writing, unblock it
+                closeChannel(socket);
+                writeLock.lock();
+            }
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.FINEST, "IOE closing the socket", ioe);
+            } finally {
+                writeLock.unlock();
+                worker.discardData(socket);
+            }
+        }
+
+        @Override
+        public void paketArrived(SocketIF socket, PacketIF packet) {
+            fireListeners(socket, packet);
+        }
+    }
+}
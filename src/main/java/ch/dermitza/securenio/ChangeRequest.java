@@ -25,10 +25,18 @@ import ch.dermitza.securenio.socket.SocketIF;
  *
  * ChangeRequests are created and queued from threads that interact with the
  * selector thread and are necessary as the result of some particular operation
- * being completed (e.g. an SSLEngineTask having finished).
+ * being completed (e.g. an SSLEngineTask having finished). <p> The
+ * {@link AbstractSelector} itself does not allocate ChangeRequests for the
+ * frequent per-socket types ({@link #TYPE_TASK}, {@link #TYPE_OPS} with
+ * OP_WRITE, {@link #TYPE_TIMEOUT}, {@link #TYPE_SESSION} and
+ * {@link #TYPE_CRYPTO}); it marks them as pending bits on the socket instead,
+ * coalescing any number of them into a single queue entry, see
+ * {@link ch.dermitza.securenio.socket.SocketIF#markPending(int)}. All types
+ * but {@link #TYPE_CRYPTO} are still accepted as ChangeRequests from
+ * subclasses.
  *
  * @author K. Dermitzakis
- * @version 0.18
+ * @version 0.21
  */
 public final class ChangeRequest {
 
@@ -57,6 +65,30 @@ public final class ChangeRequest {
      * invalidated. As such, we need to re-initiate handshaking.
      */
     public static final int TYPE_SESSION = 3;
+    /**
+     * This type concerns a socket that has been accepted or set up on a
+     * different thread and handed over to an {@link EventLoop} or a
+     * {@link TCPServer}. As such, it needs to be registered with the selector
+     * of that event loop or server, using the interestOps of this
+     * ChangeRequest.
+     */
+    public static final int TYPE_REGISTER = 4;
+    /**
+     * This type concerns the listener of a {@link TCPServer} or
+     * {@link EventLoop} whose OP_ACCEPT interest was paused by its
+     * {@link AdmissionController}. As such, accepting connections needs to be
+     * resumed. The socket of this ChangeRequest is null.
+     */
+    public static final int TYPE_ACCEPT = 5;
+    /**
+     * This type concerns a socket whose application data has just been
+     * wrapped and unwrapped by a {@link CryptoWorker}. As such, the interest
+     * of its key needs to be resumed (or the socket closed), and the changes
+     * deferred while it was offloaded need to be processed. <p> This type is
+     * only marked as a pending bit on the socket by the
+     * {@link AbstractSelector}; it is not accepted as a ChangeRequest.
+     */
+    public static final int TYPE_CRYPTO = 6;
     /**
      * The SocketIF associated with this ChangeRequest
      */
@@ -68,7 +100,7 @@ public final class ChangeRequest {
     /**
      * The interestOps associated with this ChangeRequest. If the type of this
      * ChangeRequest is anything other than TYPE_OPS, the interestOps can be set
-     * to anything safely.
+     * to anything safely (TYPE_REGISTER uses it as the initial interest set).
      */
     private final int interestOps;
 
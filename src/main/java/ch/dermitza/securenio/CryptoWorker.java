@@ -0,0 +1,227 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio;
+
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.logging.LoggerHandler;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A worker wrapping and unwrapping the application data of established
+ * SSL/TLS sockets off the thread of an {@link AbstractSelector}, so that the
+ * cost of encryption does not cap the rate at which the selector thread
+ * services its sockets. <p> Once a key of an established secure socket is
+ * selected, its selector suspends the interest of the key and hands the
+ * socket to one of the lanes of this worker. The lane reads and unwraps the
+ * available records, handing the plaintext to the
+ * {@link ch.dermitza.securenio.packet.worker.AbstractPacketWorker}, then wraps
+ * and writes the data queued on the socket, and hands the socket back to its
+ * selector, which resumes its interest. <p> Each lane is a single thread, and
+ * each socket always goes to the same lane, so that its records are
+ * unwrapped and wrapped in order. As a socket is only ever serviced by one
+ * lane at a time, its {@link javax.net.ssl.SSLEngine} and buffers are never
+ * used concurrently. Each lane has its own read buffer and gathering array,
+ * so that lanes do not share any state with each other or the selector
+ * thread.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public final class CryptoWorker {
+
+    private static final Logger LOGGER = LoggerHandler.getLogger(CryptoWorker.class.getName());
+    private static final AtomicInteger WORKERS = new AtomicInteger();
+    private final AbstractSelector selector;
+    private final Lane[] lanes;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong serviced = new AtomicLong();
+    // Nanoseconds spent queued in total
+    private final AtomicLong totalDelay = new AtomicLong();
+
+    /**
+     * Create a {@link CryptoWorker} instance servicing the offloaded sockets
+     * of the given {@link AbstractSelector}. The threads of its lanes are
+     * only started once sockets are handed to them.
+     *
+     * @param selector The selector offloading its sockets to this worker
+     * @param threads The number of lanes (threads) of this worker
+     * @param writeMaxBuffers The maximum number of buffers gathered in a
+     * single write by a lane
+     */
+    CryptoWorker(AbstractSelector selector, int threads, int writeMaxBuffers) {
+        this.selector = selector;
+        this.lanes = new Lane[threads];
+        final int id = WORKERS.getAndIncrement();
+        for (int i = 0; i < threads; i++) {
+            final String name = "CryptoWorkerThread-" + id + "-" + i;
+            lanes[i] = new Lane(writeMaxBuffers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name);
+                }
+            });
+        }
+    }
+
+    /**
+     * Hand a {@link SocketIF} to the lane it belongs to. This is called from
+     * the selector thread, once the interest of the socket's key has been
+     * suspended.
+     *
+     * @param socket The socket to be serviced
+     * @param readyOps The operations the socket's key was selected for
+     * @return true if the socket was queued, false if this worker has been
+     * shut down
+     */
+    boolean submit(SocketIF socket, int readyOps) {
+        Lane lane = lanes[(System.identityHashCode(socket) & 0x7fffffff) % lanes.length];
+        queued.incrementAndGet();
+        try {
+            lane.executor.execute(lane.new Job(socket, readyOps));
+        } catch (RejectedExecutionException ree) {
+            queued.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shut the lanes of this worker down, waiting for the sockets already
+     * handed to them to be serviced, so that no lane is using a socket the
+     * selector closes afterwards. This is called from the selector thread.
+     */
+    void shutdown() {
+        LOGGER.config("Shutting down...");
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+        for (Lane lane : lanes) {
+            try {
+                if (lane.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // The lane thread is gone, its buffer can be released
+                    BufferPool.release(lane.readBuffer);
+                    lane.readBuffer = null;
+                } else {
+                    LOGGER.warning("Crypto lane did not terminate in time");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lanes (threads) of this worker.
+     *
+     * @return the number of lanes of this worker
+     */
+    public int getThreads() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of sockets currently queued on the lanes of this
+     * worker, waiting to be serviced.
+     *
+     * @return the number of sockets currently queued
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of times a socket was serviced by this worker.
+     *
+     * @return the number of times a socket was serviced so far
+     */
+    public long getServiced() {
+        return serviced.get();
+    }
+
+    /**
+     * Returns the average time (us) a socket spent queued on its lane before
+     * being serviced.
+     *
+     * @return the average queueing delay (us) so far
+     */
+    public long getQueueDelayUS() {
+        long count = serviced.get();
+        return (count == 0) ? 0 : totalDelay.get() / count / 1000;
+    }
+
+    /**
+     * A single thread servicing the sockets handed to it in FIFO order, along
+     * with the buffers only it uses.
+     */
+    private final class Lane {
+
+        private final ExecutorService executor;
+        private final ByteBuffer[] writeBuffers;
+        private ByteBuffer readBuffer = null;
+
+        Lane(int writeMaxBuffers, ThreadFactory factory) {
+            this.executor = Executors.newSingleThreadExecutor(factory);
+            this.writeBuffers = new ByteBuffer[writeMaxBuffers];
+        }
+
+        /**
+         * Services a single socket on this lane.
+         */
+        private final class Job implements Runnable {
+
+            private final SocketIF socket;
+            private final int readyOps;
+            private final long queuedAt = System.nanoTime();
+
+            Job(SocketIF socket, int readyOps) {
+                this.socket = socket;
+                this.readyOps = readyOps;
+            }
+
+            @Override
+            public void run() {
+                queued.decrementAndGet();
+                totalDelay.addAndGet(System.nanoTime() - queuedAt);
+                int size = selector.getReadBufferSize();
+                if (readBuffer == null || readBuffer.capacity() < size) {
+                    BufferPool.release(readBuffer);
+                    readBuffer = BufferPool.acquire(size);
+                }
+                try {
+                    selector.service(socket, readyOps, readBuffer, writeBuffers);
+                } catch (RuntimeException re) {
+                    LOGGER.log(Level.WARNING, "Servicing offloaded socket failed", re);
+                    selector.serviced(socket, true, false, false);
+                } finally {
+                    serviced.incrementAndGet();
+                }
+            }
+        }
+    }
+}
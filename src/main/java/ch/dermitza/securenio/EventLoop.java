@@ -0,0 +1,252 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio;
+
+import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * An event loop servicing a slice of the sockets accepted by a
+ * {@link TCPServer}. <p> When a {@link TCPServer} is created with one or more
+ * event loops, its own selector thread only accepts incoming connections and
+ * hands each accepted {@link SocketIF} to one of its event loops via
+ * {@link #register(SocketIF)}. From then on, all reads, writes and handshake
+ * continuations of that socket happen on the event loop thread, which owns its
+ * own selector, pending changes and
+ * {@link ch.dermitza.securenio.socket.SocketContainer}. <p> If the owning
+ * {@link TCPServer} shards its port via SO_REUSEPORT, every event loop also
+ * listens on a shard of its own, accepting the connections the kernel hands
+ * to that shard, see {@link TCPServer#setReusePort(boolean)}. <p> The
+ * {@link AbstractPacketWorker} and the
+ * {@link ch.dermitza.securenio.util.Configuration} are shared with the owning
+ * {@link TCPServer}; the packet worker is neither started nor stopped by an
+ * event loop.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public final class EventLoop extends AbstractSelector {
+
+    private final TCPServer server;
+    private final int index;
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocketChannel ssc = null;
+
+    /**
+     * Create an EventLoop instance belonging to the given {@link TCPServer}.
+     *
+     * @param server The TCPServer handing accepted sockets to this loop
+     * @param index The index of this loop in the server's loop array
+     * @param packetWorker The packet worker shared with the server
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     */
+    EventLoop(TCPServer server, int index, AbstractPacketWorker packetWorker,
+            boolean usingSSL, boolean needClientAuth) {
+        super(server.address, server.port, packetWorker, usingSSL, false,
+                needClientAuth, server.getConfiguration());
+        this.server = server;
+        this.index = index;
+    }
+
+    /**
+     * Hand an accepted {@link SocketIF} over to this event loop. The socket is
+     * registered with this loop's selector with an OP_READ interest set the
+     * next time pending changes are processed. This method is called from the
+     * acceptor thread of the owning {@link TCPServer}.
+     *
+     * @param socket The accepted socket to be serviced by this loop
+     */
+    void register(SocketIF socket) {
+        connections.incrementAndGet();
+        queueChangeRequest(new ChangeRequest(socket,
+                ChangeRequest.TYPE_REGISTER, SelectionKey.OP_READ));
+    }
+
+    /**
+     * Called by the owning {@link TCPServer} once a socket serviced by this
+     * loop has been closed.
+     */
+    void socketClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of sockets currently handed to this event loop. This
+     * is used by the least-connections balancing of the owning
+     * {@link TCPServer}.
+     *
+     * @return the number of sockets currently serviced by this loop
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the index of this event loop in its server's loop array.
+     *
+     * @return the index of this event loop
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * If the owning {@link TCPServer} shards its port, open this loop's shard
+     * with SO_REUSEPORT and register it with an OP_ACCEPT interest set.
+     * Otherwise an event loop has no channel of its own; sockets are handed
+     * to it by the owning {@link TCPServer}.
+     *
+     * @throws IOException If the shard could not be opened or bound
+     */
+    @Override
+    protected void initConnection() throws IOException {
+        if (server.isSharded()) {
+            ssc = TCPServer.openListener(address, port, true, config.getBacklog());
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        // Otherwise sockets are registered via register()
+    }
+
+    /**
+     * Accept incoming connections on this loop's shard, handing them to this
+     * loop. This is only called if the owning {@link TCPServer} shards its
+     * port.
+     *
+     * @param key The selection key of this loop's shard
+     */
+    @Override
+    protected void accept(SelectionKey key) {
+        server.accept(key, this);
+    }
+
+    /**
+     * Resume accepting on this loop's shard, once paused by the
+     * {@link AdmissionController} of the owning {@link TCPServer}.
+     */
+    @Override
+    protected void resumeAccept() {
+        SelectionKey key = (ssc == null) ? null : ssc.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * This method overrides the default
+     * {@link AbstractSelector#handshakeComplete(SocketIF)} method, to also
+     * notify the {@link AdmissionController} of the owning {@link TCPServer}.
+     *
+     * @param socket The SocketIF whose handshake has completed
+     */
+    @Override
+    public void handshakeComplete(SocketIF socket) {
+        server.getAdmissionController().handshakeFinished(socket);
+        super.handshakeComplete(socket);
+    }
+
+    /**
+     * As an event loop is part of a server implementation, it is NOT allowed
+     * to call this method. This implementation will throw a
+     * {@link NoSuchMethodError} if it is called and do nothing else.
+     *
+     * @param key unused
+     */
+    @Override
+    protected void connect(SelectionKey key) {
+        throw new NoSuchMethodError("connect() is never called in an event loop");
+    }
+
+    /**
+     * Starts the {@link ch.dermitza.securenio.socket.secure.TaskWorker} and
+     * {@link ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker} of
+     * this loop. The packet worker is shared with, and started by, the owning
+     * {@link TCPServer}.
+     */
+    @Override
+    protected void startWorkers() {
+        new Thread(taskWorker, "TaskWorkerThread-" + index).start();
+        new Thread(toWorker, "TimeoutWorkerThread-" + index).start();
+    }
+
+    /**
+     * Stops the workers started in {@link #startWorkers()}, leaving the shared
+     * packet worker to the owning {@link TCPServer}.
+     */
+    @Override
+    protected void stopWorkers() {
+        if (!singleThreaded) {
+            if (taskWorker.isRunning()) {
+                taskWorker.setRunning(false);
+            }
+        }
+        if (toWorker.isRunning()) {
+            toWorker.setRunning(false);
+        }
+    }
+
+    /**
+     * Writability changes of the sockets serviced by this loop are fired on
+     * the {@link ch.dermitza.securenio.packet.WritabilityListener}s registered
+     * with the owning {@link TCPServer}.
+     *
+     * @param socket The SocketIF whose writability has changed
+     * @param writable Whether the SocketIF became writable or unwritable
+     */
+    @Override
+    protected void fireWritabilityChanged(SocketIF socket, boolean writable) {
+        server.fireWritabilityChanged(socket, writable);
+    }
+
+    /**
+     * Close this loop's shard (if any) before shutting down normally.
+     */
+    @Override
+    protected void shutdown() {
+        if (ssc != null) {
+            try {
+                ssc.close();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.INFO, "IOE while closing the shard", ioe);
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * This method overrides the default
+     * {@link AbstractSelector#closeSocket(SocketIF)} method, to also notify
+     * the owning {@link TCPServer} that the socket is no longer serviced by
+     * this loop.
+     *
+     * @param socket The SocketIF to be closed
+     */
+    @Override
+    protected void closeSocket(SocketIF socket) {
+        super.closeSocket(socket);
+        if (socket != null) {
+            server.socketClosed(socket);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio;
+
+import java.nio.channels.SelectionKey;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An array-backed replacement for the {@link java.util.HashSet} holding the
+ * selected keys of a {@link java.nio.channels.Selector}. The selector only
+ * ever adds keys to this set, while the {@link AbstractSelector} thread
+ * iterates over them by index via {@link #keys()} and {@link #size()} and
+ * then calls {@link #reset()}, so that neither adding nor dispatching a
+ * selected key allocates anything or computes any hash. <p> The selector
+ * never adds a key twice during the same select operation, so no duplicate
+ * checking is done. {@link #contains(Object)} and {@link #remove(Object)} are
+ * not supported and always return false.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+
+    private SelectionKey[] keys = new SelectionKey[1024];
+    private int size = 0;
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+        }
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the backing array of this set. Only the first {@link #size()}
+     * elements are valid.
+     *
+     * @return the backing array of this set
+     */
+    SelectionKey[] keys() {
+        return keys;
+    }
+
+    /**
+     * Clear this set, dropping all references to the keys it contains.
+     */
+    void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int idx = 0;
+
+            @Override
+            public boolean hasNext() {
+                return idx < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys[idx++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
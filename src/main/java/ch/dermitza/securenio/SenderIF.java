@@ -27,7 +27,7 @@ import ch.dermitza.securenio.socket.SocketIF;
  * implementation specific details are application dependent.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since 0.20
  */
 public interface SenderIF {
@@ -43,6 +43,41 @@ public interface SenderIF {
      * java.nio.ByteBuffer)
      */
     public void send(SocketIF socket, PacketIF packet);
+
+    /**
+     * Send an {@link PacketIF} over this SenderIF's {@link SocketIF}, if and
+     * only if the socket is currently writable, i.e. the data queued on it
+     * has not crossed the high watermark.
+     *
+     * @param socket The socket to send the PacketIF through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @return true if the packet was queued for sending, false if the socket
+     * is not writable
+     *
+     * @see AbstractSelector#trySend(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer)
+     */
+    public boolean trySend(SocketIF socket, PacketIF packet);
+
+    /**
+     * Send an {@link PacketIF} over this SenderIF's {@link SocketIF},
+     * blocking while the socket is not writable for at most the given
+     * timeout.
+     *
+     * @param socket The socket to send the PacketIF through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @param timeoutMS The maximum time to wait (ms) for the socket to become
+     * writable, 0 to wait indefinitely
+     * @return true if the packet was queued for sending, false if the timeout
+     * elapsed or the socket was closed while waiting
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
+     *
+     * @see AbstractSelector#send(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer, long)
+     */
+    public boolean send(SocketIF socket, PacketIF packet, long timeoutMS)
+            throws InterruptedException;
     
     /**
      * Returns whether or not this SenderIF's underlying network socket is
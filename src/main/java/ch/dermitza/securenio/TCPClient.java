@@ -22,7 +22,7 @@ import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
 import ch.dermitza.securenio.socket.PlainSocket;
 import ch.dermitza.securenio.socket.SocketIF;
 import ch.dermitza.securenio.socket.secure.SecureSocket;
-import ch.dermitza.securenio.util.PropertiesReader;
+import ch.dermitza.securenio.util.Configuration;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -38,7 +38,7 @@ import javax.net.ssl.SSLEngine;
  * {@link SecureSocket}s.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since 0.18
  */
 public class TCPClient extends AbstractSelector implements SenderIF {
@@ -47,7 +47,7 @@ public class TCPClient extends AbstractSelector implements SenderIF {
     private boolean connected = false;
 
     /**
-     * Create a TCPClient instance
+     * Create a TCPClient instance using the default {@link Configuration}.
      *
      * @param address The address to connect to
      * @param port The port to connect to
@@ -59,8 +59,26 @@ public class TCPClient extends AbstractSelector implements SenderIF {
     public TCPClient(InetAddress address, int port,
             AbstractPacketWorker packetWorker, boolean usingSSL,
             boolean needClientAuth) {
+        this(address, port, packetWorker, usingSSL, needClientAuth,
+                Configuration.getDefault());
+    }
+
+    /**
+     * Create a TCPClient instance
+     *
+     * @param address The address to connect to
+     * @param port The port to connect to
+     * @param packetWorker The instance of packet worker to use
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether this client should also authenticate with
+     * the server.
+     * @param config The Configuration of this client
+     */
+    public TCPClient(InetAddress address, int port,
+            AbstractPacketWorker packetWorker, boolean usingSSL,
+            boolean needClientAuth, Configuration config) {
         super(address, port, packetWorker, usingSSL, true,
-                needClientAuth);
+                needClientAuth, config);
     }
 
     /**
@@ -82,6 +100,51 @@ public class TCPClient extends AbstractSelector implements SenderIF {
         }
     }
 
+    /**
+     * Send an {@link PacketIF} over this client's {@link SocketIF}, if and
+     * only if the socket is currently writable.
+     *
+     * @param socket The socket to send the PacketIF through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @return true if the packet was queued for sending, false if the socket
+     * is not writable (or not yet initialized)
+     *
+     * @see AbstractSelector#trySend(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer)
+     */
+    @Override
+    public boolean trySend(SocketIF socket, PacketIF packet) {
+        if (socket == null || !isWritable(socket)) {
+            return false;
+        }
+        return trySend(socket, packet.toBytes());
+    }
+
+    /**
+     * Send an {@link PacketIF} over this client's {@link SocketIF}, blocking
+     * while the socket is not writable for at most the given timeout.
+     *
+     * @param socket The socket to send the PacketIF through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @param timeoutMS The maximum time to wait (ms) for the socket to become
+     * writable, 0 to wait indefinitely
+     * @return true if the packet was queued for sending, false if the timeout
+     * elapsed, the socket was closed while waiting or is not yet initialized
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
+     *
+     * @see AbstractSelector#send(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer, long)
+     */
+    @Override
+    public boolean send(SocketIF socket, PacketIF packet, long timeoutMS)
+            throws InterruptedException {
+        if (socket == null) {
+            return false;
+        }
+        return send(socket, packet.toBytes(), timeoutMS);
+    }
+
     /**
      * Send an {@link PacketIF} over this client's {@link SocketIF}. This
      * method is client-specific as it does not require a socket parameter.
@@ -125,28 +188,31 @@ public class TCPClient extends AbstractSelector implements SenderIF {
         channel.configureBlocking(false);
         channel.connect(new InetSocketAddress(address, port));
 
-        // As part of the registration we'll register
-        // an interest in connection events. These are raised when a channel
-        // is ready to complete connection establishment.
-        channel.register(selector, SelectionKey.OP_CONNECT);
-        channel.setOption(StandardSocketOptions.SO_SNDBUF, PropertiesReader.getSoSndBuf());
-        channel.setOption(StandardSocketOptions.SO_RCVBUF, PropertiesReader.getSoRcvBuf());
-        channel.setOption(StandardSocketOptions.SO_REUSEADDR, PropertiesReader.getReuseAddress());
-        channel.setOption(StandardSocketOptions.IP_TOS, PropertiesReader.getIPTos());
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSoSndBuf());
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getSoRcvBuf());
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, config.getReuseAddress());
+        channel.setOption(StandardSocketOptions.IP_TOS, config.getIPTos());
 
-        // Get remote address and port (for SSL socket and debugging)
-        String peerHost = channel.socket().getInetAddress().getHostAddress();
-        int peerPort = channel.socket().getPort();
+        // The configured remote address and port (for SSL socket and
+        // debugging) key the session cache, so that a reconnecting client
+        // can resume its session
+        String peerHost = address.getHostAddress();
+        int peerPort = port;
 
         // now wrap the channel
         if (usingSSL) {
             SSLEngine engine = setupEngine(peerHost, peerPort);
 
             sc = new SecureSocket(channel, engine, singleThreaded, taskWorker,
-                    toWorker, this, this);
+                    toWorker, this, this, config.getTimeoutMS());
         } else {
             sc = new PlainSocket(channel);
         }
+        // As part of the registration we'll register
+        // an interest in connection events. These are raised when a channel
+        // is ready to complete connection establishment. The socket is
+        // attached to its key.
+        sc.register(selector, SelectionKey.OP_CONNECT);
         // add the socket to the container
         container.addSocket(sc.getSocket(), sc);
     }
@@ -187,10 +253,10 @@ public class TCPClient extends AbstractSelector implements SenderIF {
             // otherwise the socket does not recognize the option.
             sc.getSocket().setOption(
                     StandardSocketOptions.TCP_NODELAY,
-                    PropertiesReader.getTCPNoDelay());
+                    config.getTCPNoDelay());
             sc.getSocket().setOption(
                     StandardSocketOptions.SO_KEEPALIVE,
-                    PropertiesReader.getKeepAlive());
+                    config.getKeepAlive());
             sc.finishConnect();
         } catch (IOException ioe) {
             // Cancel the channel's registration with our selector
@@ -22,16 +22,28 @@ import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
 import ch.dermitza.securenio.socket.PlainSocket;
 import ch.dermitza.securenio.socket.SocketIF;
 import ch.dermitza.securenio.socket.secure.SecureSocket;
-import ch.dermitza.securenio.util.PropertiesReader;
+import ch.dermitza.securenio.util.Configuration;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 
 /**
  * A TCP Server implementation of {@link AbstractSelector}. This implementation
@@ -44,26 +56,136 @@ import javax.net.ssl.SSLEngine;
  */
 public class TCPServer extends AbstractSelector implements SenderIF{
 
+    /**
+     * Accepted sockets are handed to the event loops in turn.
+     */
+    public static final int BALANCE_ROUND_ROBIN = 0;
+    /**
+     * Accepted sockets are handed to the event loop currently servicing the
+     * fewest sockets.
+     */
+    public static final int BALANCE_LEAST_CONNECTIONS = 1;
     private ServerSocketChannel ssc;
+    private final EventLoop[] loops;
+    private final int balancing;
+    private int nextLoop = 0;
+    private final ConcurrentHashMap<SocketIF, EventLoop> owners = new ConcurrentHashMap<>();
+    private final int acceptBatch;
+    private ExecutorService setupPool = null;
+    private boolean reusePort;
+    private boolean sharded = false;
+    private AdmissionController admission;
+    private ScheduledExecutorService resumer = null;
 
     /**
-     * Create a TCPServer instance.
+     * Create a TCPServer instance using the default {@link Configuration}.
+     * The number of event loops used is read from the selector.event_loops
+     * property.
      *
      * @param address The address to bind to
      * @param port The port to listen on
      * @param packetWorker The instance of packet worker to use
      * @param usingSSL Whether we are using SSL/TLS
      * @param needClientAuth Whether we need clients to also authenticate
+     *
+     * @see Configuration#getEventLoops()
      */
     public TCPServer(InetAddress address, int port,
             AbstractPacketWorker packetWorker, boolean usingSSL,
             boolean needClientAuth) {
+        this(address, port, packetWorker, usingSSL, needClientAuth,
+                Configuration.getDefault());
+    }
+
+    /**
+     * Create a TCPServer instance using the given {@link Configuration}, with
+     * as many event loops as configured, see
+     * {@link Configuration#getEventLoops()}.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param packetWorker The instance of packet worker to use
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     * @param config The Configuration of this server and its event loops
+     */
+    public TCPServer(InetAddress address, int port,
+            AbstractPacketWorker packetWorker, boolean usingSSL,
+            boolean needClientAuth, Configuration config) {
+        this(address, port, packetWorker, usingSSL, needClientAuth,
+                config.getEventLoops(), BALANCE_ROUND_ROBIN, config);
+    }
+
+    /**
+     * Create a TCPServer instance with the given number of event loops. With
+     * zero event loops, the server thread accepts, reads and writes on all
+     * sockets itself. With one or more event loops, the server thread only
+     * accepts incoming connections and hands each accepted socket to one of
+     * its {@link EventLoop}s, each running on its own thread with its own
+     * selector.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param packetWorker The instance of packet worker to use, shared by all
+     * event loops
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     * @param eventLoops The number of event loops to use, or zero to use the
+     * server thread only
+     * @param balancing How accepted sockets are distributed over the event
+     * loops, either {@link #BALANCE_ROUND_ROBIN} or
+     * {@link #BALANCE_LEAST_CONNECTIONS}
+     */
+    public TCPServer(InetAddress address, int port,
+            AbstractPacketWorker packetWorker, boolean usingSSL,
+            boolean needClientAuth, int eventLoops, int balancing) {
+        this(address, port, packetWorker, usingSSL, needClientAuth,
+                eventLoops, balancing, Configuration.getDefault());
+    }
+
+    /**
+     * Create a TCPServer instance with the given number of event loops and
+     * {@link Configuration}, see
+     * {@link #TCPServer(InetAddress, int, AbstractPacketWorker, boolean, boolean, int, int)}.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param packetWorker The instance of packet worker to use, shared by all
+     * event loops
+     * @param usingSSL Whether we are using SSL/TLS
+     * @param needClientAuth Whether we need clients to also authenticate
+     * @param eventLoops The number of event loops to use, or zero to use the
+     * server thread only
+     * @param balancing How accepted sockets are distributed over the event
+     * loops, either {@link #BALANCE_ROUND_ROBIN} or
+     * {@link #BALANCE_LEAST_CONNECTIONS}
+     * @param config The Configuration of this server and its event loops
+     */
+    public TCPServer(InetAddress address, int port,
+            AbstractPacketWorker packetWorker, boolean usingSSL,
+            boolean needClientAuth, int eventLoops, int balancing,
+            Configuration config) {
         super(address, port, packetWorker, usingSSL, false,
-                needClientAuth);
+                needClientAuth, config);
+        this.balancing = balancing;
+        this.acceptBatch = config.getAcceptBatch();
+        this.reusePort = config.getReusePort();
+        this.admission = new AdmissionController(config);
+        if (eventLoops > 0) {
+            loops = new EventLoop[eventLoops];
+            for (int i = 0; i < eventLoops; i++) {
+                loops[i] = new EventLoop(this, i, packetWorker, usingSSL,
+                        needClientAuth);
+            }
+        } else {
+            loops = null;
+        }
     }
 
     /**
-     * Send an {@link PacketIF} over the specified {@link SocketIF}.
+     * Send an {@link PacketIF} over the specified {@link SocketIF}. If this
+     * server uses event loops, the packet is queued with the event loop
+     * servicing the given socket.
      *
      * @param sc The SocketIF to send the packet through.
      * @param packet The PacketIF to send through the associated SocketIF.
@@ -76,6 +198,135 @@ public class TCPServer extends AbstractSelector implements SenderIF{
         send(sc, packet.toBytes());
     }
 
+    /**
+     * Send an {@link PacketIF} over the specified {@link SocketIF}, if and
+     * only if the socket is currently writable.
+     *
+     * @param sc The SocketIF to send the packet through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @return true if the packet was queued for sending, false if the socket
+     * is not writable
+     *
+     * @see AbstractSelector#trySend(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer)
+     */
+    @Override
+    public boolean trySend(SocketIF sc, PacketIF packet) {
+        if (!isWritable(sc)) {
+            return false;
+        }
+        return trySend(sc, packet.toBytes());
+    }
+
+    /**
+     * Send an {@link PacketIF} over the specified {@link SocketIF}, blocking
+     * while the socket is not writable for at most the given timeout.
+     *
+     * @param sc The SocketIF to send the packet through.
+     * @param packet The PacketIF to send through the associated SocketIF.
+     * @param timeoutMS The maximum time to wait (ms) for the socket to become
+     * writable, 0 to wait indefinitely
+     * @return true if the packet was queued for sending, false if the timeout
+     * elapsed or the socket was closed while waiting
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
+     *
+     * @see AbstractSelector#send(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer, long)
+     */
+    @Override
+    public boolean send(SocketIF sc, PacketIF packet, long timeoutMS)
+            throws InterruptedException {
+        return send(sc, packet.toBytes(), timeoutMS);
+    }
+
+    /**
+     * Queue a {@link ByteBuffer} to be sent over the specified
+     * {@link SocketIF}, on the event loop servicing that socket if this
+     * server uses event loops.
+     *
+     * @param socket The SocketIF to send the data through
+     * @param data The ByteBuffer to send through the associated SocketIF
+     *
+     * @see AbstractSelector#send(ch.dermitza.securenio.socket.SocketIF,
+     * java.nio.ByteBuffer)
+     */
+    @Override
+    protected void send(SocketIF socket, ByteBuffer data) {
+        if (loops == null) {
+            super.send(socket, data);
+            return;
+        }
+        EventLoop loop = owners.get(socket);
+        if (loop != null) {
+            loop.send(socket, data);
+        }
+        // Otherwise the socket has already been closed, drop the data
+    }
+
+    /**
+     * Invalidate the {@link javax.net.ssl.SSLSession} associated with the
+     * provided {@link SocketIF}, on the event loop servicing that socket if
+     * this server uses event loops.
+     *
+     * @param socket The socket whose underlying
+     * {@link javax.net.ssl.SSLSession} should be invalidated
+     *
+     * @see AbstractSelector#invalidateSession(SocketIF)
+     */
+    @Override
+    protected void invalidateSession(SocketIF socket) {
+        if (loops == null) {
+            super.invalidateSession(socket);
+            return;
+        }
+        EventLoop loop = owners.get(socket);
+        if (loop != null) {
+            loop.invalidateSession(socket);
+        }
+    }
+
+    /**
+     * Setup SSL/TLS with an already initialized {@link SSLContext}, sharing
+     * it and the resulting {@link SSLParameters} with the event loops of this
+     * server, if any, so that they size their read buffers to the context's
+     * sessions.
+     *
+     * @param context The initialized SSLContext to create SSLEngines from
+     *
+     * @see AbstractSelector#setupSSL(SSLContext)
+     */
+    @Override
+    public void setupSSL(SSLContext context) {
+        super.setupSSL(context);
+        shareWithLoops();
+    }
+
+    /**
+     * Replace the {@link SSLParameters} applied to every {@link SSLEngine} of
+     * this server, sharing them with the event loops of this server, if any.
+     *
+     * @param sslParameters The SSLParameters to apply to every SSLEngine
+     *
+     * @see AbstractSelector#setSSLParameters(SSLParameters)
+     */
+    @Override
+    public void setSSLParameters(SSLParameters sslParameters) {
+        super.setSSLParameters(sslParameters);
+        shareWithLoops();
+    }
+
+    /**
+     * Share the SSL/TLS setup of this server with its event loops, if any.
+     */
+    private void shareWithLoops() {
+        if (loops != null && getSSLContext() != null) {
+            for (EventLoop loop : loops) {
+                loop.shareSSL(getSSLContext(), getSSLParameters());
+            }
+        }
+    }
+
     /**
      * Initialize a server connection. This method initializes a
      * {@link ServerSocketChannel}, configures it to non-blocking, binds it to
@@ -91,73 +342,339 @@ public class TCPServer extends AbstractSelector implements SenderIF{
     @Override
     protected void initConnection() throws IOException {
 
-        // Create a new non-blocking server socket channel
-        LOGGER.config("Creating NB ServerSocketChannel");
-        ssc = ServerSocketChannel.open();
-        ssc.configureBlocking(false);
+        // With SO_REUSEPORT and event loops, every loop listens on a shard
+        // of its own and this server does not listen at all
+        sharded = reusePort && loops != null && getReusePortOption() != null;
+        if (sharded) {
+            LOGGER.log(Level.CONFIG, "Sharding *:{0} over {1} event loops",
+                    new Object[]{port, loops.length});
+        } else {
+            // Create a new non-blocking server socket channel, bound to the
+            // specified address and port
+            ssc = openListener(address, port, reusePort, config.getBacklog());
 
-        // Bind the server socket to the specified address and port
-        LOGGER.log(Level.CONFIG, "Binding ServerSocket to *:{0}", port);
-        InetSocketAddress isa = new InetSocketAddress(address, port);
-        ssc.socket().bind(isa, PropertiesReader.getBacklog());
+            // Register the server socket channel, indicating an interest in
+            // accepting new connections
+            LOGGER.finest("Registering ServerChannel to selector");
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        // Start the thread resuming accepting once paused by admission control
+        resumer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AdmissionThread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
-        // Register the server socket channel, indicating an interest in 
-        // accepting new connections
-        LOGGER.finest("Registering ServerChannel to selector");
-        ssc.register(selector, SelectionKey.OP_ACCEPT);
+        // Start the setup threads (if any) accepted connections are set up on
+        int setupThreads = config.getAcceptThreads();
+        if (setupThreads > 0) {
+            LOGGER.log(Level.CONFIG, "Starting {0} setup threads", setupThreads);
+            setupPool = Executors.newFixedThreadPool(setupThreads,
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
 
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "SetupThread-"
+                                    + count.getAndIncrement());
+                        }
+                    });
+        }
+
+        // Start the event loops (if any) accepted sockets are handed to
+        if (loops != null) {
+            LOGGER.log(Level.CONFIG, "Starting {0} event loops", loops.length);
+            for (EventLoop loop : loops) {
+                new Thread(loop, "EventLoopThread-" + loop.getIndex()).start();
+            }
+        }
     }
 
     /**
      * Accepts incoming connections and binds new non-blocking {@link SocketIF}
-     * instances to them. If this server implementation is using SSL/TLS, it
-     * also sets up the {@link SSLEngine}, to be used.
+     * instances to them. Up to selector.accept_batch pending connections are
+     * accepted per OP_ACCEPT event, so that the backlog drains quickly during
+     * connection storms. Each accepted connection is then set up via
+     * {@link #setup(SocketChannel, EventLoop, boolean)}, either right away on
+     * the selector thread or, if selector.accept_threads is set, on one of
+     * the setup threads of this server.
      *
      * @param key The selection key with the underlying {@link SocketChannel} to
      * be accepted
      *
      * @see AbstractSelector#run()
+     * @see Configuration#getAcceptBatch()
+     * @see Configuration#getAcceptThreads()
      */
     @Override
     protected void accept(SelectionKey key) {
-        SocketChannel socketChannel = null;
+        accept(key, null);
+    }
+
+    /**
+     * Accept up to selector.accept_batch pending connections from the
+     * listener of the given key, see {@link #accept(SelectionKey)}. This is
+     * called from the selector thread of this server, or from the thread of
+     * an {@link EventLoop} listening on a shard of its own. Every connection
+     * must be admitted by the {@link AdmissionController} of this server
+     * first; if one is not, the OP_ACCEPT interest of the key is paused, see
+     * {@link #pauseAccept(SelectionKey, AbstractSelector)}.
+     *
+     * @param key The selection key of the listener to accept connections from
+     * @param owner The EventLoop owning the listener, which accepted sockets
+     * are handed to, or null if this server owns the listener
+     */
+    void accept(SelectionKey key, EventLoop owner) {
+        ServerSocketChannel listener = (ServerSocketChannel) key.channel();
+        for (int i = 0; i < acceptBatch; i++) {
+            if (!admission.admit(getMaxLoopLagMS())) {
+                pauseAccept(key, (owner == null) ? this : owner);
+                return;
+            }
+            final SocketChannel socketChannel;
+            try {
+                socketChannel = listener.accept();
+            } catch (IOException ioe) {
+                LOGGER.log(Level.INFO, "IOE accepting the connection", ioe);
+                // No connection was accepted, the admission is not used
+                admission.refund();
+                return;
+            }
+            if (socketChannel == null) {
+                // No more pending connections, the admission is not used
+                admission.refund();
+                return;
+            }
+            // Pick the event loop here, round-robin is not thread-safe
+            final EventLoop loop = (owner != null || loops == null)
+                    ? owner : nextLoop();
+            if (setupPool == null) {
+                setup(socketChannel, loop, false);
+            } else {
+                setupPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        setup(socketChannel, loop, true);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Pause the OP_ACCEPT interest of the given listener key, as a connection
+     * was not admitted. Pending connections stay in the kernel backlog, and
+     * accepting is resumed on the given selector after
+     * {@link AdmissionController#getPauseMS()} via a
+     * {@link ChangeRequest#TYPE_ACCEPT} change. Must be called from the
+     * selector thread owning the key.
+     *
+     * @param key The selection key of the listener to pause
+     * @param owner The selector (this server or one of its event loops)
+     * owning the key
+     */
+    private void pauseAccept(SelectionKey key, final AbstractSelector owner) {
+        LOGGER.log(Level.FINE, "Connection not admitted, pausing accept for {0}ms",
+                admission.getPauseMS());
+        key.interestOps(0);
+        try {
+            resumer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    owner.queueChangeRequest(new ChangeRequest(null,
+                            ChangeRequest.TYPE_ACCEPT, SelectionKey.OP_ACCEPT));
+                }
+            }, admission.getPauseMS(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Shutting down, there is nothing to resume
+        }
+    }
+
+    /**
+     * Resume accepting on the listener of this server, once paused by
+     * admission control.
+     */
+    @Override
+    protected void resumeAccept() {
+        SelectionKey key = (ssc == null) ? null : ssc.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Returns the largest lag (ms) of the selector threads of this server,
+     * i.e. of this server and of all its event loops.
+     *
+     * @return the largest lag (ms) of the selector threads of this server
+     *
+     * @see AbstractSelector#getLoopLagMS()
+     */
+    private long getMaxLoopLagMS() {
+        long lag = getLoopLagMS();
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                lag = Math.max(lag, loop.getLoopLagMS());
+            }
+        }
+        return lag;
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the sockets of
+     * this server, including those of its event loops, that resumed a cached
+     * session.
+     *
+     * @return the number of abbreviated handshakes so far
+     */
+    @Override
+    public long getResumedHandshakes() {
+        long count = super.getResumedHandshakes();
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                count += loop.getResumedHandshakes();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of SSL/TLS handshakes completed by the sockets of
+     * this server, including those of its event loops, that negotiated a new
+     * session.
+     *
+     * @return the number of full handshakes so far
+     */
+    @Override
+    public long getFullHandshakes() {
+        long count = super.getFullHandshakes();
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                count += loop.getFullHandshakes();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the {@link AdmissionController} deciding which connections this
+     * server accepts.
+     *
+     * @return the AdmissionController of this server
+     */
+    public AdmissionController getAdmissionController() {
+        return this.admission;
+    }
+
+    /**
+     * Set the {@link AdmissionController} deciding which connections this
+     * server accepts. This must be called before the server is started; by
+     * default, the limits are read from the admission.* properties.
+     *
+     * @param admission The AdmissionController of this server
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Set up an accepted connection, binding a new non-blocking
+     * {@link SocketIF} instance to it. If this server implementation is using
+     * SSL/TLS, it also sets up the {@link SSLEngine}, to be used. If this
+     * server uses event loops, the new socket is bound to the workers of the
+     * given {@link EventLoop} and handed over to it; otherwise it is
+     * registered with this server's selector, directly or via a
+     * {@link ChangeRequest} if this is called from a setup thread.
+     *
+     * @param socketChannel The accepted SocketChannel
+     * @param loop The EventLoop to hand the socket to, or null if this server
+     * does not use event loops
+     * @param offThread Whether this is called from a setup thread rather than
+     * the selector thread
+     */
+    private void setup(SocketChannel socketChannel, EventLoop loop,
+            boolean offThread) {
         SocketIF socket = null;
         String peerHost = null;
         int peerPort = 0;
         try {
-            // Accept the connection and make it non-blocking
-            socketChannel = ssc.accept();
+            // Make the connection non-blocking
             socketChannel.configureBlocking(false);
-            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, PropertiesReader.getTCPNoDelay());
-            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, PropertiesReader.getSoSndBuf());
-            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, PropertiesReader.getSoRcvBuf());
-            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, PropertiesReader.getKeepAlive());
-            socketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, PropertiesReader.getReuseAddress());
-            socketChannel.setOption(StandardSocketOptions.IP_TOS, PropertiesReader.getIPTos());
-
-            // Register the new SocketChannel with our Selector, indicating
-            // we'd like to be notified when there's data waiting to be read
-            socketChannel.register(selector, SelectionKey.OP_READ);
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, config.getTCPNoDelay());
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSoSndBuf());
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getSoRcvBuf());
+            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, config.getKeepAlive());
+            socketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, config.getReuseAddress());
+            socketChannel.setOption(StandardSocketOptions.IP_TOS, config.getIPTos());
 
             // Get remote address and port (for SSL socket and debugging)
             peerHost = socketChannel.socket().getInetAddress().getHostAddress();
             peerPort = socketChannel.socket().getPort();
-            
+
+            if (loop != null) {
+                // Hand the socket over to the event loop, binding it to the
+                // workers and listeners of that loop
+                if (usingSSL) {
+                    SSLEngine engine = setupEngine(peerHost, peerPort);
+
+                    socket = new SecureSocket(socketChannel, engine,
+                            singleThreaded, loop.taskWorker, loop.toWorker,
+                            loop, loop, config.getTimeoutMS());
+                    admission.handshakeStarted(socket);
+                } else {
+                    socket = new PlainSocket(socketChannel);
+                }
+                owners.put(socket, loop);
+                loop.register(socket);
+                LOGGER.log(Level.CONFIG, "{0}:{1} connected, handed to loop {2}",
+                        new Object[]{peerHost, peerPort, loop.getIndex()});
+                return;
+            }
+
             // Now wrap it in our container
             if (usingSSL) {
                 SSLEngine engine = setupEngine(peerHost, peerPort);
 
                 socket = new SecureSocket(socketChannel, engine, singleThreaded,
-                        taskWorker, toWorker, this, this);
+                        taskWorker, toWorker, this, this, config.getTimeoutMS());
+                admission.handshakeStarted(socket);
             } else {
                 socket = new PlainSocket(socketChannel);
             }
+
+            if (offThread) {
+                // Only the selector thread may register the socket, it is
+                // added to our socket container once registered
+                queueChangeRequest(new ChangeRequest(socket,
+                        ChangeRequest.TYPE_REGISTER, SelectionKey.OP_READ));
+                LOGGER.log(Level.CONFIG, "{0}:{1} connected", new Object[]{peerHost, peerPort});
+                return;
+            }
+
+            // Register the new socket with our Selector, indicating we'd like
+            // to be notified when there's data waiting to be read. The socket
+            // is attached to its key.
+            socket.register(selector, SelectionKey.OP_READ);
         } catch (IOException ioe) {
             LOGGER.log(Level.INFO, "IOE accepting the connection", ioe);
+            if (socket != null) {
+                admission.handshakeFinished(socket);
+            }
             // If accepting the connection failed, close the socket and remove
             // any references to it
-            if (socket != null) {
+            if (socket != null && !offThread) {
                 closeSocket(socket);
+            } else {
+                // Not tracked by any selector yet, just close the channel
+                try {
+                    socketChannel.close();
+                } catch (IOException ioe2) {
+                    LOGGER.log(Level.FINEST, "IOE closing the channel", ioe2);
+                }
             }
             return;
         }
@@ -166,6 +683,146 @@ public class TCPServer extends AbstractSelector implements SenderIF{
         LOGGER.log(Level.CONFIG, "{0}:{1} connected", new Object[]{peerHost, peerPort});
     }
 
+    /**
+     * Set whether this server binds its listeners with SO_REUSEPORT. If set
+     * and this server uses event loops, every event loop opens a listener of
+     * its own on the same address and port, and the kernel spreads incoming
+     * connections over them. Otherwise, this only allows several servers (or
+     * processes) on the same host to share the port. This must be called
+     * before the server is started; the default is read from the
+     * socket.so_reuseport property.
+     *
+     * @param reusePort Whether to bind the listeners with SO_REUSEPORT
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Returns whether every event loop of this server listens on a shard of
+     * its own, see {@link #setReusePort(boolean)}.
+     *
+     * @return whether the listening port is sharded over the event loops
+     */
+    boolean isSharded() {
+        return this.sharded;
+    }
+
+    /**
+     * Open a non-blocking {@link ServerSocketChannel} bound to the given
+     * address and port, optionally with SO_REUSEPORT set. If SO_REUSEPORT is
+     * not supported, the channel is bound without it.
+     *
+     * @param address The address to bind to
+     * @param port The port to listen on
+     * @param reusePort Whether to set SO_REUSEPORT
+     * @param backlog The backlog of the listener
+     * @return the bound ServerSocketChannel
+     * @throws IOException If the channel could not be opened or bound
+     */
+    static ServerSocketChannel openListener(InetAddress address, int port,
+            boolean reusePort, int backlog) throws IOException {
+        LOGGER.config("Creating NB ServerSocketChannel");
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.configureBlocking(false);
+        if (reusePort) {
+            SocketOption<Boolean> option = getReusePortOption();
+            if (option != null) {
+                listener.setOption(option, true);
+            } else {
+                LOGGER.warning("SO_REUSEPORT is not supported, binding without it");
+            }
+        }
+        LOGGER.log(Level.CONFIG, "Binding ServerSocket to *:{0}", port);
+        listener.socket().bind(new InetSocketAddress(address, port), backlog);
+        return listener;
+    }
+
+    /**
+     * Returns the SO_REUSEPORT socket option of server socket channels, or
+     * null if the platform does not support it. The option is looked up by
+     * name, as StandardSocketOptions.SO_REUSEPORT only exists since Java 9.
+     *
+     * @return the SO_REUSEPORT option, or null if it is not supported
+     * @throws IOException If a channel could not be opened to look it up
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : probe.supportedOptions()) {
+                if ("SO_REUSEPORT".equals(option.name())
+                        && option.type() == Boolean.class) {
+                    return (SocketOption<Boolean>) option;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Choose the {@link EventLoop} the next accepted socket is handed to,
+     * based on the balancing strategy of this server.
+     *
+     * @return the EventLoop to hand the next accepted socket to
+     */
+    private EventLoop nextLoop() {
+        if (balancing == BALANCE_LEAST_CONNECTIONS) {
+            EventLoop least = loops[0];
+            for (int i = 1; i < loops.length; i++) {
+                if (loops[i].getConnections() < least.getConnections()) {
+                    least = loops[i];
+                }
+            }
+            return least;
+        }
+        // Round-robin, only ever called from the selector thread
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+
+    /**
+     * Called by an {@link EventLoop} once it has closed one of its sockets, so
+     * that the socket is no longer routed to that loop.
+     *
+     * @param socket The socket that was closed
+     */
+    void socketClosed(SocketIF socket) {
+        admission.handshakeFinished(socket);
+        EventLoop loop = owners.remove(socket);
+        if (loop != null) {
+            loop.socketClosed();
+        }
+    }
+
+    /**
+     * This method overrides the default
+     * {@link AbstractSelector#handshakeComplete(SocketIF)} method, to also
+     * notify the {@link AdmissionController} of this server.
+     *
+     * @param socket The SocketIF whose handshake has completed
+     */
+    @Override
+    public void handshakeComplete(SocketIF socket) {
+        admission.handshakeFinished(socket);
+        super.handshakeComplete(socket);
+    }
+
+    /**
+     * This method overrides the default
+     * {@link AbstractSelector#closeSocket(SocketIF)} method, to also notify
+     * the {@link AdmissionController} of this server.
+     *
+     * @param socket The SocketIF to be closed
+     */
+    @Override
+    protected void closeSocket(SocketIF socket) {
+        super.closeSocket(socket);
+        if (socket != null) {
+            admission.handshakeFinished(socket);
+        }
+    }
+
     /**
      * As this is the server implementation, it is NOT allowed to call this
      * method which is only useful for client implementations. This
@@ -186,10 +843,29 @@ public class TCPServer extends AbstractSelector implements SenderIF{
         LOGGER.log(Level.INFO, "Closing the server socket");
         // First close the server socket.
         try{
-            ssc.close();
+            if (ssc != null) {
+                ssc.close();
+            }
         }catch(IOException ioe){
             LOGGER.log(Level.INFO, "IOE while closing the server socket", ioe);
         }
+
+        // Then stop setting up accepted connections
+        if (setupPool != null) {
+            setupPool.shutdownNow();
+        }
+        if (resumer != null) {
+            resumer.shutdownNow();
+        }
+
+        // Then stop the event loops, each closing the sockets it services
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                if (loop.isRunning()) {
+                    loop.setRunning(false);
+                }
+            }
+        }
      
         //TODO 
         // That's all very well but why interrupt existing connections at all?
@@ -0,0 +1,40 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.packet;
+
+/**
+ * Backpressure listeners are notified whenever an
+ * {@link ch.dermitza.securenio.packet.worker.AbstractPacketWorker} that fell
+ * behind processing incoming data has caught up again, i.e. the bytes handed
+ * to it and not yet processed dropped to half of the
+ * packetworker.backpressure_bytes. Selectors stop reading from their sockets
+ * while the packet worker is backpressured, and use this to resume reading.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public interface BackpressureListener {
+
+    /**
+     * This method is called once the packet worker has caught up on the data
+     * handed to it. It is called from the thread of the packet worker, and as
+     * such should return quickly.
+     */
+    public void backpressureRelieved();
+}
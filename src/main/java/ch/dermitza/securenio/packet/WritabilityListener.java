@@ -0,0 +1,47 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.packet;
+
+import ch.dermitza.securenio.socket.SocketIF;
+
+/**
+ * Writability listeners are notified whenever the outbound queue of a
+ * {@link SocketIF} crosses its high watermark (the socket becomes unwritable)
+ * or drops back to its low watermark (the socket becomes writable again).
+ * Applications can use this to stop producing data for slow peers, instead of
+ * queueing data without limit. Multiple writability listeners can be
+ * registered with a single {@link ch.dermitza.securenio.AbstractSelector}.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public interface WritabilityListener {
+
+    /**
+     * This method is called once the writability of a {@link SocketIF} has
+     * changed. It is called either from the thread sending data on the socket
+     * (becoming unwritable), or from the selector thread writing data on the
+     * socket (becoming writable), and as such should return quickly.
+     *
+     * @param socket The SocketIF whose writability has changed
+     * @param writable true if the socket became writable, false if it became
+     * unwritable
+     */
+    public void writabilityChanged(SocketIF socket, boolean writable);
+}
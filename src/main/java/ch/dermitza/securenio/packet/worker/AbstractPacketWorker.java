@@ -17,15 +17,18 @@
  */
 package ch.dermitza.securenio.packet.worker;
 
+import ch.dermitza.securenio.packet.BackpressureListener;
 import ch.dermitza.securenio.packet.PacketIF;
 import ch.dermitza.securenio.packet.PacketListener;
 import ch.dermitza.securenio.socket.SocketIF;
-import ch.dermitza.securenio.util.PropertiesReader;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.Configuration;
 import ch.dermitza.securenio.util.logging.LoggerHandler;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,13 +42,14 @@ import java.util.logging.Logger;
  * data on that socket arrives.
  *
  * @author K. Dermitzakis
- * @version 0.19
+ * @version 0.21
  * @since   0.18
  */
 public abstract class AbstractPacketWorker implements Runnable {
 
     private final Logger LOGGER = LoggerHandler.getLogger(AbstractPacketWorker.class.getName());
     private final ArrayList<PacketListener> listeners = new ArrayList<>();
+    private final ArrayList<BackpressureListener> bpListeners = new ArrayList<>();
     /**
      * Maps a SocketChannel to a list of ByteBuffer instances
      */
@@ -55,14 +59,39 @@ public abstract class AbstractPacketWorker implements Runnable {
      */
     protected final ArrayDeque<SocketIF> pendingSockets = new ArrayDeque<>();
     private boolean running = false;
-    private byte[] tempArray;
+    // Bytes handed to this worker and not yet processed (approximation)
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final long backpressureBytes;
+    // Pending bytes at which a backpressured worker has caught up again
+    private final long relievedBytes;
+    // Initial and minimum extension size of the per-socket data buffers
+    private final int packetBufSize;
+
+    /**
+     * Create a packet worker using the default {@link Configuration}.
+     */
+    protected AbstractPacketWorker() {
+        this(Configuration.getDefault());
+    }
+
+    /**
+     * Create a packet worker using the given {@link Configuration}.
+     *
+     * @param config The Configuration of this packet worker
+     */
+    protected AbstractPacketWorker(Configuration config) {
+        this.backpressureBytes = config.getBackpressureBytes();
+        this.relievedBytes = backpressureBytes / 2;
+        this.packetBufSize = config.getPacketBufSize();
+    }
 
     /**
      * Queue data received from a {@link SocketIF} for processing and
-     * reconstruction. A deep copy of the passed {@link ByteBuffer} is made
-     * locally. Following, a data queue for that {@link SocketIF} is created if
-     * it does not exist, and the current piece of data received is added to
-     * that queue for later processing and reconstruction.
+     * reconstruction. A data buffer for that {@link SocketIF} is acquired
+     * from the {@link BufferPool} if it does not exist, and the first
+     * {@code count} bytes of the passed {@link ByteBuffer} are copied into it
+     * for later processing and reconstruction. The position and limit of the
+     * passed {@link ByteBuffer} are consumed by this method.
      *
      * @param socket The SocketIF data was received from
      * @param data The ByteBuffer containing the data (bytes) received
@@ -71,9 +100,11 @@ public abstract class AbstractPacketWorker implements Runnable {
      * @see #processData()
      */
     public void addData(SocketIF socket, ByteBuffer data, int count) {
-        tempArray = new byte[count];
-        System.arraycopy(data.array(), 0, tempArray, 0, count);
+        data.limit(count);
+        data.position(0);
         synchronized (this.pendingSockets) {
+            // Counted under the lock, see caughtUp()
+            pendingBytes.addAndGet(count);
             if (!pendingSockets.contains(socket)) {
                 // Check that we do not add a socket twice. Once is enough
                 // to trigger processing
@@ -84,8 +115,8 @@ public abstract class AbstractPacketWorker implements Runnable {
                 if (buffer == null) {
                     // allocate a large enough buffer to hold the data we
                     // just received
-                    int size = (count > PropertiesReader.getPacketBufSize()) ? count : PropertiesReader.getPacketBufSize();
-                    buffer = ByteBuffer.allocate(size);
+                    int size = (count > packetBufSize) ? count : packetBufSize;
+                    buffer = BufferPool.acquire(size);
                     this.pendingData.put(socket, buffer);
                 }
 
@@ -105,9 +136,8 @@ public abstract class AbstractPacketWorker implements Runnable {
                     // growing buffer can also indicate that the underlying
                     // data is never or wrongly processed, that can indicate a
                     // problem with the end application.
-                    int extSize = (diff > PropertiesReader.getPacketBufSize())
-                            ? diff : PropertiesReader.getPacketBufSize();
-                    ByteBuffer temp = ByteBuffer.allocate(buffer.capacity() + extSize);
+                    int extSize = (diff > packetBufSize) ? diff : packetBufSize;
+                    ByteBuffer temp = BufferPool.acquire(buffer.capacity() + extSize);
                     LOGGER.log(Level.FINEST, "new size: {0}", temp.capacity());
                     // Flip existing buffer to prepare for putting in the replacement
                     buffer.flip();
@@ -116,8 +146,8 @@ public abstract class AbstractPacketWorker implements Runnable {
                                 buffer.capacity()});
                     // put existing buffer into the temporary replacement
                     temp.put(buffer);
-                    // Remove the old reference
-                    this.pendingData.remove(socket);
+                    // Remove the old reference and return it to the pool
+                    BufferPool.release(this.pendingData.remove(socket));
                     // Replace reference
                     buffer = temp;
                     // associate the new buffer with the socket
@@ -126,7 +156,7 @@ public abstract class AbstractPacketWorker implements Runnable {
                     // added naturally
                 }
                 // Make a copy of the data
-                buffer.put(tempArray);
+                buffer.put(data);
                 LOGGER.log(Level.FINEST, "pos {0} lim {1} cap {2}",
                         new Object[]{buffer.position(), buffer.limit(),
                             buffer.capacity()});
@@ -135,6 +165,96 @@ public abstract class AbstractPacketWorker implements Runnable {
         }
     }
 
+    /**
+     * Queue data received from a {@link SocketIF} and process it right away
+     * on the calling thread, reassembling packets and firing the registered
+     * {@link PacketListener}s before returning. This is used by workers that
+     * are not run on a thread of their own, such as the per-connection
+     * workers of the {@link ch.dermitza.securenio.BlockingServer}.
+     *
+     * @param socket The SocketIF data was received from
+     * @param data The ByteBuffer containing the data (bytes) received
+     * @param count The number of bytes received
+     *
+     * @see #addData(SocketIF, ByteBuffer, int)
+     */
+    public void processInline(SocketIF socket, ByteBuffer data, int count) {
+        addData(socket, data, count);
+        long taken = pendingBytes.get();
+        processData();
+        processed(taken);
+    }
+
+    /**
+     * Discard any data received from the given {@link SocketIF} and not yet
+     * reassembled into a packet, releasing its data buffer to the
+     * {@link BufferPool}. This is called once the socket of a worker that is
+     * not run on a thread of its own has been closed.
+     *
+     * @param socket The SocketIF whose pending data is to be discarded
+     */
+    public void discardData(SocketIF socket) {
+        synchronized (this.pendingSockets) {
+            pendingSockets.remove(socket);
+            removeData(socket);
+        }
+    }
+
+    /**
+     * Returns whether this worker is falling behind, i.e. whether more than
+     * packetworker.backpressure_bytes bytes have been handed to it via
+     * {@link #addData(SocketIF, ByteBuffer, int)} and not yet been processed.
+     * Selector threads stop reading from their sockets while this is the
+     * case, clearing OP_READ from their keys, until registered
+     * {@link BackpressureListener}s are notified that this worker has caught
+     * up, see {@link #addBackpressureListener(BackpressureListener)}.
+     *
+     * @return true if this worker is falling behind processing incoming data
+     */
+    public boolean isBackpressured() {
+        return pendingBytes.get() > backpressureBytes;
+    }
+
+    /**
+     * Account for the given number of bytes having been processed, notifying
+     * the registered {@link BackpressureListener}s if this brings the bytes
+     * pending down to half of the packetworker.backpressure_bytes.
+     *
+     * @param taken The number of bytes processed
+     */
+    private void processed(long taken) {
+        long left = pendingBytes.addAndGet(-taken);
+        if (left <= relievedBytes && left + taken > relievedBytes) {
+            fireBackpressureRelieved();
+        }
+    }
+
+    /**
+     * Reset the bytes pending once all data handed to this worker has been
+     * processed, as bytes handed to it while processing are processed in the
+     * same pass but only accounted for in the next one. The registered
+     * {@link BackpressureListener}s are notified if this brings the bytes
+     * pending down to half of the packetworker.backpressure_bytes. Must be
+     * called while holding the {@link #pendingSockets} lock, with no sockets
+     * pending.
+     */
+    private void caughtUp() {
+        if (pendingBytes.getAndSet(0) > relievedBytes) {
+            fireBackpressureRelieved();
+        }
+    }
+
+    /**
+     * Remove the data buffer of the given {@link SocketIF}, once all data on
+     * it has been processed, releasing it to the {@link BufferPool}. Must be
+     * called while holding the {@link #pendingSockets} lock.
+     *
+     * @param socket The SocketIF whose data buffer is to be removed
+     */
+    protected void removeData(SocketIF socket) {
+        BufferPool.release(pendingData.remove(socket));
+    }
+
     /**
      * This is the main entry point of received data processing and reassembly.
      * This is left for the application layer to decide how to process raw
@@ -159,6 +279,7 @@ public abstract class AbstractPacketWorker implements Runnable {
             // Wait for data to become available
             synchronized (pendingSockets) {
                 while (pendingSockets.isEmpty()) {
+                    caughtUp();
                     // Check whether someone asked us to shutdown
                     // If its the case, and as the queue is empty
                     // we are free to break from the main loop and
@@ -173,8 +294,11 @@ public abstract class AbstractPacketWorker implements Runnable {
                 }
                 // We have some data on a socket here
             }
-            // Do something with the data here
+            // Do something with the data here. Everything added up to this
+            // point is processed in this pass
+            long taken = pendingBytes.get();
             processData();
+            processed(taken);
         }
         shutdown();
     }
@@ -216,11 +340,19 @@ public abstract class AbstractPacketWorker implements Runnable {
      */
     private void shutdown() {
         LOGGER.config("Shutting down...");
-        // Clear the queue
-        pendingData.clear();
+        // Clear the queue, releasing all buffers
+        synchronized (this.pendingSockets) {
+            for (ByteBuffer buffer : pendingData.values()) {
+                BufferPool.release(buffer);
+            }
+            pendingData.clear();
+        }
         pendingSockets.clear();
         // Remove all listener references
         listeners.clear();
+        synchronized (bpListeners) {
+            bpListeners.clear();
+        }
     }
 
     //----------------------- LISTENER METHODS -------------------------------//
@@ -248,6 +380,49 @@ public abstract class AbstractPacketWorker implements Runnable {
         }
     }
 
+    /**
+     * Allows registration of multiple {@link BackpressureListener}s to this
+     * {@link AbstractPacketWorker}, e.g. the selectors handing data to it.
+     *
+     * @param listener The listener to register to this PacketWorker
+     */
+    public void addBackpressureListener(BackpressureListener listener) {
+        synchronized (bpListeners) {
+            bpListeners.add(listener);
+        }
+    }
+
+    /**
+     * Allows de-registration of multiple {@link BackpressureListener}s from
+     * this {@link AbstractPacketWorker}.
+     *
+     * @param listener The listener to unregister from this PacketWorker
+     */
+    public void removeBackpressureListener(BackpressureListener listener) {
+        synchronized (bpListeners) {
+            bpListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Notify the registered {@link BackpressureListener}s that this worker
+     * has caught up on the data handed to it. This method creates a local
+     * copy of the already registered listeners when firing events, to avoid
+     * potential concurrent modification exceptions.
+     */
+    private void fireBackpressureRelieved() {
+        BackpressureListener[] temp;
+        synchronized (bpListeners) {
+            if (bpListeners.isEmpty()) {
+                return;
+            }
+            temp = bpListeners.toArray(new BackpressureListener[bpListeners.size()]);
+        }
+        for (BackpressureListener listener : temp) {
+            listener.backpressureRelieved();
+        }
+    }
+
     /**
      * Once a {@link PacketIF} has been completely reconstructed, registered
      * listeners are notified via this method. This method creates a local copy
@@ -0,0 +1,40 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.packet.worker;
+
+/**
+ * A factory of {@link AbstractPacketWorker}s, used by engines that give every
+ * connection a packet worker of its own, such as the
+ * {@link ch.dermitza.securenio.BlockingServer}. Workers created by a factory
+ * are not run on a thread of their own; data is processed on the connection
+ * thread via
+ * {@link AbstractPacketWorker#processInline(ch.dermitza.securenio.socket.SocketIF, java.nio.ByteBuffer, int)}.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public interface PacketWorkerFactory {
+
+    /**
+     * Create a new packet worker, to process the data of a single connection.
+     *
+     * @return a new AbstractPacketWorker instance
+     */
+    public AbstractPacketWorker newPacketWorker();
+}
@@ -22,16 +22,33 @@ import ch.dermitza.securenio.packet.singlebyte.PacketPong;
 import ch.dermitza.securenio.packet.singlebyte.PacketUnknown;
 import ch.dermitza.securenio.packet.singlebyte.SimplePacket;
 import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
 import java.nio.ByteBuffer;
 
 /**
  * A packet worker implementation that ONLY handles single-byte packets.
  *
  * @author K. Dermitzakis
- * @version 0.18
+ * @version 0.21
  */
 public class SimplePacketWorker extends AbstractPacketWorker {
 
+    /**
+     * Create a SimplePacketWorker using the default {@link Configuration}.
+     */
+    public SimplePacketWorker() {
+        super();
+    }
+
+    /**
+     * Create a SimplePacketWorker using the given {@link Configuration}.
+     *
+     * @param config The Configuration of this packet worker
+     */
+    public SimplePacketWorker(Configuration config) {
+        super(config);
+    }
+
     @Override
     protected void processData() {
         SimplePacket packet;
@@ -75,7 +92,7 @@ public class SimplePacketWorker extends AbstractPacketWorker {
                 // No more data in the buffer, clear it
                 data.clear();
                 // no more data on this socket, remove it
-                pendingData.remove(socket);
+                removeData(socket);
                 pendingSockets.removeFirst();
             }
         }
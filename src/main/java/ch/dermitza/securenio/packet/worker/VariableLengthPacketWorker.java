@@ -18,6 +18,7 @@
 package ch.dermitza.securenio.packet.worker;
 
 import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
 import java.nio.ByteBuffer;
 
 /**
@@ -41,7 +42,7 @@ import java.nio.ByteBuffer;
  * the reconstructed packet.
  *
  * @author K. Dermitzakis
- * @version 0.18
+ * @version 0.21
  */
 public abstract class VariableLengthPacketWorker extends AbstractPacketWorker {
 
@@ -66,6 +67,22 @@ public abstract class VariableLengthPacketWorker extends AbstractPacketWorker {
      * bytes long
      */
     public VariableLengthPacketWorker(boolean singleByte, boolean shortSize) {
+        this(singleByte, shortSize, Configuration.getDefault());
+    }
+
+    /**
+     * Initializes this packet worker to work with packets having a custom
+     * header and payload length, using the given {@link Configuration}.
+     *
+     * @param singleByte true if the header is one byte, false if it is 2 bytes
+     * long
+     * @param shortSize true if the payload length is 2 bytes, false if it is 4
+     * bytes long
+     * @param config The Configuration of this packet worker
+     */
+    public VariableLengthPacketWorker(boolean singleByte, boolean shortSize,
+            Configuration config) {
+        super(config);
         this.headerLength = singleByte ? HEADER_LENGTH : 2;
         this.sizeLength = shortSize ? SIZE_LENGTH : 4;
     }
@@ -161,9 +178,11 @@ public abstract class VariableLengthPacketWorker extends AbstractPacketWorker {
                         //System.out.println("After flip Limit: " + data.limit() + " position: " + data.position());
                         if (data.position() == data.limit()) {
                             //System.out.println("No more data, removing socket and buffer");
-                            // no more data on this socket, remove it
-                            pendingData.remove(socket);
+                            // no more data on this socket, remove it. The
+                            // buffer is released and MUST NOT be used anymore
+                            removeData(socket);
                             pendingSockets.removeFirst();
+                            break;
                         }
                     } else {
                         //System.out.println("Not enough data to reconstruct packet");
@@ -0,0 +1,314 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.socket;
+
+import ch.dermitza.securenio.socket.timeout.worker.Timeout;
+import ch.dermitza.securenio.util.BufferPool;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A per-socket queue of {@link ByteBuffer}s waiting to be written to the
+ * remote peer. Each {@link SocketIF} owns one OutboundQueue, which is filled
+ * by any number of application threads via
+ * {@link ch.dermitza.securenio.AbstractSelector#send(SocketIF, ByteBuffer)}
+ * and drained by the selector thread servicing the socket. <p> This
+ * implementation is lock-free and thread-safe, so that sender threads never
+ * block behind the selector thread while it is flushing a socket. <p> The
+ * queue keeps count of the bytes queued and not yet written, and tracks the
+ * writability state of its socket. The selector owning the socket flips the
+ * state to unwritable when the count crosses the high watermark and back to
+ * writable once it drops to the low watermark, see
+ * {@link ch.dermitza.securenio.AbstractSelector#send(SocketIF, ByteBuffer)}.
+ * <p> Each queued buffer records whether it was acquired from the
+ * {@link BufferPool} for this queue (e.g. a direct copy of a heap buffer), in
+ * which case it is released to the pool once written or dropped. Other
+ * buffers belong to the caller that queued them and are left alone.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class OutboundQueue {
+
+    /**
+     * The underlying queue holding the buffers in FIFO order
+     */
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of bytes queued and not yet written
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private final AtomicReference<Timeout> eviction = new AtomicReference<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Queue a {@link ByteBuffer} to be written to the remote peer. If this
+     * queue has already been cleared (i.e. its socket has been closed), or is
+     * cleared while the data is being queued, the data is dropped instead.
+     *
+     * @param data The ByteBuffer to queue
+     * @param pooled Whether the data was acquired from the {@link BufferPool}
+     * for this queue, and is to be released to it once written or dropped
+     * @return the number of bytes queued and not yet written, including the
+     * given data
+     */
+    public long add(ByteBuffer data, boolean pooled) {
+        if (closed) {
+            if (pooled) {
+                BufferPool.release(data);
+            }
+            return bytes.get();
+        }
+        long queued = bytes.addAndGet(data.remaining());
+        queue.add(new Entry(data, pooled));
+        if (closed) {
+            // The queue was cleared meanwhile, and may have missed the data
+            drain();
+            return 0;
+        }
+        return queued;
+    }
+
+    /**
+     * Account for {@code count} queued bytes having been written to the
+     * remote peer.
+     *
+     * @param count The number of queued bytes written
+     * @return the number of bytes still queued and not yet written
+     */
+    public long written(long count) {
+        return bytes.addAndGet(-count);
+    }
+
+    /**
+     * Returns the number of bytes queued and not yet written.
+     *
+     * @return the number of bytes queued and not yet written
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns whether the socket owning this queue is writable, i.e. whether
+     * the bytes queued have not crossed the high watermark, or have dropped
+     * back to the low watermark since.
+     *
+     * @return true if the socket owning this queue is writable
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * Atomically change the writability state of this queue. Threads blocked
+     * in {@link #awaitWritable(long)} are woken up once this queue becomes
+     * writable.
+     *
+     * @param writable The new writability state
+     * @return true if the state changed, false if it already was the given
+     * state
+     */
+    public boolean setWritable(boolean writable) {
+        if (!this.writable.compareAndSet(!writable, writable)) {
+            return false;
+        }
+        if (writable) {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Block until this queue becomes writable, is cleared, or the given
+     * timeout elapses.
+     *
+     * @param timeoutMS The maximum time to wait (ms), 0 to wait indefinitely
+     * @return true if this queue is writable, false if the timeout elapsed or
+     * the queue has been cleared (its socket closed)
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting
+     */
+    public boolean awaitWritable(long timeoutMS) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMS;
+        synchronized (this) {
+            while (!writable.get() && !closed) {
+                if (timeoutMS == 0) {
+                    this.wait();
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    this.wait(wait);
+                }
+            }
+        }
+        return !closed;
+    }
+
+    /**
+     * Arm the slow-consumer eviction {@link Timeout} of this queue, if it is
+     * not armed already.
+     *
+     * @param timeout The eviction timeout to arm
+     * @return true if the given timeout was armed, false if another eviction
+     * timeout is already armed
+     */
+    public boolean armEviction(Timeout timeout) {
+        return eviction.compareAndSet(null, timeout);
+    }
+
+    /**
+     * Returns whether the slow-consumer eviction {@link Timeout} of this queue
+     * is armed.
+     *
+     * @return true if an eviction timeout is armed
+     */
+    public boolean isEvictionArmed() {
+        return eviction.get() != null;
+    }
+
+    /**
+     * Disarm the slow-consumer eviction {@link Timeout} of this queue.
+     *
+     * @return the eviction timeout that was armed, to be cancelled, or null if
+     * none was armed
+     */
+    public Timeout disarmEviction() {
+        return eviction.getAndSet(null);
+    }
+
+    /**
+     * Retrieve, but do not remove, the {@link ByteBuffer} at the head of this
+     * queue, i.e. the next buffer to be written.
+     *
+     * @return the ByteBuffer at the head of this queue, or null if this queue
+     * is empty
+     */
+    public ByteBuffer peek() {
+        Entry head = queue.peek();
+        return (head == null) ? null : head.data;
+    }
+
+    /**
+     * Remove the {@link ByteBuffer} at the head of this queue, releasing it to
+     * the {@link BufferPool} if it was acquired from it. This is called by the
+     * selector thread once the buffer has been written completely.
+     */
+    public void remove() {
+        release(queue.poll());
+    }
+
+    /**
+     * Copy references to the {@link ByteBuffer}s at the head of this queue
+     * into the given array, without removing them from the queue, so that
+     * they can be written in a single gathering write. At most
+     * {@code dst.length} buffers are gathered, and no further buffers are
+     * gathered once {@code maxBytes} bytes have been reached. At least one
+     * buffer is gathered if this queue is not empty, regardless of its size.
+     * <p> This method must only be called from the selector thread draining
+     * this queue. Fully written buffers are subsequently removed via
+     * {@link #remove()}.
+     *
+     * @param dst The array to gather the buffers in, starting at index 0
+     * @param maxBytes The maximum number of bytes to gather
+     * @return the number of buffers gathered in the given array
+     */
+    public int gather(ByteBuffer[] dst, long maxBytes) {
+        int count = 0;
+        long bytes = 0;
+        for (Entry entry : queue) {
+            if (count == dst.length || (count > 0 && bytes >= maxBytes)) {
+                break;
+            }
+            dst[count++] = entry.data;
+            bytes += entry.data.remaining();
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if there is no data queued to be written.
+     *
+     * @return true if there is no data queued to be written
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Remove all queued {@link ByteBuffer}s from this queue, releasing those
+     * acquired from the {@link BufferPool} to it. This is called once the associated socket has
+     * been closed; data queued afterwards is dropped and threads blocked in
+     * {@link #awaitWritable(long)} return.
+     */
+    public void clear() {
+        closed = true;
+        drain();
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Remove all queued {@link ByteBuffer}s from this queue, releasing those
+     * acquired from the {@link BufferPool} to it.
+     */
+    private void drain() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            release(entry);
+        }
+        bytes.set(0);
+    }
+
+    /**
+     * Release the buffer of the given entry to the {@link BufferPool}, if it
+     * was acquired from it.
+     *
+     * @param entry The entry removed from this queue, may be null
+     */
+    private static void release(Entry entry) {
+        if (entry != null && entry.pooled) {
+            BufferPool.release(entry.data);
+        }
+    }
+
+    /**
+     * A queued buffer, along with whether it was acquired from the
+     * {@link BufferPool}.
+     */
+    private static final class Entry {
+
+        private final ByteBuffer data;
+        private final boolean pooled;
+
+        Entry(ByteBuffer data, boolean pooled) {
+            this.data = data;
+            this.pooled = pooled;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A plain socket implementation of {@link SocketIF}. As a plain socket behaves
@@ -36,7 +37,7 @@ import java.nio.channels.SocketChannel;
  * this implementation.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since 0.18
  */
 public final class PlainSocket implements SocketIF {
@@ -45,6 +46,12 @@ public final class PlainSocket implements SocketIF {
      * The underlying {@link SocketChannel}
      */
     private final SocketChannel channel;
+    /**
+     * The data queued to be written to the remote peer
+     */
+    private final OutboundQueue outbound = new OutboundQueue();
+    // Operations pending on this socket, see markPending()
+    private final AtomicInteger pending = new AtomicInteger();
 
     /**
      * Create a plain socket (i.e. no encryption) instance of the
@@ -70,6 +77,72 @@ public final class PlainSocket implements SocketIF {
         return this.channel;
     }
 
+    /**
+     * Returns the {@link OutboundQueue} of this socket, holding the data queued
+     * to be written to the remote peer.
+     *
+     * @return the OutboundQueue of this socket
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return this.outbound;
+    }
+
+    /**
+     * Atomically mark the given operations as pending on this socket.
+     *
+     * @param ops The operations to mark as pending
+     * @return true if no operations were pending before this call
+     *
+     * @see SocketIF#markPending(int)
+     */
+    @Override
+    public boolean markPending(int ops) {
+        int prev;
+        do {
+            prev = pending.get();
+            if ((prev & ops) == ops) {
+                // Already pending, and the socket already queued
+                return false;
+            }
+        } while (!pending.compareAndSet(prev, prev | ops));
+        return prev == 0;
+    }
+
+    /**
+     * Atomically retrieve and clear the operations pending on this socket.
+     *
+     * @return the operations pending on this socket
+     *
+     * @see SocketIF#takePending()
+     */
+    @Override
+    public int takePending() {
+        return pending.getAndSet(0);
+    }
+
+    /**
+     * A plain socket buffers no data internally, data is written straight to
+     * the underlying {@link SocketChannel}.
+     *
+     * @return true, there is never any data left to flush
+     */
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    /**
+     * A plain socket buffers no data internally, data is read straight from
+     * the underlying {@link SocketChannel}.
+     *
+     * @return false, there is never any input buffered
+     */
+    @Override
+    public boolean hasBufferedInput() {
+        return false;
+    }
+
     //---------------------- PASS-THROUGH IMPLEMENTATIONS --------------------//
     /**
      * Pass-through implementation of
@@ -115,6 +188,24 @@ public final class PlainSocket implements SocketIF {
         return channel.write(buffer);
     }
 
+    /**
+     * Pass-through implementation of
+     * {@link SocketChannel#write(ByteBuffer[] srcs, int offset, int length)}
+     *
+     * @param srcs The buffers from which bytes are to be retrieved
+     * @param offset The offset within the buffer array of the first buffer
+     * from which bytes are to be retrieved
+     * @param length The maximum number of buffers to be accessed
+     * @return The number of bytes written, possibly zero
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer[] srcs, int offset, int length)}
+     * implementation.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return channel.write(srcs, offset, length);
+    }
+
     /**
      * Pass-through implementation of
      * {@link SocketChannel#connect(SocketAddress remote)}
@@ -132,18 +223,19 @@ public final class PlainSocket implements SocketIF {
 
     /**
      * Pass-through implementation of
-     * {@link SocketChannel#register(Selector sel, int ops)}
+     * {@link SocketChannel#register(Selector sel, int ops, Object att)},
+     * attaching this socket to the resulting key.
      *
      * @param sel The selector with which this channel is to be registered
      * @param ops The interest set for the resulting key
      * @return A key representing the registration of this channel with the
-     * given selector
+     * given selector, having this socket as its attachment
      * @throws ClosedChannelException Propagated exceptions from the underlying
      * {@link SocketChannel#register(Selector sel, int ops)} implementation.
      */
     @Override
     public SelectionKey register(Selector sel, int ops) throws ClosedChannelException {
-        return channel.register(sel, ops);
+        return channel.register(sel, ops, this);
     }
 
     /**
@@ -206,6 +298,18 @@ public final class PlainSocket implements SocketIF {
         return false;
     }
 
+    /**
+     * Empty implementation satisfying {@link SocketIF#isSessionResumed()}. No
+     * sessions exist on a {@link PlainSocket}. This method has NO effect.
+     *
+     * @return Always false, no session is resumed on a PlainSocket
+     */
+    @Override
+    public boolean isSessionResumed() {
+        // No sessions exist in a plain socket
+        return false;
+    }
+
     /**
      * Empty implementation satisfying {@link SocketIF#updateResult()}. No
      * {@link javax.net.ssl.SSLEngineResult} is present on a
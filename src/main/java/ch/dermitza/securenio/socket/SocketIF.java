@@ -38,7 +38,7 @@ import java.nio.channels.SocketChannel;
  * a {@link Selector}.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since   0.18
  *
  */
@@ -61,6 +61,44 @@ public interface SocketIF {
      * @return Whether the underlying SocketChannel is connected.
      */
     boolean isConnected();
+
+    /**
+     * Returns the {@link OutboundQueue} of this socket, holding the data queued
+     * to be written to the remote peer. The queue is owned by the socket and
+     * is reachable from the selector thread through the {@link SelectionKey}
+     * attachment, as the socket attaches itself upon
+     * {@link #register(Selector, int)}.
+     *
+     * @return the OutboundQueue of this socket
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Atomically mark the given operations (a bitmask defined by the selector
+     * servicing this socket) as pending on this socket. Any thread may call
+     * this method; only the caller turning the pending operations from none
+     * to some is told to hand this socket to the selector thread, so that a
+     * socket is queued at most once no matter how many operations are marked
+     * before the selector thread gets to it.
+     *
+     * @param ops The operations to mark as pending
+     * @return true if no operations were pending before this call, i.e. if
+     * the caller needs to queue this socket for the selector thread
+     *
+     * @see #takePending()
+     */
+    boolean markPending(int ops);
+
+    /**
+     * Atomically retrieve and clear all operations marked as pending on this
+     * socket. This is called by the selector thread servicing this socket,
+     * once it dequeues it.
+     *
+     * @return the operations pending on this socket
+     *
+     * @see #markPending(int)
+     */
+    int takePending();
     
     //------------------ PASS-THROUGH IMPLEMENTATIONS ------------------------//
     /**
@@ -86,12 +124,15 @@ public interface SocketIF {
 
     /**
      * Pass-through implementation of
-     * {@link SocketChannel#register(Selector sel, int ops)}
+     * {@link SocketChannel#register(Selector sel, int ops, Object att)}. The
+     * socket itself is attached to the resulting {@link SelectionKey}, so that
+     * the selector thread can reach it (and its {@link OutboundQueue}) without
+     * any lookup.
      *
      * @param sel The selector with which this channel is to be registered
      * @param ops The interest set for the resulting key
      * @return A key representing the registration of this channel with the
-     * given selector
+     * given selector, having this socket as its attachment
      * @throws ClosedChannelException Propagated exceptions from the underlying
      * {@link SocketChannel#register(Selector sel, int ops)} implementation.
      */
@@ -132,6 +173,50 @@ public interface SocketIF {
      */
     int write(ByteBuffer buffer) throws IOException;
 
+    /**
+     * Pass-through implementation of
+     * {@link SocketChannel#write(ByteBuffer[] srcs, int offset, int length)}.
+     * Writes a sequence of bytes to this socket from a subsequence of the
+     * given buffers in a single (gathering) write, where supported by the
+     * underlying implementation.
+     *
+     * @param srcs The buffers from which bytes are to be retrieved
+     * @param offset The offset within the buffer array of the first buffer
+     * from which bytes are to be retrieved
+     * @param length The maximum number of buffers to be accessed
+     * @return The number of bytes written, possibly zero
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer[] srcs, int offset, int length)}
+     * implementation.
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+    /**
+     * Flush any data this socket has buffered internally (e.g. encrypted
+     * SSL/TLS records) to the underlying {@link SocketChannel}, without
+     * blocking. Data the channel cannot take is kept for the next call, which
+     * is made once the channel becomes writable again, see
+     * {@link ch.dermitza.securenio.AbstractSelector#write(SelectionKey)}.
+     *
+     * @return true if no data remains buffered in this socket, false if the
+     * flush was incomplete
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)} implementation.
+     */
+    boolean flush() throws IOException;
+
+    /**
+     * Returns whether this socket holds input it has already read from the
+     * underlying {@link SocketChannel} (e.g. complete SSL/TLS records, or
+     * decrypted data not yet returned), which {@link #read(ByteBuffer)} can
+     * return without the channel becoming readable again. Input waiting for
+     * more data from the channel (e.g. a partial record) does not count.
+     * This is only called by the thread reading from the socket.
+     *
+     * @return true if input is buffered in this socket
+     */
+    boolean hasBufferedInput();
+
     /**
      * Pass-through implementation of {@link SocketChannel#close()}
      *
@@ -144,8 +229,10 @@ public interface SocketIF {
     /**
      * Invalidate the current {@link javax.net.ssl.SSLSession}. This method
      * could be periodically used via a {@link Timeout} to perform SSL/TLS
-     * session rotation if needed. <p> This method has NO EFFECT for a
-     * {@link PlainSocket} implementation.
+     * session rotation if needed. A TLSv1.3 session updates its traffic keys
+     * instead, see
+     * {@link ch.dermitza.securenio.socket.secure.SecureSocket#invalidateSession()}.
+     * <p> This method has NO EFFECT for a {@link PlainSocket} implementation.
      */
     void invalidateSession();
 
@@ -182,6 +269,18 @@ public interface SocketIF {
      */
     boolean handshakePending();
 
+    /**
+     * Used to identify whether the last completed SSL/TLS handshake resumed a
+     * previously negotiated {@link javax.net.ssl.SSLSession} (an abbreviated
+     * handshake) instead of performing a full handshake. <p> This method has
+     * NO EFFECT for a {@link PlainSocket} implementation.
+     *
+     * @return whether the last handshake resumed a session. Always false for a
+     * {@link PlainSocket} implementation
+     * @see ch.dermitza.securenio.socket.secure.SecureSocket#isSessionResumed()
+     */
+    boolean isSessionResumed();
+
     /**
      * Sets whether or not there is an {@link javax.net.ssl.SSLEngine} task
      * pending, during an SSL/TLS handshake. <p> This method has NO EFFECT for a
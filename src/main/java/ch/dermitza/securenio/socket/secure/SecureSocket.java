@@ -18,11 +18,13 @@
 package ch.dermitza.securenio.socket.secure;
 
 import ch.dermitza.securenio.AbstractSelector;
+import ch.dermitza.securenio.socket.OutboundQueue;
 import ch.dermitza.securenio.socket.SocketIF;
 import ch.dermitza.securenio.socket.timeout.TimeoutListener;
 import ch.dermitza.securenio.socket.timeout.worker.Timeout;
 import ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker;
-import ch.dermitza.securenio.util.PropertiesReader;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.Configuration;
 import ch.dermitza.securenio.util.logging.LoggerHandler;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -35,6 +37,7 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.SSLEngine;
@@ -49,32 +52,61 @@ import javax.net.ssl.SSLSession;
 /**
  * A secure socket implementation of {@link SocketIF}. This class implements all
  * logic required to process SSL/TLS handshaking and encrypt/decrypt data being
- * sent and received through the underlying {@link SocketChannel}. <p> Note that
- * this class is declared as final as it should NOT be extended.
+ * sent and received through the underlying {@link SocketChannel}. <p> Under
+ * TLSv1.3, handshake messages keep arriving once the handshake has completed
+ * (e.g. session tickets, KeyUpdate), and are processed as they are unwrapped
+ * along with application data, without the socket ever handshaking again.
+ * Re-initiating a handshake of an established TLSv1.3 session, see
+ * {@link #invalidateSession()}, updates its traffic keys instead. <p> Note
+ * that this class is declared as final as it should NOT be extended.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since 0.18
  */
 public final class SecureSocket implements SocketIF {
 
     private static final Logger LOGGER = LoggerHandler.getLogger(SecureSocket.class.getName());
+    // Application data is wrapped straight from the caller's buffers, the
+    // handshake wraps nothing
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
     private final SocketChannel sc;
     private final SSLEngine engine;
     // BUFFERS
-    private final ByteBuffer encryptedIn;
-    private final ByteBuffer encryptedOut;
-    private final ByteBuffer decryptedIn;
-    private final ByteBuffer decryptedOut;
+    // Pooled buffers, null while not needed (see acquireInbound()), grown to
+    // the packet and application buffer sizes of the SSLSession as needed,
+    // see growInbound() and growOutbound()
+    // The inbound buffers are only ever accessed by the reading side of this
+    // socket, while the application may write from other threads (e.g. the
+    // senders of a BlockingServer connection), see outboundLock
+    private ByteBuffer encryptedIn;
+    private ByteBuffer encryptedOut;
+    private ByteBuffer decryptedIn;
+    private volatile int appBufSize;
+    private volatile int netBufSize;
+    // Guards encryptedOut, wrapStalled and every wrap of the SSLEngine
+    private final Object outboundLock = new Object();
+    // Reusable array wrapping the buffer given to write(ByteBuffer)
+    private final ByteBuffer[] single = new ByteBuffer[1];
     private volatile boolean handshakePending = true;
+    // When the current handshake started, and whether it resumed a session
+    private long handshakeStart;
+    private volatile boolean sessionResumed = false;
     private volatile boolean taskPending = false;
+    private boolean closed = false;
+    // Whether a handshake wrap is waiting for encryptedOut to be flushed
+    private boolean wrapStalled = false;
     private boolean singleThreaded = false;
+    // The result of the last unwrap, accessed by the reading side only
     private SSLEngineResult result = null;
     private final HandshakeListener hsListener;
     private final TimeoutListener toListener;
     private final TaskWorker taskWorker;
     private final TimeoutWorker toWorker;
     private final Timeout timeout;
+    private final OutboundQueue outbound = new OutboundQueue();
+    // Operations pending on this socket, see markPending()
+    private final AtomicInteger pending = new AtomicInteger();
 
     /**
      * Create a new instance of a {@link SecureSocket}. This instance has all
@@ -104,6 +136,35 @@ public final class SecureSocket implements SocketIF {
             boolean singleThreaded, TaskWorker taskWorker,
             TimeoutWorker toWorker, HandshakeListener hsListener,
             TimeoutListener toListener) {
+        this(channel, engine, singleThreaded, taskWorker, toWorker, hsListener,
+                toListener, Configuration.getDefault().getTimeoutMS());
+    }
+
+    /**
+     * Create a SecureSocket instance whose handshake times out after the
+     * given period, see
+     * {@link #SecureSocket(SocketChannel, SSLEngine, boolean, TaskWorker, TimeoutWorker, HandshakeListener, TimeoutListener)}.
+     *
+     * @param channel The underlying SocketChannel
+     * @param engine The underlying SSLEngine
+     * @param singleThreaded Whether or not this socket should perform the
+     * {@link SSLEngineResult#HandshakeStatus} NEED_TASK in the same thread
+     * @param taskWorker The {@link TaskWorker} instance associated with this
+     * SecureSocket, or null if running tasks in the same thread
+     * @param toWorker The {@link TimeoutWorker} instance associated with this
+     * SecureSocket.
+     * @param hsListener The {@link HandshakeListener} associated with this
+     * SecureSocket.
+     * @param toListener The {@link TimeoutListener} associated with this
+     * SecureSocket.
+     * @param timeoutMS The period (ms) to wait on an empty buffer during
+     * handshaking, see
+     * {@link Configuration#getTimeoutMS()}
+     */
+    public SecureSocket(SocketChannel channel, SSLEngine engine,
+            boolean singleThreaded, TaskWorker taskWorker,
+            TimeoutWorker toWorker, HandshakeListener hsListener,
+            TimeoutListener toListener, long timeoutMS) {
         this.sc = channel;
         this.engine = engine;
         this.singleThreaded = singleThreaded;
@@ -112,15 +173,14 @@ public final class SecureSocket implements SocketIF {
         // Timeouts
         this.toWorker = toWorker;
         this.toListener = toListener;
-        timeout = new Timeout(this, toListener, PropertiesReader.getTimeoutMS());
+        timeout = new Timeout(this, toListener, timeoutMS);
 
-        int appBufSize = engine.getSession().getApplicationBufferSize();
-        int netBufSize = engine.getSession().getPacketBufferSize();
+        appBufSize = engine.getSession().getApplicationBufferSize();
+        netBufSize = engine.getSession().getPacketBufferSize();
+        handshakeStart = System.currentTimeMillis();
 
-        decryptedIn = ByteBuffer.allocate(appBufSize);
-        decryptedOut = ByteBuffer.allocate(appBufSize);
-        encryptedIn = ByteBuffer.allocate(netBufSize);
-        encryptedOut = ByteBuffer.allocate(netBufSize);
+        // Pooled direct buffers are only acquired once needed, see
+        // acquireInbound()
     }
 
     /**
@@ -137,12 +197,19 @@ public final class SecureSocket implements SocketIF {
     /**
      * Invalidate the current {@link SSLSession}. This method could be
      * periodically used via a {@link Timeout} to perform SSL/TLS session
-     * rotation if needed.
+     * rotation if needed. <p> A TLSv1.3 session cannot be renegotiated: once
+     * invalidated, it is no longer resumed, and the handshake subsequently
+     * initiated via {@link #initHandshake()} is a KeyUpdate of its traffic
+     * keys. As application data keeps flowing meanwhile, the socket is not
+     * marked as handshaking in this case.
      */
     @Override
     public void invalidateSession() {
-        engine.getSession().invalidate();
-        handshakePending = true;
+        SSLSession session = engine.getSession();
+        session.invalidate();
+        if (!"TLSv1.3".equals(session.getProtocol())) {
+            handshakePending = true;
+        }
         taskPending = false;
     }
 
@@ -150,7 +217,8 @@ public final class SecureSocket implements SocketIF {
      * Initialize SSL/TLS handshaking. This method is called from the
      * {@link AbstractSelector} thread in two cases: (1) when
      * {@link #finishConnect()} is called or (2) when the {@link SSLSession} has
-     * been previously invalidated.
+     * been previously invalidated, in which case a TLSv1.3 session sends a
+     * KeyUpdate instead of handshaking again.
      *
      * @throws IOException propagated exceptions from
      * {@link #processHandshake()}
@@ -159,6 +227,7 @@ public final class SecureSocket implements SocketIF {
      */
     @Override
     public void initHandshake() throws IOException {
+        handshakeStart = System.currentTimeMillis();
         engine.beginHandshake();
         processHandshake();
     }
@@ -176,6 +245,50 @@ public final class SecureSocket implements SocketIF {
         return this.sc;
     }
 
+    /**
+     * Returns the {@link OutboundQueue} of this socket, holding the plaintext
+     * data queued to be encrypted and written to the remote peer.
+     *
+     * @return the OutboundQueue of this socket
+     */
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return this.outbound;
+    }
+
+    /**
+     * Atomically mark the given operations as pending on this socket.
+     *
+     * @param ops The operations to mark as pending
+     * @return true if no operations were pending before this call
+     *
+     * @see SocketIF#markPending(int)
+     */
+    @Override
+    public boolean markPending(int ops) {
+        int prev;
+        do {
+            prev = pending.get();
+            if ((prev & ops) == ops) {
+                // Already pending, and the socket already queued
+                return false;
+            }
+        } while (!pending.compareAndSet(prev, prev | ops));
+        return prev == 0;
+    }
+
+    /**
+     * Atomically retrieve and clear the operations pending on this socket.
+     *
+     * @return the operations pending on this socket
+     *
+     * @see SocketIF#takePending()
+     */
+    @Override
+    public int takePending() {
+        return pending.getAndSet(0);
+    }
+
     /**
      * Pass-through implementation of
      * {@link SocketChannel#connect(SocketAddress remote)}
@@ -215,18 +328,19 @@ public final class SecureSocket implements SocketIF {
 
     /**
      * Pass-through implementation of
-     * {@link SocketChannel#register(Selector sel, int ops)}
+     * {@link SocketChannel#register(Selector sel, int ops, Object att)},
+     * attaching this socket to the resulting key.
      *
      * @param sel The selector with which this channel is to be registered
      * @param ops The interest set for the resulting key
      * @return A key representing the registration of this channel with the
-     * given selector
+     * given selector, having this socket as its attachment
      * @throws ClosedChannelException Propagated exceptions from the underlying
      * {@link SocketChannel#register(Selector sel, int ops)} implementation.
      */
     @Override
     public SelectionKey register(Selector sel, int ops) throws ClosedChannelException {
-        return sc.register(sel, ops);
+        return sc.register(sel, ops, this);
     }
 
     /**
@@ -269,38 +383,73 @@ public final class SecureSocket implements SocketIF {
      */
     @Override
     public void processHandshake() throws IOException {
-        int count;
-        SSLEngineResult.HandshakeStatus status;
-        // At first call of processHandshake(), there is no SSLEngineResult
-        // yet, use the handshakeStatus from the SSLEngine instead
-        if (result == null) {
-            status = engine.getHandshakeStatus();
-        } else {
-            status = result.getHandshakeStatus();
+        try {
+            handshake(null, true);
+        } finally {
+            releaseBuffers();
         }
+    }
+
+    /**
+     * Performs SSL/TLS handshaking, see {@link #processHandshake()}, from the
+     * handshake status of the given result of the preceding wrap or unwrap,
+     * or from that of the {@link SSLEngine} if there is none. The buffers of
+     * this socket are acquired as needed, but not released. <p> Only the
+     * reading side of this socket unwraps. Handshaking on behalf of a write
+     * stops once data needs to be unwrapped, which the next read picks up.
+     *
+     * @param last The result of the preceding wrap or unwrap, or null
+     * @param reading Whether the reading side of this socket is handshaking
+     * @throws IOException If there is an underlying IOException while
+     * performing the handshake
+     */
+    private void handshake(SSLEngineResult last, boolean reading) throws IOException {
+        int count;
+        boolean wrapped = false;
+        SSLEngineResult.HandshakeStatus status = (last == null)
+                ? engine.getHandshakeStatus() : last.getHandshakeStatus();
         // process the handshake status
         switch (status) {
             case NEED_TASK:
                 LOGGER.log(Level.FINEST, "{0} NEED_TASK",
                         sc.socket().getRemoteSocketAddress());
                 // Run the delegated SSL/TLS tasks
-                runDelegatedTasks();
-                if (!singleThreaded) {
-                    // Return as handshaking cannot continue
+                if (!runDelegatedTasks()) {
+                    // Return as handshaking cannot continue until the
+                    // TaskWorker has run them
                     return;
                 }
+                // Continue with whatever the engine needs once the tasks
+                // are done, which is not necessarily an unwrap
+                handshake(null, reading);
+                return;
             case NEED_UNWRAP:
                 LOGGER.log(Level.FINEST, "{0} NEED_UNWRAP",
                         sc.socket().getRemoteSocketAddress());
-                // Don’t read if inbound is already closed
-                count = engine.isInboundDone()
-                        ? -1
-                        : sc.read(encryptedIn);
+                if (!reading) {
+                    // Left to the reading side
+                    return;
+                }
+                acquireInbound();
+                // Don’t read if inbound is already closed, nor if a record
+                // is already buffered (the channel may be blocking)
+                if (engine.isInboundDone()) {
+                    count = -1;
+                } else if (needsRead()) {
+                    count = sc.read(encryptedIn);
+                    if (count == -1 && handshakePending) {
+                        // The peer went away mid-handshake, no more data will
+                        // arrive. This throws an SSLException as no
+                        // close_notify has been received.
+                        engine.closeInbound();
+                    }
+                } else {
+                    count = 0;
+                }
                 LOGGER.log(Level.FINEST, "Read {0} bytes", count);
                 encryptedIn.flip();
                 try {
                     result = engine.unwrap(encryptedIn, decryptedIn);
-                    encryptedIn.compact();
                 } catch (IllegalStateException ise) {
                     // SSLEngine may fail with IllegalStateException in some
                     // cases when receiving unexpected kinds of SSL records
@@ -310,39 +459,32 @@ public final class SecureSocket implements SocketIF {
                     // https://groups.google.com/forum/#!msg/spray-user/v3x3ZfyVVF0/9DqHCGa9M38J
                     // https://groups.google.com/forum/#%21msg/spray-user/qxntq3aRc_I/TPj4r0XGobgJ
                     LOGGER.log(Level.FINEST, "Ignoring exception in close()");
+                    return;
+                } finally {
+                    encryptedIn.compact();
                 }
+                last = result;
                 break;
             case NEED_WRAP:
                 LOGGER.log(Level.FINEST, "{0} NEED_WRAP",
                         sc.socket().getRemoteSocketAddress());
-                decryptedOut.flip();
-                result = engine.wrap(decryptedOut, encryptedOut);
-                decryptedOut.compact();
-                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
-                    // RFC 2246 #7.2.1 requires us to respond to an
-                    // incoming close_notify with an outgoing
-                    // close_notify. The engine takes care of this, so we
-                    // are now trying to send a close_notify, which can
-                    // only happen if we have just received a
-                    // close_notify.
-                    // Try to flush the close_notify.
-                    try {
-                        count = flush();
-                    } catch (SocketException exc) {
-                        // failed to send the close_notify, this can happen if
-                        // the peer has already sent its close_notify and then
-                        // close the socket, which is permitted by RFC_2246.
-                    }
-                } else {
-                    // flush without the try/catch,
-                    // letting any exceptions propagate.
-                    count = flush();
+                synchronized (outboundLock) {
+                    last = wrapHandshake();
                 }
+                wrapped = true;
                 break;
             case FINISHED:
                 LOGGER.log(Level.FINEST, "{0} FINISHED",
                         sc.socket().getRemoteSocketAddress());
+                // Post-handshake messages (e.g. a TLSv1.3 KeyUpdate) finish
+                // too, only report the handshake once
+                if (!handshakePending) {
+                    return;
+                }
                 handshakePending = false;
+                // A resumed session keeps the creation time of the handshake
+                // that originally negotiated it
+                sessionResumed = engine.getSession().getCreationTime() < handshakeStart;
                 // Indicate to the associated handshake listener that the
                 // handshake is complete
                 hsListener.handshakeComplete(this);
@@ -355,17 +497,39 @@ public final class SecureSocket implements SocketIF {
         }
 
         // Check the result of the preceding wrap or unwrap.
-        switch (result.getStatus()) {
+        switch (last.getStatus()) {
             case BUFFER_UNDERFLOW:
                 // Return as we do not have enough data to continue processing
                 // the handshake
                 LOGGER.log(Level.FINEST, "{0} BUFFER_UNDERFLOW",
                         sc.socket().getRemoteSocketAddress());
+                if (!encryptedIn.hasRemaining()) {
+                    // The record does not fit, make room for the rest of it
+                    growInbound();
+                }
                 return;
             case BUFFER_OVERFLOW:
                 LOGGER.log(Level.FINEST, "{0} BUFFER_OVERFLOW",
                         sc.socket().getRemoteSocketAddress());
-                // Return as the encrypted buffer has not been cleared yet
+                if (!wrapped) {
+                    if (growInbound()) {
+                        // The session needs larger buffers, retry
+                        break;
+                    }
+                    // Return as the decrypted buffer has not been drained
+                    // yet, which the next read does
+                    return;
+                }
+                synchronized (outboundLock) {
+                    if (growOutbound()) {
+                        // The session needs larger buffers, retry
+                        break;
+                    }
+                    // Return as the encrypted buffer has not been cleared
+                    // yet, the handshake is resumed once it has been, see
+                    // flush()
+                    wrapStalled = true;
+                }
                 return;
             case CLOSED:
                 LOGGER.log(Level.FINEST, "{0} CLOSED",
@@ -380,26 +544,64 @@ public final class SecureSocket implements SocketIF {
                 // handshaking can continue.
                 break;
         }
-        processHandshake();
+        handshake(last, reading);
+    }
+
+    /**
+     * Wrap the handshake data the {@link SSLEngine} needs to send, and flush
+     * it to the underlying {@link SocketChannel}. Must be called holding the
+     * outbound lock.
+     *
+     * @return the result of the wrap
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)} implementation.
+     */
+    private SSLEngineResult wrapHandshake() throws IOException {
+        if (encryptedOut == null) {
+            encryptedOut = BufferPool.acquire(netBufSize);
+        }
+        SSLEngineResult wrapped = engine.wrap(EMPTY, encryptedOut);
+        if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+            // RFC 2246 #7.2.1 requires us to respond to an incoming
+            // close_notify with an outgoing close_notify. The engine takes
+            // care of this, so we are now trying to send a close_notify,
+            // which can only happen if we have just received a close_notify.
+            // Try to flush the close_notify.
+            try {
+                flushEncrypted();
+            } catch (SocketException exc) {
+                // failed to send the close_notify, this can happen if the
+                // peer has already sent its close_notify and then close the
+                // socket, which is permitted by RFC_2246.
+            }
+        } else {
+            // flush without the try/catch, letting any exceptions propagate.
+            flushEncrypted();
+        }
+        return wrapped;
     }
 
     /**
      * Runs the {@link SSLEngine} delegated tasks. The tasks can either run in
      * the same thread (single threaded implementation) or via the
-     * {@link TaskWorker} thread (multithreaded implementation). Note that in
+     * {@link TaskWorker} threads (multithreaded implementation). Note that in
      * the single threaded implementation, the {@link AbstractSelector} thread
      * will block until all tasks are completed. Additionally, in this case, the
-     * taskPending variable is not needed.
+     * taskPending variable is not needed. The tasks are also run in the same
+     * thread if the queue of the {@link TaskWorker} is full.
+     *
+     * @return true if the tasks have been run in the same thread, false if
+     * they are pending with the TaskWorker
      */
-    private void runDelegatedTasks() {
+    private boolean runDelegatedTasks() {
         if (singleThreaded) {
             // Run the delegated tasks in the same thread 
             Runnable task;
             while ((task = engine.getDelegatedTask()) != null) {
                 task.run();
             }
-            // Update the SSLEngineResult
-            updateResult();
+            setTaskPending(false);
+            return true;
         } else {
             // Run the delegated tasks in the TaskWorker thread
             // An existing task might already be pending for completion with
@@ -411,33 +613,60 @@ public final class SecureSocket implements SocketIF {
             // then trigger processHandshake() to run on a potentially
             // closed socket.
             if (!taskPending) {
-                taskWorker.addSocket(this);
+                if (!taskWorker.addSocket(this)) {
+                    // The TaskWorker is saturated, run them here instead
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    setTaskPending(false);
+                    return true;
+                }
                 setTaskPending(true);
             }
+            return false;
         }
     }
 
     /**
-     * Update the {@link SSLEngineResult} and {@link #setTaskPending(boolean)}
-     * to false. <p> This method is called once the {@link SSLEngine} has no
-     * more pending tasks. The updated result is fused from both the previous
-     * {@link SSLEngineResult} and the {@link SSLEngine#getHandshakeStatus()}.
-     * <p> This is done such that we can receive the FINISHED
-     * {@link SSLEngineResult#handshakeStatus} that would otherwise not be
-     * available by just updating the existing {@link SSLEngineResult}. <p> We
-     * also {@link #setTaskPending(boolean)} to false as there are no more tasks
-     * needed to be completed for the underlying {@link SSLEngine}.
+     * Returns whether this socket holds decrypted data not yet returned, or
+     * complete records not yet unwrapped, e.g. once a read filled the buffer
+     * given to it, see {@link SocketIF#hasBufferedInput()}.
+     *
+     * @return true if input is buffered in this socket
+     */
+    @Override
+    public boolean hasBufferedInput() {
+        return (decryptedIn != null && decryptedIn.position() > 0)
+                || (encryptedIn != null && !needsRead());
+    }
+
+    /**
+     * Returns whether encrypted data needs to be read from the underlying
+     * {@link SocketChannel} before unwrapping, i.e. whether no data is
+     * buffered or the last unwrap did not find a complete record in it. Data
+     * already buffered is unwrapped first, as reading from a channel in
+     * blocking mode would otherwise wait for data the peer never sends.
+     *
+     * @return true if the channel needs to be read before unwrapping
+     */
+    private boolean needsRead() {
+        return encryptedIn.position() == 0 || (result != null
+                && result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW);
+    }
+
+    /**
+     * Called once the {@link SSLEngine} has no more pending tasks, which
+     * {@link #setTaskPending(boolean)} to false. <p> The next call to
+     * {@link #processHandshake()} continues handshaking from the
+     * {@link SSLEngine#getHandshakeStatus()}, i.e. with whatever the engine
+     * needs once the tasks are done.
      */
     @Override
     public void updateResult() {
-        result = new SSLEngineResult(
-                result.getStatus(),
-                engine.getHandshakeStatus(),
-                result.bytesProduced(),
-                result.bytesConsumed());
         // SSLEngine task was completed, set its taskPending
         // to false, in case there are more tasks to be run
-        // in the future. TODO: does this ever happen?
+        // in the future.
         setTaskPending(false);
     }
 
@@ -451,8 +680,15 @@ public final class SecureSocket implements SocketIF {
      * completed, handshaking also occurs at this stage. This method will also
      * respond appropriately with returning -1 (EOF) when the underlying
      * {@link SSLEngine#isInboundDone()}, or when reading from the encrypted
-     * channel returns -1 (EOF);
-     *
+     * channel returns -1 (EOF); <p> If the buffer has room for at least the
+     * application buffer size of the {@link SSLSession}, the data is
+     * unwrapped straight into it. Otherwise, it is unwrapped into an internal
+     * buffer and copied over in bulk, any data not fitting the buffer being
+     * returned by subsequent calls. <p> All complete records already read are
+     * unwrapped in a single call, until more data is needed or the buffer is
+     * full. The internal buffers grow to the packet and application buffer
+     * sizes of the {@link SSLSession} when they change, instead of
+     * overflowing.
      *
      * @param buffer The buffer into which bytes are to be transferred
      * @return The number of bytes read, possibly zero, or -1 if the channel has
@@ -460,8 +696,9 @@ public final class SecureSocket implements SocketIF {
      * @throws IOException Propagated exceptions from the underlying
      * {@link SocketChannel#read(ByteBuffer buffer)} implementation.
      * @throws BufferOverflowException If the underlying {@link SSLEngineResult}
-     * has a status of BUFFER_OVERFLOW. As this should not happen in this
-     * implementation, it can be considered serious and should be handled
+     * has a status of BUFFER_OVERFLOW that growing the buffers does not
+     * resolve. As this should not happen in this implementation, it can be
+     * considered serious and should be handled
      * @throws BufferUnderflowException If the underlying
      * {@link SSLEngineResult} has a status of BUFFER_UNDERFLOW. As this should
      * not happen in this implementation, it can be considered serious and
@@ -469,17 +706,42 @@ public final class SecureSocket implements SocketIF {
      */
     @Override
     public int read(ByteBuffer buffer) throws IOException {
+        try {
+            return unwrap(buffer);
+        } finally {
+            // The outbound buffer may be in use by a concurrent write
+            releaseInbound();
+        }
+    }
+
+    /**
+     * Read and unwrap data into the given buffer, see
+     * {@link #read(ByteBuffer)}.
+     *
+     * @param buffer The buffer into which bytes are to be transferred
+     * @return The number of bytes read, possibly zero, or -1 if the channel has
+     * reached end-of-stream
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#read(ByteBuffer buffer)} implementation.
+     */
+    private int unwrap(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        if (decryptedIn != null && decryptedIn.position() > 0) {
+            // Hand out the data left over from a previous unwrap first
+            drainDecrypted(buffer);
+            return buffer.position() - start;
+        }
         if (engine.isInboundDone()) {
             // We can skip the read operation as the SSLEngine is closed,
             // instead, propagate EOF one level up
             return -1;
         }
+        if (encryptedIn == null) {
+            encryptedIn = BufferPool.acquire(netBufSize);
+        }
 
-        decryptedIn.clear();
-
-        int pos = decryptedIn.position();
-        // Read from the channel
-        int count = sc.read(encryptedIn);
+        // Read from the channel, unless a record is already buffered
+        int count = needsRead() ? sc.read(encryptedIn) : 0;
         LOGGER.log(Level.FINEST, "{0} Read {1} bytes encrypted",
                 new Object[]{sc.socket().getRemoteSocketAddress(), count});
         if (count == -1) {
@@ -490,195 +752,507 @@ public final class SecureSocket implements SocketIF {
             //engine.closeInbound();
             return count;
         }
-        // Unwrap the data just read
+        // Unwrap all the records buffered, straight into the given buffer as
+        // long as it can hold a full record, otherwise into decryptedIn,
+        // until more data is needed or the given buffer is full
         encryptedIn.flip();
-        result = engine.unwrap(encryptedIn, decryptedIn);
-        encryptedIn.compact();
-        // Process the engineResult.Status
-        switch (result.getStatus()) {
-            case BUFFER_UNDERFLOW:
-                // nothing was read. This is the entry point for initiating a
-                // short timeout in the underlying socket if we are still in the
-                // handshaking phase. The reason is to rule out DDOS attacks
-                // where a high number of idle connections are created with the
-                // sole purpose of either exhausting the ports of the host
-                // machine or depleting the host machine's memory.
-                // Schedule a new timeout
-                toWorker.insert(timeout);
-                LOGGER.log(Level.FINEST, "{0} BUFFER_UNDERFLOW",
-                        sc.socket().getRemoteSocketAddress());
-                return 0;
-            case BUFFER_OVERFLOW:
-                if (!timeout.hasExpired()) {
-                    // cancel any previous timeout
-                    toWorker.cancel(timeout);
+        boolean unwrapped = false;
+        boolean processed;
+        unwrap:
+        while (true) {
+            ByteBuffer dst = buffer;
+            if (buffer.remaining() < appBufSize) {
+                if (decryptedIn == null) {
+                    decryptedIn = BufferPool.acquire(appBufSize);
                 }
-                LOGGER.log(Level.FINEST, "{0} BUFFER_OVERFLOW",
-                        sc.socket().getRemoteSocketAddress());
-                // This should never happen (ideally). If this happens, the
-                // thread responsible for emptying the decryptedIn buffer has 
-                // not done so in time. Throw an exception to be handled at the
-                // application layer.
-                throw new BufferOverflowException();
-            case CLOSED:
-                LOGGER.log(Level.FINEST, "{0} CLOSED",
-                        sc.socket().getRemoteSocketAddress());
-                // The SSLEngine was inbound closed, there is and will be no
-                // more input from the engine, so setup the socket appropriately
-                // too. An outbound close_notify will be send by the SSLEngine
-                sc.socket().shutdownInput();
-                break;
-            case OK:
-                if (!timeout.hasExpired()) {
-                    // cancel any previous timeout
-                    toWorker.cancel(timeout);
+                dst = decryptedIn;
+            }
+            result = engine.unwrap(encryptedIn, dst);
+            processed = false;
+            // Process the engineResult.Status
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    LOGGER.log(Level.FINEST, "{0} BUFFER_UNDERFLOW",
+                            sc.socket().getRemoteSocketAddress());
+                    break unwrap;
+                case BUFFER_OVERFLOW:
+                    LOGGER.log(Level.FINEST, "{0} BUFFER_OVERFLOW",
+                            sc.socket().getRemoteSocketAddress());
+                    encryptedIn.compact();
+                    boolean grown = (decryptedIn == null
+                            || decryptedIn.position() == 0) && growInbound();
+                    encryptedIn.flip();
+                    if (grown) {
+                        // The session needs larger buffers, retry
+                        continue;
+                    }
+                    encryptedIn.compact();
+                    // This should never happen (ideally). If this happens,
+                    // the thread responsible for emptying the decryptedIn
+                    // buffer has not done so in time. Throw an exception to be
+                    // handled at the application layer.
+                    throw new BufferOverflowException();
+                case CLOSED:
+                    LOGGER.log(Level.FINEST, "{0} CLOSED",
+                            sc.socket().getRemoteSocketAddress());
+                    // The SSLEngine was inbound closed, there is and will be
+                    // no more input from the engine, so setup the socket
+                    // appropriately too. An outbound close_notify will be
+                    // send by the SSLEngine
+                    sc.socket().shutdownInput();
+                    break unwrap;
+                case OK:
+                    LOGGER.log(Level.FINEST, "{0} OK",
+                            sc.socket().getRemoteSocketAddress());
+                    unwrapped = true;
+                    drainDecrypted(buffer);
+                    break;
+            }
+            int consumed = result.bytesConsumed();
+            if (result.getHandshakeStatus()
+                    != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                // Process the handshake first. Once it completes, any
+                // application data that arrived along with its last
+                // records is unwrapped too.
+                encryptedIn.compact();
+                handshake(result, true);
+                encryptedIn.flip();
+                drainDecrypted(buffer);
+                processed = true;
+                if (handshakePending) {
+                    break;
                 }
-                LOGGER.log(Level.FINEST, "{0} OK",
-                        sc.socket().getRemoteSocketAddress());
+            }
+            if (consumed == 0 || !encryptedIn.hasRemaining()
+                    || (decryptedIn != null && decryptedIn.position() > 0)
+                    || !buffer.hasRemaining()) {
+                // Nothing left to unwrap, or no room left for it
                 break;
+            }
         }
-        // process any handshaking now required
-        processHandshake();
-
-        // put the data to the buffer given to us
-        for (int i = pos; i < decryptedIn.position(); i++) {
-            buffer.put(decryptedIn.get(i));
+        encryptedIn.compact();
+        if (unwrapped) {
+            if (!timeout.hasExpired()) {
+                // cancel any previous timeout
+                toWorker.cancel(timeout);
+            }
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            // nothing was read. This is the entry point for initiating a
+            // short timeout in the underlying socket if we are still in the
+            // handshaking phase. The reason is to rule out DDOS attacks
+            // where a high number of idle connections are created with the
+            // sole purpose of either exhausting the ports of the host
+            // machine or depleting the host machine's memory. Established
+            // sockets drain their channel on every read and end up here, they
+            // must not be timed out.
+            if (handshakePending) {
+                // Schedule a new timeout
+                toWorker.insert(timeout);
+            }
+            if (!encryptedIn.hasRemaining()) {
+                // The record does not fit, make room for the rest of it
+                growInbound();
+            }
+            return 0;
         }
+        if (!processed) {
+            // process any handshaking now required
+            handshake(result, true);
+        }
+
+        // move any data unwrapped into decryptedIn (including application
+        // data unwrapped while handshaking) to the buffer given to us
+        drainDecrypted(buffer);
 
         // return count of application data read
-        count = decryptedIn.position() - pos;
-        return count;
+        return buffer.position() - start;
+    }
+
+    /**
+     * Transfer as much of the decrypted data held in {@link #decryptedIn} as
+     * fits into the given buffer, in bulk. Data that does not fit is kept in
+     * {@link #decryptedIn} and handed out by the next {@link #read(ByteBuffer)}
+     * call, before anything else is read.
+     *
+     * @param buffer The buffer into which bytes are to be transferred
+     */
+    private void drainDecrypted(ByteBuffer buffer) {
+        if (decryptedIn == null || decryptedIn.position() == 0) {
+            return;
+        }
+        decryptedIn.flip();
+        int limit = decryptedIn.limit();
+        if (decryptedIn.remaining() > buffer.remaining()) {
+            decryptedIn.limit(decryptedIn.position() + buffer.remaining());
+        }
+        buffer.put(decryptedIn);
+        decryptedIn.limit(limit);
+        decryptedIn.compact();
+    }
+
+    /**
+     * Update the packet and application buffer sizes of this socket from the
+     * {@link SSLSession}, which may increase once a session has been
+     * (re)negotiated, or when the peer sends records larger than the initial
+     * sizes of the engine.
+     *
+     * @return true if the buffer sizes of the session have changed
+     */
+    private boolean updateSizes() {
+        SSLSession session = engine.getSession();
+        int app = session.getApplicationBufferSize();
+        int net = session.getPacketBufferSize();
+        boolean changed = app != appBufSize || net != netBufSize;
+        appBufSize = app;
+        netBufSize = net;
+        if (changed) {
+            LOGGER.log(Level.FINE, "{0} Buffers grown to {1} (app) and {2} (net)",
+                    new Object[]{sc.socket().getRemoteSocketAddress(),
+                        appBufSize, netBufSize});
+        }
+        return changed;
+    }
+
+    /**
+     * Grow the inbound buffers of this socket to the packet and application
+     * buffer sizes of the {@link SSLSession}. Data held in the buffers (in
+     * write mode) is preserved. This is only called by the reading side.
+     *
+     * @return true if any of the buffers has been grown, or the buffer sizes
+     * of the session have changed
+     */
+    private boolean growInbound() {
+        boolean grown = updateSizes();
+        if (decryptedIn != null
+                && decryptedIn.capacity() < decryptedIn.position() + appBufSize) {
+            decryptedIn = grow(decryptedIn, decryptedIn.position() + appBufSize);
+            grown = true;
+        }
+        if (encryptedIn != null && (encryptedIn.capacity() < netBufSize
+                || !encryptedIn.hasRemaining())) {
+            encryptedIn = grow(encryptedIn, Math.max(netBufSize,
+                    encryptedIn.position() + 1));
+            grown = true;
+        }
+        return grown;
+    }
+
+    /**
+     * Grow the outbound buffer of this socket to the packet buffer size of
+     * the {@link SSLSession}. Data held in the buffer (in write mode) is
+     * preserved. The caller must hold the outbound lock.
+     *
+     * @return true if the buffer has been grown, or the buffer sizes of the
+     * session have changed
+     */
+    private boolean growOutbound() {
+        boolean grown = updateSizes();
+        if (encryptedOut != null && encryptedOut.capacity() < netBufSize) {
+            encryptedOut = grow(encryptedOut, netBufSize);
+            grown = true;
+        }
+        return grown;
+    }
+
+    /**
+     * Acquire the inbound buffers of this socket not currently held from the
+     * {@link BufferPool}, sized to the packet and application buffer sizes of
+     * the {@link SSLSession}. This is only called by the reading side.
+     */
+    private void acquireInbound() {
+        if (encryptedIn == null) {
+            encryptedIn = BufferPool.acquire(netBufSize);
+        }
+        if (decryptedIn == null) {
+            decryptedIn = BufferPool.acquire(appBufSize);
+        }
+    }
+
+    /**
+     * Release the buffers of this socket holding no data back to the
+     * {@link BufferPool}, so that an idle socket holds no buffers at all.
+     * Buffers still holding data (e.g. a partial record, or records not yet
+     * flushed) are kept until drained. This is called once every flush and
+     * handshake step completes, by the reading side.
+     */
+    private void releaseBuffers() {
+        releaseInbound();
+        releaseOutbound();
+    }
+
+    /**
+     * Release the inbound buffers of this socket holding no data back to the
+     * {@link BufferPool}. This is only called by the reading side, once every
+     * read completes.
+     */
+    private void releaseInbound() {
+        if (encryptedIn != null && encryptedIn.position() == 0) {
+            BufferPool.release(encryptedIn);
+            encryptedIn = null;
+        }
+        if (decryptedIn != null && decryptedIn.position() == 0) {
+            BufferPool.release(decryptedIn);
+            decryptedIn = null;
+        }
+    }
+
+    /**
+     * Release the outbound buffer of this socket back to the
+     * {@link BufferPool} if it holds no data, once every write completes.
+     */
+    private void releaseOutbound() {
+        synchronized (outboundLock) {
+            if (encryptedOut != null && encryptedOut.position() == 0) {
+                BufferPool.release(encryptedOut);
+                encryptedOut = null;
+            }
+        }
     }
 
+    /**
+     * Returns the given buffer if it has a capacity of at least {@code size}
+     * bytes. Otherwise, a larger buffer is acquired from the
+     * {@link BufferPool}, the data held in the given buffer (in write mode) is
+     * copied over and the given buffer is released.
+     *
+     * @param buf The buffer to grow, in write mode
+     * @param size The minimum capacity required
+     * @return a buffer of at least {@code size} bytes holding the same data
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int size) {
+        if (buf.capacity() >= size) {
+            return buf;
+        }
+        ByteBuffer grown = BufferPool.acquire(size);
+        buf.flip();
+        grown.put(buf);
+        BufferPool.release(buf);
+        return grown;
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from the given buffer. This
+     * is a pass-through implementation of the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)}, with additional logic to
+     * handle the SSL/TLS encrypted stream, see
+     * {@link #write(ByteBuffer[], int, int)}.
+     *
+     * @param buffer The buffer from which bytes are to be retrieved
+     * @return The number of application bytes written, possibly zero
+     * @throws IOException Propagated exceptions from
+     * {@link #write(ByteBuffer[], int, int)}
+     */
     @Override
     public int write(ByteBuffer buffer) throws IOException {
-        // Make shallow copy, assumes the entire buffer needs to be written
-        //System.out.println("buffer position" + buffer.position());
-        //System.out.println("buffer capacity " + buffer.capacity());
-        while (buffer.hasRemaining()) {
-            decryptedOut.put(buffer.get());
-        }
-        //System.out.println("decryptedOut position " + decryptedOut.position());
-        //System.out.println("decryptedOut capacity " + decryptedOut.capacity());
-
-        int pos = decryptedOut.position();
-        LOGGER.log(Level.FINEST, "encryptedOut before clear pos {0} lim {1} cap {2}",
-                new Object[]{encryptedOut.position(), encryptedOut.limit(), encryptedOut.capacity()});
-        encryptedOut.clear();
-        // Wrap the data to be written
-        decryptedOut.flip();
-        result = engine.wrap(decryptedOut, encryptedOut);
-        LOGGER.log(Level.FINEST, "encryptedOut after wrap pos {0} lim {1} cap {2}",
-                new Object[]{encryptedOut.position(), encryptedOut.limit(), encryptedOut.capacity()});
-        decryptedOut.compact();
-        // Process the engineResult.Status
-        switch (result.getStatus()) {
-            case BUFFER_UNDERFLOW:
-                LOGGER.log(Level.FINEST, "{0} BUFFER_UNDERFLOW",
-                        sc.socket().getRemoteSocketAddress());
-                // This shouldn't happen as we only call write() when there is
-                // data to be written, throw an exception that will be handled
-                // in the application layer.
-                throw new BufferUnderflowException();
-            case BUFFER_OVERFLOW:
-                LOGGER.log(Level.FINEST, "{0} BUFFER_OVERFLOW",
-                        sc.socket().getRemoteSocketAddress());
-                // This shouldn't happen if we flush data that has been wrapped
-                // as we do in this implementation, throw an exception that will
-                // be handled in the application layer.
-                throw new BufferOverflowException();
-            case CLOSED:
-                LOGGER.log(Level.FINEST, "{0} CLOSED",
-                        sc.socket().getRemoteSocketAddress());
-                // Trying to write on a closed SSLEngine, throw an exception
-                // that will be handled in the application layer.
-                throw new SSLException("SSLEngine is CLOSED");
-            case OK:
-                LOGGER.log(Level.FINEST, "{0} OK",
-                        sc.socket().getRemoteSocketAddress());
-                // Everything is good, everything is fine.
-                break;
+        single[0] = buffer;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
         }
-        // Process any pending handshake
-        processHandshake();
-        // Flush any pending data to the network
-        flush();
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from a subsequence of the
+     * given buffers. The data is wrapped straight from the given buffers into
+     * as many SSL/TLS records as needed, a record possibly spanning several
+     * buffers, so that payloads of any size can be written without being
+     * copied. Records are batched in the encrypted buffer and flushed to the
+     * underlying {@link SocketChannel} whenever it cannot hold another one,
+     * and once all data has been wrapped.
+     *
+     * @param srcs The buffers from which bytes are to be retrieved
+     * @param offset The offset within the buffer array of the first buffer
+     * from which bytes are to be retrieved
+     * @param length The maximum number of buffers to be accessed
+     * @return The number of application bytes written, possibly zero
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)} implementation.
+     * @throws SSLException If the underlying {@link SSLEngine} is closed
+     * @throws BufferUnderflowException If the underlying
+     * {@link SSLEngineResult} has a status of BUFFER_UNDERFLOW. As this should
+     * not happen in this implementation, it can be considered serious and
+     * should be handled
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized (outboundLock) {
+            try {
+                return wrap(srcs, offset, length);
+            } finally {
+                // The inbound buffers may be in use by a concurrent read
+                releaseOutbound();
+            }
+        }
+    }
+
+    /**
+     * Wrap and write data from the given buffers, see
+     * {@link #write(ByteBuffer[], int, int)}. The caller must hold the
+     * outbound lock.
+     *
+     * @param srcs The buffers from which bytes are to be retrieved
+     * @param offset The offset within the buffer array of the first buffer
+     * from which bytes are to be retrieved
+     * @param length The maximum number of buffers to be accessed
+     * @return The number of application bytes written, possibly zero
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)} implementation.
+     */
+    private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        SSLEngineResult wrapped;
+        long written = 0;
+        if (encryptedOut == null) {
+            encryptedOut = BufferPool.acquire(netBufSize);
+        }
+        while (hasRemaining(srcs, offset, length)) {
+            if (encryptedOut.remaining() < netBufSize) {
+                // No room for another record, flush the batched ones first
+                flushEncrypted();
+                if (encryptedOut.remaining() < netBufSize) {
+                    // The channel is full, leave the rest of the data in the
+                    // given buffers until it becomes writable again
+                    break;
+                }
+            }
+            // Wrap the data to be written
+            wrapped = engine.wrap(srcs, offset, length, encryptedOut);
+            // Process the engineResult.Status
+            switch (wrapped.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    LOGGER.log(Level.FINEST, "{0} BUFFER_UNDERFLOW",
+                            sc.socket().getRemoteSocketAddress());
+                    // This shouldn't happen as we only wrap when there is
+                    // data to be written, throw an exception that will be
+                    // handled in the application layer.
+                    throw new BufferUnderflowException();
+                case BUFFER_OVERFLOW:
+                    LOGGER.log(Level.FINEST, "{0} BUFFER_OVERFLOW",
+                            sc.socket().getRemoteSocketAddress());
+                    // Make room for the record and retry
+                    flushEncrypted();
+                    if (growOutbound() || encryptedOut.position() == 0) {
+                        continue;
+                    }
+                    // The channel is full, retry once it is writable
+                    break;
+                case CLOSED:
+                    LOGGER.log(Level.FINEST, "{0} CLOSED",
+                            sc.socket().getRemoteSocketAddress());
+                    // Trying to write on a closed SSLEngine, throw an
+                    // exception that will be handled in the application
+                    // layer.
+                    throw new SSLException("SSLEngine is CLOSED");
+                case OK:
+                    LOGGER.log(Level.FINEST, "{0} OK",
+                            sc.socket().getRemoteSocketAddress());
+                    // Everything is good, everything is fine.
+                    written += wrapped.bytesConsumed();
+                    break;
+            }
+            int consumed = wrapped.bytesConsumed();
+            if (wrapped.getHandshakeStatus()
+                    != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                // Process any pending handshake, up to the point where it
+                // needs data from the peer, which is left to the reading side
+                handshake(wrapped, false);
+                if (consumed == 0 && engine.getHandshakeStatus()
+                        != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    // The handshake needs to complete before more data can
+                    // be wrapped. A post-handshake message (e.g. a TLSv1.3
+                    // KeyUpdate) wrapped ahead of the data does not.
+                    break;
+                }
+            }
+        }
+        // Flush as much pending data to the network as possible
+        flushEncrypted();
         // return count of application bytes written.
-        return pos - decryptedOut.position();
+        return written;
     }
 
     /**
-     * Flush encrypted output data to the underlying {@link SocketChannel}. This
-     * method will block until all data is written to the channel. TODO:
-     * implement a selector pool instead of looping until all data is written.
-     * Another option would be increasing the SO_SNDBUF size to twice the size,
-     * it can be done on the fly and could circumvent the temporary selector
-     * issue.
+     * Returns whether any of the given buffers has bytes remaining.
+     *
+     * @param srcs The buffers to check
+     * @param offset The offset within the buffer array of the first buffer
+     * @param length The number of buffers to check
+     * @return true if any of the given buffers has bytes remaining
+     */
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Flush the encrypted records buffered by this socket to the underlying
+     * {@link SocketChannel}, without blocking. If a handshake wrap stalled as
+     * these records could not be flushed, the handshake is resumed once they
+     * have been.
+     *
+     * @return true if no encrypted data remains buffered, false if the flush
+     * was incomplete
+     * @throws IOException Propagated exceptions from the underlying
+     * {@link SocketChannel#write(ByteBuffer buffer)} implementation, or from
+     * {@link #processHandshake()}
+     */
+    @Override
+    public boolean flush() throws IOException {
+        synchronized (outboundLock) {
+            if (closed || encryptedOut == null || encryptedOut.position() == 0) {
+                return true;
+            }
+            try {
+                flushEncrypted();
+                if (encryptedOut.position() == 0 && wrapStalled) {
+                    wrapStalled = false;
+                    // Flushing is driven by the selector thread, which is
+                    // also the reading side of the socket
+                    handshake(null, true);
+                }
+                return encryptedOut == null || encryptedOut.position() == 0;
+            } finally {
+                releaseBuffers();
+            }
+        }
+    }
+
+    /**
+     * Write as much of the encrypted output data as the underlying
+     * {@link SocketChannel} takes, without blocking. Data the channel does
+     * not take (i.e. its send buffer is full) is kept in the encrypted buffer,
+     * to be flushed once the channel becomes writable again via
+     * {@link #flush()}.
      *
      * @return The number of bytes written, possibly zero
      * @throws IOException Propagated exceptions from the underlying
      * {@link SocketChannel#write(ByteBuffer buffer)} implementation.
      */
-    private int flush() throws IOException {
-        // Selector temp = null;
+    private int flushEncrypted() throws IOException {
+        if (encryptedOut == null) {
+            return 0;
+        }
         encryptedOut.flip();
-        //int remaining = encryptedOut.remaining();
-        //System.out.println("Encrypted out remaining: " + remaining);
         int countOut = 0;
         int count;
-        int retries = 0;
-
         while (encryptedOut.hasRemaining()) {
             count = sc.write(encryptedOut);
+            if (count == 0) {
+                // The send buffer is full, do not spin on it
+                break;
+            }
             countOut += count;
-            retries++;
-        }
-        /*
-         while (encryptedOut.hasRemaining()) {
-         count = sc.write(encryptedOut);
-         countOut += count;
-         retries++;
-         //System.out.println(sc.socket().getLocalPort()
-         //    + ":" + sc.socket().getPort() + " Flushed " + count + " bytes");
-         if (count < 0) {
-         throw new IOException("EOF during flush");
-         }
-
-         if (count == 0) {
-         // write channel full.  Try letting other threads have a go.
-         Thread.yield();
-         count = sc.write(encryptedOut);
-         countOut += count;
-         retries++;
-         if (count < 0) {
-         throw new IOException("EOF during flush");
-         }
-
-         if (count == 0) {
-         // still full.  need to  block until it is writable.
-         // TODO: implement a selector pull to handle this write
-         while (encryptedOut.hasRemaining()) {
-         count = sc.write(encryptedOut);
-         countOut += count;
-         retries++;
-         }
-         temp = Selector.open();
-         getSocket().register(temp, SelectionKey.OP_WRITE);
-         temp.select();
-         }
-         }
-         }
-         if (temp != null) {
-         temp.close();
-         temp = null;
-         }
-         */
+        }
+        boolean incomplete = encryptedOut.hasRemaining();
         encryptedOut.compact();
 
-
-        LOGGER.log(Level.FINEST, "{0} Flushed {1} bytes, {2} retries.",
-                new Object[]{sc.socket().getRemoteSocketAddress(),
-                    countOut, retries <= 1 ? 0 : retries});
+        LOGGER.log(Level.FINEST, "{0} Flushed {1} bytes{2}",
+                new Object[]{sc.socket().getRemoteSocketAddress(), countOut,
+                    incomplete ? ", incomplete" : ""});
         return countOut;
     }
 
@@ -697,6 +1271,11 @@ public final class SecureSocket implements SocketIF {
      */
     @Override
     public void close() throws IOException {
+        if (closed) {
+            // Buffers have already been released, nothing more to do
+            return;
+        }
+        closed = true;
         //if (timeout.hasExpired()) {
         // This causes a threadlock, WHY? TODO
         // cancel any previous timeout
@@ -704,10 +1283,12 @@ public final class SecureSocket implements SocketIF {
         //}
         try {
             // Flush any pending encrypted output data
-            flush();
+            synchronized (outboundLock) {
+                flushEncrypted();
+            }
             if (!engine.isOutboundDone()) {
                 engine.closeOutbound();
-                processHandshake();
+                handshake(null, true);
                 /*
                  * RFC 2246 #7.2.1: if we are initiating this
                  * close, we may send the close_notify without
@@ -723,10 +1304,18 @@ public final class SecureSocket implements SocketIF {
                 // received a close_notify.
                 engine.closeInbound();
                 // Process what we can before we close the channel.
-                processHandshake();
+                handshake(null, true);
             }
         } finally {
-            // Clear all buffers TODO
+            // Return all buffers to the pool, whether drained or not
+            BufferPool.release(decryptedIn);
+            BufferPool.release(encryptedIn);
+            decryptedIn = null;
+            encryptedIn = null;
+            synchronized (outboundLock) {
+                BufferPool.release(encryptedOut);
+                encryptedOut = null;
+            }
             // Close the channel.
             sc.close();
         }
@@ -746,6 +1335,22 @@ public final class SecureSocket implements SocketIF {
         return this.handshakePending;
     }
 
+    /**
+     * Used to identify whether the last completed handshake resumed a
+     * previously negotiated {@link SSLSession} from the session cache of the
+     * {@link javax.net.ssl.SSLContext}, instead of performing a full
+     * handshake. A client engine can only resume a session if it has been
+     * created with the same peer host and port as the connection that
+     * negotiated it, see
+     * {@link AbstractSelector#setupEngine(String, int)}.
+     *
+     * @return whether the last completed handshake resumed a session
+     */
+    @Override
+    public boolean isSessionResumed() {
+        return this.sessionResumed;
+    }
+
     /**
      * Sets whether or not there is an {@link SSLEngine} task pending, during an
      * SSL/TLS handshake. <p> If the current socket implementation is processing
@@ -18,100 +18,174 @@
 package ch.dermitza.securenio.socket.secure;
 
 import ch.dermitza.securenio.util.logging.LoggerHandler;
-import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A threaded implementation of a worker processing tasks required by an
- * {@link javax.net.ssl.SSLEngine} that is associated with a
- * {@link SecureSocket}. <p> The worker sequentially processes tasks that need
- * to be completed, in a FIFO fashion, notifying the associated
- * {@link TaskListener} once they have been completed. The {@link TaskWorker} is
- * otherwise waiting for incoming tasks via the {@link #addSocket(SecureSocket)}
- * method.
+ * A worker processing tasks required by an {@link javax.net.ssl.SSLEngine}
+ * that is associated with a {@link SecureSocket}. <p> The tasks of different
+ * sockets are run in parallel on a work-stealing {@link ForkJoinPool} of up to
+ * the given number of threads, which are only started once needed. The
+ * associated {@link TaskListener} is notified from the pool thread once all
+ * tasks of a socket have been completed. <p> The number of sockets queued
+ * for their tasks to be run is bounded. Once the bound is reached, further
+ * sockets are refused via {@link #addSocket(SecureSocket)} and their tasks
+ * are run by the caller instead, which throttles the selector thread rather
+ * than letting the queue grow without bounds. The time sockets spend queued
+ * before their tasks start running is measured, see
+ * {@link #getQueueDelayUS()}.
  *
  * @author K. Dermitzakis
- * @version 0.20
+ * @version 0.21
  * @since   0.18
  */
 public class TaskWorker implements Runnable {
 
     private static final Logger LOGGER = LoggerHandler.getLogger(TaskWorker.class.getName());
-    private final ArrayDeque<SecureSocket> queue = new ArrayDeque<>();
-    //private final ArrayList<TaskListener> listeners = new ArrayList<>();
-    private boolean running = false;
+    private static final AtomicInteger POOLS = new AtomicInteger();
+    private final ForkJoinPool pool;
+    private final int capacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    // Nanoseconds spent queued, in total and at most
+    private final AtomicLong totalDelay = new AtomicLong();
+    private final AtomicLong maxDelay = new AtomicLong();
+    private volatile boolean running = false;
     private final TaskListener listener;
 
     /**
      * Create a {@link TaskWorker} instance with a single {@link TaskListener}
-     * reference. The {@link TaskListener} is notified whenever any task has
-     * finished being processed by the TaskWorker.
+     * reference, running tasks on a single thread with an unbounded queue.
      *
      * @param listener The {@link TaskListener} to be notified of completed
      * tasks
      */
     public TaskWorker(TaskListener listener) {
+        this(listener, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a {@link TaskWorker} instance with a single {@link TaskListener}
+     * reference. The {@link TaskListener} is notified whenever the tasks of a
+     * socket have finished being processed by the TaskWorker.
+     *
+     * @param listener The {@link TaskListener} to be notified of completed
+     * tasks
+     * @param threads The maximum number of threads to run tasks on, 0 for the
+     * number of available processors
+     * @param capacity The maximum number of sockets queued for their tasks to
+     * be run
+     */
+    public TaskWorker(TaskListener listener, int threads, int capacity) {
         this.listener = listener;
+        this.capacity = capacity;
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        final int id = POOLS.getAndIncrement();
+        pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool
+                        .defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("TaskWorkerThread-" + id + "-" + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, true);
     }
 
     /**
      * Add a {@link SecureSocket} with an underlying
-     * {@link javax.net.ssl.SSLEngine} that requires a task to be run. Tasks are
-     * run in a FIFO queue according to order of socket insertion.
+     * {@link javax.net.ssl.SSLEngine} that requires a task to be run. Queued
+     * sockets are taken up in FIFO order by the threads of this worker, and
+     * run in parallel. If the queue is full (or this worker has been shut
+     * down), the socket is refused and its tasks should be run by the caller.
      *
      * @param socket The SecureSocket that requires a task to be run
+     * @return true if the socket was queued, false if it was refused
      */
-    public void addSocket(SecureSocket socket) {
-        synchronized (queue) {
-            queue.add(socket);
-            //fireListenersNeeded(task.getSocket());
-            queue.notify();
+    public boolean addSocket(SecureSocket socket) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            refused.incrementAndGet();
+            return false;
         }
+        try {
+            pool.execute(new Task(socket));
+        } catch (RejectedExecutionException ree) {
+            queued.decrementAndGet();
+            refused.incrementAndGet();
+            return false;
+        }
+        return true;
     }
 
     /**
-     * The run() method of the {@link TaskWorker}. Here, sequential processing
-     * of {@link javax.net.ssl.SSLEngine} tasks that need to be completed is
-     * done in a FIFO fashion, notifying the associated {@link TaskListener}
-     * once they have been completed. The {@link TaskWorker} is otherwise
-     * waiting for incoming tasks via the {@link #addSocket(SecureSocket)}
-     * method.
+     * The run() method of the {@link TaskWorker}. The threads of this worker
+     * are started by its pool once tasks are added via
+     * {@link #addSocket(SecureSocket)}, so this only marks the worker as
+     * running.
      */
     @Override
     public void run() {
         LOGGER.config("Initializing...");
         running = true;
-        SecureSocket socket;
-        runLoop:
-        while (running) {
-            // Wait for data to become available
-            synchronized (queue) {
-                while (queue.isEmpty()) {
-                    // Check whether someone asked us to shutdown
-                    // If its the case, and as the queue is empty
-                    // we are free to break from the main loop and
-                    // call shutdown();
-                    if (!running) {
-                        break runLoop;
-                    }
-                    try {
-                        queue.wait();
-                    } catch (InterruptedException e) {
-                    }
-                }
-                // Queue has some data here
-                // get the first instance
-                socket = queue.remove();
-            }
-            // Run the runnable in this thread
-            Runnable r;
-            while ((r = socket.getEngine().getDelegatedTask()) != null) {
-                r.run();
-            }
-            // Runnable finished running here, signal the listener
-            listener.taskComplete(socket);
-        }
-        shutdown();
+    }
+
+    /**
+     * Returns the number of sockets currently queued, waiting for their tasks
+     * to be run.
+     *
+     * @return the number of sockets currently queued
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of sockets whose tasks have been run by this worker.
+     *
+     * @return the number of sockets whose tasks have been run so far
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of sockets refused as the queue was full, whose
+     * tasks were run by the caller instead.
+     *
+     * @return the number of sockets refused so far
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * Returns the average time (us) a socket spent queued before its tasks
+     * started running.
+     *
+     * @return the average queueing delay (us) so far
+     */
+    public long getQueueDelayUS() {
+        long count = completed.get();
+        return (count == 0) ? 0 : totalDelay.get() / count / 1000;
+    }
+
+    /**
+     * Returns the longest time (us) a socket spent queued before its tasks
+     * started running.
+     *
+     * @return the maximum queueing delay (us) so far
+     */
+    public long getMaxQueueDelayUS() {
+        return maxDelay.get() / 1000;
     }
 
     /**
@@ -125,21 +199,15 @@ public class TaskWorker implements Runnable {
 
     /**
      * Set the running status of the {@link TaskWorker}. If the running status
-     * of the worker is set to false, the TaskWorker is interrupted (if waiting
-     * for a task) in order to cleanly shutdown.
+     * of the worker is set to false, its threads are shut down once the tasks
+     * already queued have been run.
      *
      * @param running Whether the TaskWorker should run or not
      */
     public void setRunning(boolean running) {
         this.running = running;
-        // If the worker is already blocked in queue.wait()
-        // and someone asked us to shutdown,
-        // we should interrupt it so that it shuts down
-        // after processing all possible pending requests
         if (!running) {
-            synchronized (queue) {
-                queue.notify();
-            }
+            shutdown();
         }
     }
 
@@ -149,9 +217,54 @@ public class TaskWorker implements Runnable {
      */
     private void shutdown() {
         LOGGER.config("Shutting down...");
-        // Clear the queue
-        queue.clear();
-        // Remove all listener references
-        //listeners.clear();
+        pool.shutdown();
+    }
+
+    /**
+     * Record the time a socket spent queued.
+     *
+     * @param delay The time (ns) the socket spent queued
+     */
+    private void recordDelay(long delay) {
+        totalDelay.addAndGet(delay);
+        long max;
+        while (delay > (max = maxDelay.get())) {
+            if (maxDelay.compareAndSet(max, delay)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs all pending tasks of a single socket, notifying the listener once
+     * they have been completed.
+     */
+    private final class Task implements Runnable {
+
+        private final SecureSocket socket;
+        private final long queuedAt = System.nanoTime();
+
+        Task(SecureSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            recordDelay(System.nanoTime() - queuedAt);
+            try {
+                Runnable r;
+                while ((r = socket.getEngine().getDelegatedTask()) != null) {
+                    r.run();
+                }
+            } catch (RuntimeException re) {
+                // The engine reports the failure on its next wrap or unwrap
+                LOGGER.log(Level.INFO, "Delegated task failed", re);
+            } finally {
+                completed.incrementAndGet();
+                // Tasks finished running here, signal the listener
+                listener.taskComplete(socket);
+            }
+        }
     }
 }
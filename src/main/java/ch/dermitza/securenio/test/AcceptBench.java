@@ -0,0 +1,129 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.TCPServer;
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.PacketListener;
+import ch.dermitza.securenio.packet.singlebyte.PacketPong;
+import ch.dermitza.securenio.packet.singlebyte.SimplePacket;
+import ch.dermitza.securenio.packet.worker.SimplePacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback benchmark comparing the accept rate of a {@link TCPServer} with
+ * a single listener handing connections to its event loops, against one
+ * sharding its port over its event loops via SO_REUSEPORT. <p> A number of
+ * client threads repeatedly connect, send a PING, wait for the PONG and
+ * disconnect; the rate of completed connections is reported for both
+ * setups. Plain (non SSL/TLS) sockets are used, so that the accept path
+ * dominates. <p> Usage: AcceptBench [eventLoops] [clientThreads]
+ * [connectionsPerThread] [port]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class AcceptBench {
+
+    public static void main(String[] args) throws Exception {
+        int eventLoops = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        int perThread = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+        int port = (args.length > 3) ? Integer.parseInt(args[3]) : 44510;
+
+        // Warm up both setups, then measure
+        run(eventLoops, threads, perThread / 5, port, false);
+        run(eventLoops, threads, perThread / 5, port + 1, true);
+        double single = run(eventLoops, threads, perThread, port + 2, false);
+        double sharded = run(eventLoops, threads, perThread, port + 3, true);
+        System.out.printf("single listener:  %10.0f conn/s%n", single);
+        System.out.printf("sharded (%d):      %10.0f conn/s%n", eventLoops, sharded);
+    }
+
+    private static double run(int eventLoops, int threads, final int perThread,
+            int port, boolean reusePort) throws Exception {
+        final TCPServer server = new TCPServer(null, port,
+                new SimplePacketWorker(), false, false, eventLoops,
+                TCPServer.BALANCE_ROUND_ROBIN);
+        server.setReusePort(reusePort);
+        server.addListener(new PacketListener() {
+            @Override
+            public void paketArrived(SocketIF socket, PacketIF packet) {
+                if (packet.getHeader() == SimplePacket.PING) {
+                    server.send(socket, new PacketPong());
+                }
+            }
+        });
+        new Thread(server, "ServerThread").start();
+        // Let the server (and its shards) bind
+        Thread.sleep(500);
+
+        final InetSocketAddress remote = new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buf = ByteBuffer.allocate(1);
+                    try {
+                        start.await();
+                        for (int j = 0; j < perThread; j++) {
+                            try (SocketChannel sc = SocketChannel.open(remote)) {
+                                buf.clear();
+                                buf.put(SimplePacket.PING).flip();
+                                sc.write(buf);
+                                buf.clear();
+                                if (sc.read(buf) == 1) {
+                                    completed.incrementAndGet();
+                                }
+                            } catch (IOException ioe) {
+                                // Counted as not completed
+                            }
+                        }
+                    } catch (InterruptedException ie) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "AcceptBenchClient-" + i).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        server.setRunning(false);
+        Thread.sleep(500);
+        int total = threads * perThread;
+        if (completed.get() < total) {
+            System.out.println((total - completed.get()) + " of " + total
+                    + " connections failed");
+        }
+        return completed.get() / seconds;
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.TCPServer;
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A loopback benchmark of the echo throughput (MB/s) of a {@link TCPServer}
+ * servicing all of its sockets on its own selector thread (zero event loops)
+ * against one handing them to each of the given numbers of event loops,
+ * over plain and SSL/TLS sockets. <p> For each number of event loops, a
+ * server is started and the given number of clients connect (and complete
+ * the SSL/TLS handshake). Once all are connected, each client writes its
+ * share of the given amount of data in chunks of the given size, reading
+ * every chunk echoed back by the server before writing the next one. The
+ * server echoes data straight from the thread reading it, so that only the
+ * selector, I/O and SSL/TLS paths are measured. The clients use blocking
+ * sockets on a thread each, sharing a single SSLContext. Both ends compete
+ * for the same processors on a loopback run, so the scaling reported
+ * against zero event loops is bounded by the processors left to the
+ * server. The server.jks and serverPublic.jks keystores are loaded from the
+ * classpath. <p> Usage: EventLoopBench [megabytes] [chunkSize]
+ * [connections] [eventLoops...]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class EventLoopBench {
+
+    private static final int SOCKET_BUFFER = 262144;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = (args.length > 0) ? Long.parseLong(args[0]) : 64;
+        int chunk = (args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+        int connections = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+        int[] loops = {0, 1, 2, 4};
+        if (args.length > 3) {
+            loops = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                loops[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(EventLoopBench.class.getClassLoader()
+                .getResourceAsStream("serverPublic.jks"),
+                "serverPublic".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ks);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+
+        System.out.printf("%d MB in %d byte chunks, %d connections, %d processors%n",
+                megabytes, chunk, connections,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%6s %12s %8s %12s %8s%n", "loops", "plain MB/s",
+                "scaling", "TLS MB/s", "scaling");
+        // Warm up, then measure
+        for (int loop : loops) {
+            run(null, connections, megabytes / 4, chunk, loop);
+            run(context, connections, megabytes / 4, chunk, loop);
+        }
+        double plainBase = 0;
+        double tlsBase = 0;
+        for (int loop : loops) {
+            double plain = run(null, connections, megabytes, chunk, loop);
+            double tls = run(context, connections, megabytes, chunk, loop);
+            if (plainBase == 0) {
+                plainBase = plain;
+                tlsBase = tls;
+            }
+            System.out.printf("%6d %12.1f %7.2fx %12.1f %7.2fx%n", loop, plain,
+                    plain / plainBase, tls, tls / tlsBase);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Start a server with the given number of event loops, connect the given
+     * number of clients and measure their echo throughput. The sockets are
+     * secure if an SSLContext is given, plain otherwise.
+     *
+     * @return the throughput in MB/s
+     */
+    private static double run(final SSLContext context, int connections,
+            long megabytes, final int chunk, int eventLoops) throws Exception {
+        // The default socket buffers are far smaller than a record
+        Configuration config = Configuration.builder().soSndBuf(SOCKET_BUFFER)
+                .soRcvBuf(SOCKET_BUFFER).build();
+        EchoWorker worker = new EchoWorker(config);
+        final int port = freePort();
+        TCPServer server = new TCPServer(null, port, worker, context != null,
+                false, eventLoops, TCPServer.BALANCE_ROUND_ROBIN, config);
+        worker.server = server;
+        if (context != null) {
+            server.setupSSL(null, "server.jks", null, "server".toCharArray());
+        }
+        new Thread(server, "ServerThread").start();
+        Thread.sleep(500);
+
+        final long rounds = Math.max(1, (megabytes << 20) / connections / chunk);
+        final CountDownLatch ready = new CountDownLatch(connections);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger failed = new AtomicInteger();
+        final SocketFactory factory = (context != null)
+                ? context.getSocketFactory() : SocketFactory.getDefault();
+        for (int i = 0; i < connections; i++) {
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Socket socket = null;
+                    try {
+                        socket = factory.createSocket("127.0.0.1", port);
+                        socket.setTcpNoDelay(true);
+                        socket.setSendBufferSize(SOCKET_BUFFER);
+                        socket.setReceiveBufferSize(SOCKET_BUFFER);
+                        if (socket instanceof SSLSocket) {
+                            ((SSLSocket) socket).startHandshake();
+                        }
+                        byte[] out = new byte[chunk];
+                        byte[] in = new byte[chunk];
+                        new Random().nextBytes(out);
+                        OutputStream os = socket.getOutputStream();
+                        DataInputStream is = new DataInputStream(socket.getInputStream());
+                        ready.countDown();
+                        start.await();
+                        for (long r = 0; r < rounds; r++) {
+                            os.write(out);
+                            os.flush();
+                            is.readFully(in);
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                        ready.countDown();
+                    } finally {
+                        done.countDown();
+                        if (socket != null) {
+                            try {
+                                socket.close();
+                            } catch (IOException ioe) {
+                                // Nothing to do
+                            }
+                        }
+                    }
+                }
+            }, "Client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        server.setRunning(false);
+        Thread.sleep(500);
+        if (failed.get() > 0) {
+            System.out.printf("  %d of %d clients failed%n", failed.get(), connections);
+        }
+        long bytes = rounds * chunk * (connections - failed.get());
+        return bytes / (elapsed / 1e9) / (1 << 20);
+    }
+
+    /**
+     * Returns a port that is currently free on the loopback interface.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * A packet worker echoing all data back to the socket it was received
+     * from, on the thread handing it the data.
+     */
+    private static final class EchoWorker extends AbstractPacketWorker {
+
+        private volatile TCPServer server;
+
+        EchoWorker(Configuration config) {
+            super(config);
+        }
+
+        @Override
+        public void addData(SocketIF socket, ByteBuffer data, int count) {
+            data.limit(count);
+            data.position(0);
+            ByteBuffer copy = ByteBuffer.allocate(count);
+            copy.put(data);
+            copy.flip();
+            server.send(socket, new Echo(copy));
+        }
+
+        @Override
+        protected void processData() {
+            // All data is echoed in addData()
+        }
+    }
+
+    /**
+     * A packet wrapping raw bytes to be echoed.
+     */
+    private static final class Echo implements PacketIF {
+
+        private final ByteBuffer data;
+
+        Echo(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public short getHeader() {
+            return 0;
+        }
+
+        @Override
+        public void reconstruct(ByteBuffer source) {
+            // Never reconstructed
+        }
+
+        @Override
+        public ByteBuffer toBytes() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,584 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.socket.secure.HandshakeListener;
+import ch.dermitza.securenio.socket.secure.SecureSocket;
+import ch.dermitza.securenio.socket.timeout.TimeoutListener;
+import ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker;
+import ch.dermitza.securenio.util.BufferPool;
+import ch.dermitza.securenio.util.PropertiesReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A loopback benchmark of the SSL/TLS handshake and bulk throughput of a pair
+ * of {@link SecureSocket}s, for every combination of protocol, cipher suite
+ * and key type. <p> RSA (2048 bit) and EC (secp256r1) keystores are generated
+ * via keytool into a temporary directory, each used as the keystore of the
+ * server and the truststore of the client. The protocols and cipher suites
+ * are those of the secure.protocols and secure.cipherSuites properties, along
+ * with TLSv1.3 and the AEAD cipher suites of TLSv1.2 and TLSv1.3. For each
+ * combination the JVM supports, the bench measures <ul> <li>full handshakes
+ * per second, with client engines not bound to a peer, so that no session is
+ * ever resumed;</li> <li>resumed handshakes per second, with client engines
+ * bound to the same peer host and port;</li> <li>the 50th, 90th and 99th
+ * percentile latency (ms) of the full handshakes;</li> <li>the bulk throughput
+ * (MB/s) of a transfer in chunks of 16384 bytes.</li> </ul> Handshake rates
+ * are derived from the time spent handshaking on the client side; connecting
+ * and the single round trip exchanged after each handshake (to let TLSv1.3
+ * session tickets arrive) are not included. Combinations failing to handshake,
+ * such as SSLv3 or the 3DES cipher suites on current JVMs, are reported as
+ * skipped. <p> Finally, a recommended ordering of the
+ * secure.protocols and secure.cipherSuites properties is printed: forward
+ * secret AEAD cipher suites over TLSv1.2 or later, ordered by the geometric
+ * mean of their full handshake rate and bulk throughput relative to the best
+ * measured, with the AEAD suites of TLSv1.3 first. Both sockets run in
+ * blocking mode, with delegated tasks run inline, so that only the SSL/TLS
+ * path is measured. <p> Usage: HandshakeBench [handshakes] [megabytes]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class HandshakeBench {
+
+    private static final String PASSPHRASE = "handshakeBench";
+    private static final String PEER_HOST = "handshakebench.local";
+    private static final int CHUNK = 16384;
+    private static final long TIMEOUT_MS = 10000;
+    private static final String[] KEY_TYPES = {"RSA", "EC"};
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] AEAD_SUITES = {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+    };
+    private static final HandshakeListener HS_LISTENER = new HandshakeListener() {
+        @Override
+        public void handshakeComplete(SocketIF socket) {
+            // Handshakes are driven to completion by the bench threads
+        }
+    };
+    private static final TimeoutListener TO_LISTENER = new TimeoutListener() {
+        @Override
+        public void timeoutExpired(SocketIF socket) {
+            // The timeout worker is never started
+        }
+    };
+    private static final TimeoutWorker TO_WORKER = new TimeoutWorker();
+    private static final ExecutorService CLIENTS = Executors.newSingleThreadExecutor();
+
+    /**
+     * The measurements of a protocol, cipher suite and key type combination.
+     */
+    private static final class Result {
+
+        private final String protocol;
+        private final String suite;
+        private final String keyType;
+        private double fullRate;
+        private double resumedRate;
+        private int resumed;
+        private double p50;
+        private double p90;
+        private double p99;
+        private double mbs;
+        private String failure = null;
+
+        private Result(String protocol, String suite, String keyType) {
+            this.protocol = protocol;
+            this.suite = suite;
+            this.keyType = keyType;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int handshakes = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        long megabytes = (args.length > 1) ? Long.parseLong(args[1]) : 32;
+
+        Set<String> protocols = new LinkedHashSet<>(Arrays.asList(PROTOCOLS));
+        protocols.addAll(Arrays.asList(PropertiesReader.getProtocols()));
+        Set<String> suites = new LinkedHashSet<>(Arrays.asList(AEAD_SUITES));
+        suites.addAll(Arrays.asList(PropertiesReader.getCipherSuites()));
+
+        File dir = Files.createTempDirectory("HandshakeBench").toFile();
+        List<Result> results = new ArrayList<>();
+        try {
+            for (String keyType : KEY_TYPES) {
+                File keystore = generateKeyStore(dir, keyType);
+                SSLContext serverContext = createContext(keystore, true);
+                Set<String> supported = new LinkedHashSet<>(Arrays.asList(
+                        serverContext.createSSLEngine().getSupportedCipherSuites()));
+                Set<String> enabledProtocols = new LinkedHashSet<>(Arrays.asList(
+                        serverContext.getDefaultSSLParameters().getProtocols()));
+                for (String protocol : protocols) {
+                    for (String suite : suites) {
+                        if (isTLSv13(suite) != protocol.equals("TLSv1.3")) {
+                            // TLSv1.3 only negotiates its own cipher suites
+                            continue;
+                        }
+                        Result result = new Result(protocol, suite, keyType);
+                        results.add(result);
+                        if (!enabledProtocols.contains(protocol)) {
+                            result.failure = "protocol disabled or not supported";
+                        } else if (!supported.contains(suite)) {
+                            result.failure = "cipher suite not supported";
+                        } else {
+                            run(result, serverContext, keystore, handshakes, megabytes);
+                        }
+                        print(result);
+                    }
+                }
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        recommend(results);
+        System.exit(0);
+    }
+
+    /**
+     * Measure a protocol, cipher suite and key type combination, recording
+     * the first failure (if any) in the given result.
+     */
+    private static void run(Result result, SSLContext serverContext,
+            File keystore, int handshakes, long megabytes) {
+        String[] protocol = {result.protocol};
+        String[] suite = {result.suite};
+        ServerSocketChannel ssc = null;
+        try {
+            ssc = ServerSocketChannel.open();
+            ssc.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+            // Warm up, then measure full handshakes
+            SSLContext clientContext = createContext(keystore, false);
+            for (int i = 0; i < Math.max(1, handshakes / 10); i++) {
+                handshake(ssc, serverContext, clientContext, protocol, suite, false);
+            }
+            long[] latencies = new long[handshakes];
+            long total = 0;
+            for (int i = 0; i < handshakes; i++) {
+                latencies[i] = handshake(ssc, serverContext, clientContext,
+                        protocol, suite, false);
+                total += latencies[i];
+            }
+            result.fullRate = handshakes / (total / 1e9);
+            Arrays.sort(latencies);
+            result.p50 = percentile(latencies, 0.50);
+            result.p90 = percentile(latencies, 0.90);
+            result.p99 = percentile(latencies, 0.99);
+
+            // A fresh client context, whose first handshake caches the
+            // session the others resume
+            clientContext = createContext(keystore, false);
+            handshake(ssc, serverContext, clientContext, protocol, suite, true);
+            total = 0;
+            for (int i = 0; i < handshakes; i++) {
+                long latency = handshake(ssc, serverContext, clientContext,
+                        protocol, suite, true);
+                if (latency < 0) {
+                    result.resumed++;
+                }
+                total += Math.abs(latency);
+            }
+            result.resumedRate = handshakes / (total / 1e9);
+
+            transfer(ssc, serverContext, clientContext, protocol, suite,
+                    Math.max(1, megabytes / 4));
+            result.mbs = transfer(ssc, serverContext, clientContext,
+                    protocol, suite, megabytes);
+        } catch (Exception e) {
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            result.failure = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        } finally {
+            if (ssc != null) {
+                try {
+                    ssc.close();
+                } catch (IOException ioe) {
+                    // Nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Perform a handshake over a new pair of loopback {@link SecureSocket}s,
+     * followed by a single round trip.
+     *
+     * @return the time (ns) the client spent handshaking, negated if the
+     * server resumed a cached session
+     */
+    private static long handshake(ServerSocketChannel ssc,
+            SSLContext serverContext, SSLContext clientContext,
+            String[] protocols, String[] suites, boolean resume) throws Exception {
+        SocketChannel clientChannel = SocketChannel.open(ssc.socket().getLocalSocketAddress());
+        SocketChannel serverChannel = ssc.accept();
+        final SecureSocket server = newSocket(serverChannel,
+                serverContext.createSSLEngine(), false, protocols, suites);
+        final SecureSocket client = newSocket(clientChannel, resume
+                ? clientContext.createSSLEngine(PEER_HOST, ssc.socket().getLocalPort())
+                : clientContext.createSSLEngine(), true, protocols, suites);
+        try {
+            Future<Long> latency = CLIENTS.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    try {
+                        long begin = System.nanoTime();
+                        handshake(client);
+                        long end = System.nanoTime();
+                        exchange(client, true);
+                        return end - begin;
+                    } catch (IOException ioe) {
+                        // Unblock the server side
+                        client.getSocket().close();
+                        throw ioe;
+                    }
+                }
+            });
+            handshake(server);
+            exchange(server, false);
+            long ns = latency.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return server.isSessionResumed() ? -ns : ns;
+        } finally {
+            clientChannel.close();
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Transfer the given amount of data over a new pair of loopback
+     * {@link SecureSocket}s.
+     *
+     * @return the throughput of the transfer (MB/s)
+     */
+    private static double transfer(ServerSocketChannel ssc,
+            SSLContext serverContext, SSLContext clientContext,
+            String[] protocols, String[] suites, long megabytes) throws Exception {
+        final long total = megabytes * 1024 * 1024;
+        SocketChannel clientChannel = SocketChannel.open(ssc.socket().getLocalSocketAddress());
+        SocketChannel serverChannel = ssc.accept();
+        SecureSocket receiver = newSocket(serverChannel,
+                serverContext.createSSLEngine(), false, protocols, suites);
+        final SecureSocket sender = newSocket(clientChannel,
+                clientContext.createSSLEngine(), true, protocols, suites);
+        ByteBuffer buffer = BufferPool.acquire(CHUNK);
+        try {
+            Future<Long> sent = CLIENTS.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    ByteBuffer data = BufferPool.acquire(CHUNK);
+                    try {
+                        handshake(sender);
+                        long count = 0;
+                        for (; count < total; count += CHUNK) {
+                            data.clear();
+                            data.limit(CHUNK);
+                            sender.write(data);
+                        }
+                        return count;
+                    } catch (IOException ioe) {
+                        // Unblock the receiving side
+                        sender.getSocket().close();
+                        throw ioe;
+                    } finally {
+                        BufferPool.release(data);
+                    }
+                }
+            });
+            handshake(receiver);
+            long received = 0;
+            long begin = System.nanoTime();
+            while (received < total) {
+                buffer.clear();
+                int count = receiver.read(buffer);
+                if (count == -1) {
+                    throw new IOException("Received " + received + " of " + total + " bytes");
+                }
+                received += count;
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            sent.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return received / seconds / (1024 * 1024);
+        } finally {
+            BufferPool.release(buffer);
+            clientChannel.close();
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Create a blocking {@link SecureSocket} whose engine only enables the
+     * given protocols and cipher suites.
+     */
+    private static SecureSocket newSocket(SocketChannel channel,
+            SSLEngine engine, boolean client, String[] protocols,
+            String[] suites) throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        engine.setUseClientMode(client);
+        engine.setEnabledProtocols(protocols);
+        engine.setEnabledCipherSuites(suites);
+        return new SecureSocket(channel, engine, true, null, TO_WORKER,
+                HS_LISTENER, TO_LISTENER);
+    }
+
+    /**
+     * Drive the SSL/TLS handshake of a blocking {@link SecureSocket} to
+     * completion.
+     */
+    private static void handshake(SecureSocket socket) throws IOException {
+        socket.initHandshake();
+        while (socket.handshakePending()) {
+            if (socket.getEngine().isInboundDone()
+                    || socket.getEngine().isOutboundDone()) {
+                throw new SSLException("SSLEngine closed during handshake");
+            }
+            socket.processHandshake();
+        }
+    }
+
+    /**
+     * Exchange a single byte each way over a blocking {@link SecureSocket},
+     * which also processes any post-handshake message the peer has sent, such
+     * as a TLSv1.3 session ticket.
+     */
+    private static void exchange(SecureSocket socket, boolean first) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        if (first) {
+            socket.write(buffer);
+            buffer.clear();
+        }
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) == -1) {
+                throw new SSLException("EOF during round trip");
+            }
+        }
+        if (!first) {
+            buffer.clear();
+            socket.write(buffer);
+        }
+    }
+
+    /**
+     * Generate a self-signed key pair of the given type into a new JKS
+     * keystore via keytool.
+     */
+    private static File generateKeyStore(File dir, String keyType) throws Exception {
+        File keystore = new File(dir, keyType.toLowerCase() + ".jks");
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+        List<String> command = new ArrayList<>(Arrays.asList(keytool.getPath(),
+                "-genkeypair", "-alias", "bench", "-keyalg", keyType,
+                "-keysize", keyType.equals("EC") ? "256" : "2048",
+                "-dname", "CN=" + PEER_HOST, "-validity", "1",
+                "-storetype", "JKS", "-keystore", keystore.getPath(),
+                "-storepass", PASSPHRASE, "-keypass", PASSPHRASE));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        InputStream in = process.getInputStream();
+        byte[] output = new byte[4096];
+        int length = 0;
+        for (int count; (count = in.read(output, length, output.length - length)) > 0;) {
+            length += count;
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output, 0, length));
+        }
+        return keystore;
+    }
+
+    /**
+     * Create an {@link SSLContext} from a generated keystore, used as the
+     * keystore of a server or as the truststore of a client.
+     */
+    private static SSLContext createContext(File keystore, boolean server) throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keystore)) {
+            ks.load(in, PASSPHRASE.toCharArray());
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        if (server) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(ks, PASSPHRASE.toCharArray());
+            context.init(kmf.getKeyManagers(), null, null);
+        } else {
+            // The certificate of the key entry is trusted as is
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            tmf.init(ks);
+            context.init(null, tmf.getTrustManagers(), null);
+        }
+        return context;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static void print(Result result) {
+        if (result.failure != null) {
+            System.out.printf("%-7s %-45s %-3s skipped (%s)%n", result.protocol,
+                    result.suite, result.keyType, result.failure);
+        } else {
+            System.out.printf("%-7s %-45s %-3s full %7.1f/s resumed %7.1f/s (%d)"
+                    + " p50/p90/p99 %6.2f/%6.2f/%6.2f ms bulk %7.1f MB/s%n",
+                    result.protocol, result.suite, result.keyType,
+                    result.fullRate, result.resumedRate, result.resumed,
+                    result.p50, result.p90, result.p99, result.mbs);
+        }
+    }
+
+    /**
+     * Print the recommended ordering of the secure.protocols and
+     * secure.cipherSuites properties, and the measured suites left out of it.
+     */
+    private static void recommend(List<Result> results) {
+        double bestRate = 0;
+        double bestMBs = 0;
+        for (Result result : results) {
+            if (result.failure == null) {
+                bestRate = Math.max(bestRate, result.fullRate);
+                bestMBs = Math.max(bestMBs, result.mbs);
+            }
+        }
+        // The best score of every suite over all key types
+        final Map<String, Double> scores = new LinkedHashMap<>();
+        Map<String, Double> protocols = new LinkedHashMap<>();
+        Set<String> discouraged = new LinkedHashSet<>();
+        for (Result result : results) {
+            if (result.failure != null) {
+                continue;
+            }
+            if (!isRecommended(result)) {
+                discouraged.add(result.protocol + " " + result.suite);
+                continue;
+            }
+            double score = Math.sqrt(result.fullRate / bestRate * result.mbs / bestMBs);
+            Double previous = scores.get(result.suite);
+            if (previous == null || previous < score) {
+                scores.put(result.suite, score);
+            }
+            previous = protocols.get(result.protocol);
+            if (previous == null || previous < score) {
+                protocols.put(result.protocol, score);
+            }
+        }
+        List<String> suites = new ArrayList<>(scores.keySet());
+        Collections.sort(suites, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                if (isTLSv13(a) != isTLSv13(b)) {
+                    return isTLSv13(a) ? -1 : 1;
+                }
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        List<String> ordered = new ArrayList<>();
+        for (String protocol : PROTOCOLS) {
+            if (protocols.containsKey(protocol)) {
+                ordered.add(protocol);
+            }
+        }
+
+        System.out.println();
+        System.out.println("# Recommended ordering");
+        StringBuilder sb = new StringBuilder("secure.protocols = ");
+        for (String protocol : ordered) {
+            sb.append(protocol).append(' ');
+        }
+        System.out.println(sb.toString().trim());
+        sb = new StringBuilder("secure.cipherSuites = ");
+        for (int i = 0; i < suites.size(); i++) {
+            if (i > 0) {
+                sb.append(" \\\n                      ");
+            }
+            sb.append(suites.get(i));
+        }
+        System.out.println(sb);
+        if (!discouraged.isEmpty()) {
+            System.out.println("# Negotiated, but left out (no forward secrecy,"
+                    + " no AEAD or a legacy protocol):");
+            for (String entry : discouraged) {
+                System.out.println("#   " + entry);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given cipher suite is one of TLSv1.3, which are
+     * only negotiated over TLSv1.3.
+     */
+    private static boolean isTLSv13(String suite) {
+        return suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_");
+    }
+
+    /**
+     * Returns whether a measured combination is fit for the recommended
+     * ordering, that is a forward secret AEAD cipher suite over TLSv1.2 or
+     * later.
+     */
+    private static boolean isRecommended(Result result) {
+        if (!result.protocol.equals("TLSv1.3") && !result.protocol.equals("TLSv1.2")) {
+            return false;
+        }
+        String suite = result.suite;
+        boolean aead = suite.contains("_GCM_") || suite.contains("_CHACHA20_POLY1305_");
+        boolean forwardSecret = !result.protocol.equals("TLSv1.2")
+                || suite.startsWith("TLS_ECDHE_") || suite.startsWith("TLS_DHE_");
+        return aead && forwardSecret;
+    }
+}
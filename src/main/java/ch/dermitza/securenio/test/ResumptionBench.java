@@ -0,0 +1,120 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.TCPClient;
+import ch.dermitza.securenio.TCPServer;
+import ch.dermitza.securenio.packet.worker.SimplePacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A loopback benchmark of the SSL/TLS handshake rate (handshakes/s) of
+ * reconnecting {@link TCPClient}s, with and without session resumption. <p>
+ * A {@link TCPServer} is started, to which the given number of clients
+ * connect one after the other, each disconnecting as soon as its handshake
+ * has completed. In the first run every client sets up its own
+ * {@link SSLContext}, so that each connection performs a full handshake. In
+ * the second run all clients share the SSLContext of the first client, see
+ * {@link TCPClient#setupSSL(SSLContext)}, so that all but the first
+ * connection resume the cached session. Both rates include starting and
+ * stopping each client. The resumed and full handshakes counted by the
+ * server are reported for each run. The server.jks and serverPublic.jks
+ * keystores are loaded from the classpath. <p> Usage: ResumptionBench
+ * [connections] [port]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class ResumptionBench {
+
+    public static void main(String[] args) throws Exception {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 44521;
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        TCPServer server = new TCPServer(address, port,
+                new SimplePacketWorker(), true, false, 0,
+                TCPServer.BALANCE_ROUND_ROBIN);
+        server.setupSSL(null, "server.jks", null, "server".toCharArray());
+        new Thread(server, "ServerThread").start();
+        Thread.sleep(500);
+
+        // Warm up both paths, then measure
+        run(server, address, port, connections / 5, false);
+        run(server, address, port, connections / 5, true);
+        run(server, address, port, connections, false);
+        run(server, address, port, connections, true);
+
+        server.setRunning(false);
+        Thread.sleep(500);
+        // Workers of a client stopped right after being started may linger
+        System.exit(0);
+    }
+
+    /**
+     * Connect the given number of clients to the server, one after the other,
+     * and report the handshake rate.
+     */
+    private static void run(TCPServer server, InetAddress address, int port,
+            int connections, boolean resume) throws Exception {
+        long resumed = server.getResumedHandshakes();
+        long full = server.getFullHandshakes();
+        SSLContext shared = null;
+        long begin = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            TCPClient client = new TCPClient(address, port,
+                    new SimplePacketWorker(), true, false) {
+                @Override
+                public void handshakeComplete(SocketIF socket) {
+                    super.handshakeComplete(socket);
+                    done.countDown();
+                }
+            };
+            if (shared == null) {
+                client.setupSSL("serverPublic.jks", null,
+                        "serverPublic".toCharArray(), null);
+                if (resume) {
+                    shared = client.getSSLContext();
+                }
+            } else {
+                client.setupSSL(shared);
+            }
+            Thread thread = new Thread(client, "ClientThread");
+            thread.start();
+            if (!done.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Handshake " + i + " timed out");
+            }
+            client.setRunning(false);
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        // Let the server complete its side of the last handshake
+        Thread.sleep(200);
+        System.out.printf("%-14s %6d connections: %8.1f handshakes/s"
+                + " (server: %d resumed, %d full)%n",
+                resume ? "shared context" : "own context", connections,
+                connections / seconds, server.getResumedHandshakes() - resumed,
+                server.getFullHandshakes() - full);
+    }
+}
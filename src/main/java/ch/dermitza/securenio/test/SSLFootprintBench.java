@@ -0,0 +1,140 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.TCPServer;
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.PacketListener;
+import ch.dermitza.securenio.packet.singlebyte.PacketPong;
+import ch.dermitza.securenio.packet.singlebyte.SimplePacket;
+import ch.dermitza.securenio.packet.worker.SimplePacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A loopback benchmark of the memory footprint of idle SSL/TLS connections
+ * on a {@link TCPServer}. <p> A number of clients connect, complete the
+ * SSL/TLS handshake, exchange a PING/PONG with the server and then stay
+ * connected without sending anything. The direct memory in use by the VM
+ * (where all network buffers of the server live) is reported before the
+ * clients connect and once they are idle, along with the resulting footprint
+ * per connection. The clients use blocking {@link SSLSocket}s, which keep
+ * their buffers on the heap. The serverPublic.jks keystore is loaded from
+ * the classpath. <p> Usage: SSLFootprintBench [connections] [port]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class SSLFootprintBench {
+
+    public static void main(String[] args) throws Exception {
+        int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 44520;
+
+        final TCPServer server = new TCPServer(null, port,
+                new SimplePacketWorker(), true, false, 0,
+                TCPServer.BALANCE_ROUND_ROBIN);
+        server.setupSSL(null, "server.jks", null, "server".toCharArray());
+        server.addListener(new PacketListener() {
+            @Override
+            public void paketArrived(SocketIF socket, PacketIF packet) {
+                if (packet.getHeader() == SimplePacket.PING) {
+                    server.send(socket, new PacketPong());
+                }
+            }
+        });
+        new Thread(server, "ServerThread").start();
+        Thread.sleep(500);
+
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(SSLFootprintBench.class.getClassLoader()
+                .getResourceAsStream("serverPublic.jks"),
+                "serverPublic".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+        tmf.init(ks);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+
+        // Warm up the server's buffer pool with a single connection
+        connect(context, port).close();
+        Thread.sleep(500);
+        long before = directMemoryUsed();
+
+        ArrayList<SSLSocket> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(connect(context, port));
+        }
+        // Let the server settle once all clients are idle
+        Thread.sleep(1000);
+        long after = directMemoryUsed();
+
+        System.out.printf("idle connections:     %10d%n", clients.size());
+        System.out.printf("direct memory before: %10d bytes%n", before);
+        System.out.printf("direct memory after:  %10d bytes%n", after);
+        System.out.printf("per connection:       %10d bytes%n",
+                (after - before) / Math.max(1, clients.size()));
+
+        for (SSLSocket client : clients) {
+            client.close();
+        }
+        server.setRunning(false);
+        Thread.sleep(500);
+    }
+
+    /**
+     * Connect an {@link SSLSocket} to the server and exchange a PING/PONG
+     * with it, so that data has flowed through the connection.
+     */
+    private static SSLSocket connect(SSLContext context, int port)
+            throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory()
+                .createSocket("127.0.0.1", port);
+        socket.startHandshake();
+        OutputStream out = socket.getOutputStream();
+        out.write(SimplePacket.PING);
+        out.flush();
+        InputStream in = socket.getInputStream();
+        if (in.read() != SimplePacket.PONG) {
+            throw new IOException("No PONG received");
+        }
+        return socket;
+    }
+
+    /**
+     * Returns the direct memory (bytes) in use by the VM.
+     */
+    private static long directMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory
+                .getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+}
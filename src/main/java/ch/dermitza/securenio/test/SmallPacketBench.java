@@ -0,0 +1,299 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.TCPServer;
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback benchmark of the small-message echo throughput of a plain
+ * {@link TCPServer}, and of the syscalls and select() calls it takes, with
+ * one write per queued packet and one read per readiness event, against the
+ * configured gathering writes, with and without the configured read budget.
+ * <p> For each mode, a server is started and the given number of clients
+ * connect. Each client then writes bursts of the given number of packets of
+ * the given size in a single write, reading all of them echoed back before
+ * writing the next burst. The server sends every packet-sized slice of the data it reads as
+ * a packet of its own, so that the packets of a burst queue up on the
+ * socket as those of a chatty server would. <p> The syscalls are read from
+ * /proc/self/io (Linux only) and cover the whole process, the clients
+ * included, which take one write per burst and as many reads as it takes
+ * them to read each burst back. The write syscalls of the server alone are
+ * reported, the client writes subtracted; the read syscalls of both ends
+ * are reported together. The bytes per select() are those the server reads
+ * and writes, per select() call of its selector. <p> Usage:
+ * SmallPacketBench [packets] [packetSize] [burst] [connections]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class SmallPacketBench {
+
+    private static final int SOCKET_BUFFER = 262144;
+    // The read buffer of the selector, filled once per readiness event
+    // without a read budget
+    private static final int READ_BUFFER = 8192;
+
+    public static void main(String[] args) throws Exception {
+        long packets = (args.length > 0) ? Long.parseLong(args[0]) : 2000000;
+        int size = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int burst = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+        int connections = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        Configuration defaults = Configuration.getDefault();
+
+        System.out.printf("%d packets of %d bytes in bursts of %d, %d connections%n",
+                packets, size, burst, connections);
+        System.out.printf("%-26s %12s %14s %14s %12s%n", "mode", "packets/s",
+                "server writes", "reads (both)", "bytes per");
+        System.out.printf("%-26s %12s %14s %14s %12s%n", "", "",
+                "per 1000 pkts", "per 1000 pkts", "select()");
+        int[][] modes = {{1, READ_BUFFER},
+            {defaults.getWriteMaxBuffers(), READ_BUFFER},
+            {defaults.getWriteMaxBuffers(), defaults.getReadBudget()}};
+        // Warm up, then measure
+        for (int[] mode : modes) {
+            run(packets / 4, size, burst, connections, mode[0], mode[1]);
+        }
+        for (int[] mode : modes) {
+            print("buffers " + mode[0] + ", budget " + mode[1], run(packets,
+                    size, burst, connections, mode[0], mode[1]));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Print a row of the results of a run.
+     */
+    private static void print(String mode, double[] result) {
+        if (result[1] < 0) {
+            System.out.printf("%-26s %12.0f %14s %14s %12.0f%n", mode,
+                    result[0], "n/a", "n/a", result[3]);
+        } else {
+            System.out.printf("%-26s %12.0f %14.1f %14.1f %12.0f%n", mode,
+                    result[0], result[1], result[2], result[3]);
+        }
+    }
+
+    /**
+     * Start a server gathering at most the given number of buffers per write
+     * and reading at most the given number of bytes per readiness event,
+     * connect the given number of clients and measure their echo throughput.
+     *
+     * @return the packets echoed per second, the server write syscalls and
+     * the read syscalls per 1000 packets (negative if unknown), and the
+     * bytes read and written per select()
+     */
+    private static double[] run(long packets, final int size, final int burst,
+            int connections, int writeMaxBuffers, int readBudget)
+            throws Exception {
+        // The default socket buffers are far smaller than a burst
+        Configuration config = Configuration.builder()
+                .writeMaxBuffers(writeMaxBuffers).readBudget(readBudget)
+                .soSndBuf(SOCKET_BUFFER).soRcvBuf(SOCKET_BUFFER).build();
+        EchoWorker worker = new EchoWorker(config, size);
+        final int port = freePort();
+        TCPServer server = new TCPServer(null, port, worker, false, false,
+                0, TCPServer.BALANCE_ROUND_ROBIN, config);
+        worker.server = server;
+        new Thread(server, "ServerThread").start();
+        Thread.sleep(500);
+
+        final long rounds = Math.max(1, packets / connections / burst);
+        final CountDownLatch ready = new CountDownLatch(connections);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < connections; i++) {
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Socket socket = null;
+                    try {
+                        socket = new Socket("127.0.0.1", port);
+                        socket.setTcpNoDelay(true);
+                        socket.setSendBufferSize(SOCKET_BUFFER);
+                        socket.setReceiveBufferSize(SOCKET_BUFFER);
+                        byte[] out = new byte[size * burst];
+                        byte[] in = new byte[size * burst];
+                        new Random().nextBytes(out);
+                        OutputStream os = socket.getOutputStream();
+                        DataInputStream is = new DataInputStream(socket.getInputStream());
+                        ready.countDown();
+                        start.await();
+                        for (long r = 0; r < rounds; r++) {
+                            os.write(out);
+                            os.flush();
+                            is.readFully(in);
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                        ready.countDown();
+                    } finally {
+                        done.countDown();
+                        if (socket != null) {
+                            try {
+                                socket.close();
+                            } catch (IOException ioe) {
+                                // Nothing to do
+                            }
+                        }
+                    }
+                }
+            }, "Client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        ready.await();
+        long[] before = syscalls();
+        long selects = server.getSelects();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        long[] after = syscalls();
+        selects = server.getSelects() - selects;
+
+        server.setRunning(false);
+        Thread.sleep(500);
+        if (failed.get() > 0) {
+            System.out.printf("  %d of %d clients failed%n", failed.get(), connections);
+        }
+        long bursts = rounds * (connections - failed.get());
+        long echoed = bursts * burst;
+        double[] result = new double[4];
+        result[0] = echoed / (elapsed / 1e9);
+        if (before != null && after != null) {
+            result[1] = (after[1] - before[1] - bursts) * 1000.0 / echoed;
+            result[2] = (after[0] - before[0]) * 1000.0 / echoed;
+        } else {
+            result[1] = -1;
+            result[2] = -1;
+        }
+        result[3] = 2.0 * echoed * size / Math.max(1, selects);
+        return result;
+    }
+
+    /**
+     * Returns the read and write syscalls of this process so far, as per
+     * /proc/self/io, or null if not available.
+     */
+    private static long[] syscalls() {
+        long[] counts = new long[2];
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader("/proc/self/io"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("syscr:")) {
+                    counts[0] = Long.parseLong(line.substring(6).trim());
+                } else if (line.startsWith("syscw:")) {
+                    counts[1] = Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        return counts;
+    }
+
+    /**
+     * Returns a port that is currently free on the loopback interface.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * A packet worker sending every packet-sized slice of the data it is
+     * handed back to the socket it was received from, as a packet of its
+     * own, on the thread handing it the data.
+     */
+    private static final class EchoWorker extends AbstractPacketWorker {
+
+        private final int size;
+        private volatile TCPServer server;
+
+        EchoWorker(Configuration config, int size) {
+            super(config);
+            this.size = size;
+        }
+
+        @Override
+        public void addData(SocketIF socket, ByteBuffer data, int count) {
+            data.limit(count);
+            data.position(0);
+            while (data.hasRemaining()) {
+                ByteBuffer copy = ByteBuffer.allocate(Math.min(size, data.remaining()));
+                int limit = data.limit();
+                data.limit(data.position() + copy.remaining());
+                copy.put(data);
+                data.limit(limit);
+                copy.flip();
+                server.send(socket, new Echo(copy));
+            }
+        }
+
+        @Override
+        protected void processData() {
+            // All data is echoed in addData()
+        }
+    }
+
+    /**
+     * A packet wrapping raw bytes to be echoed.
+     */
+    private static final class Echo implements PacketIF {
+
+        private final ByteBuffer data;
+
+        Echo(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public short getHeader() {
+            return 0;
+        }
+
+        @Override
+        public void reconstruct(ByteBuffer source) {
+            // Never reconstructed
+        }
+
+        @Override
+        public ByteBuffer toBytes() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test;
+
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.socket.secure.HandshakeListener;
+import ch.dermitza.securenio.socket.secure.SecureSocket;
+import ch.dermitza.securenio.socket.timeout.TimeoutListener;
+import ch.dermitza.securenio.socket.timeout.worker.TimeoutWorker;
+import ch.dermitza.securenio.util.BufferPool;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A loopback benchmark of the bulk SSL/TLS throughput (MB/s) of a pair of
+ * {@link SecureSocket}s. <p> A sender thread writes the given amount of data
+ * in chunks of the given size, which a receiver thread reads back via
+ * {@link SecureSocket#read(ByteBuffer)} into a buffer of each of the given
+ * sizes in turn. Read buffers at least as large as the application buffer of
+ * the SSL/TLS session are unwrapped into directly, smaller ones are filled
+ * from the socket's own decrypted buffer. Both sockets run in blocking mode,
+ * with delegated tasks run inline, so that only the SSL/TLS path is measured.
+ * The server.jks and serverPublic.jks keystores are loaded from the
+ * classpath. <p> Usage: TLSThroughputBench [megabytes] [chunkSize]
+ * [readBufferSize...]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public class TLSThroughputBench {
+
+    private static final HandshakeListener HS_LISTENER = new HandshakeListener() {
+        @Override
+        public void handshakeComplete(SocketIF socket) {
+            // Handshakes are driven to completion by the bench threads
+        }
+    };
+    private static final TimeoutListener TO_LISTENER = new TimeoutListener() {
+        @Override
+        public void timeoutExpired(SocketIF socket) {
+            // The timeout worker is never started
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = (args.length > 0) ? Long.parseLong(args[0]) : 256;
+        int chunk = (args.length > 1) ? Integer.parseInt(args[1]) : 8192;
+        int[] readSizes = {8192, 65536};
+        if (args.length > 2) {
+            readSizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                readSizes[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+        SSLContext serverContext = createContext("server.jks", "server", true);
+        SSLContext clientContext = createContext("serverPublic.jks", "serverPublic", false);
+
+        // Warm up, then measure
+        for (int size : readSizes) {
+            run(serverContext, clientContext, megabytes / 4, chunk, size);
+        }
+        for (int size : readSizes) {
+            double mbs = run(serverContext, clientContext, megabytes, chunk, size);
+            System.out.printf("read buffer %6d bytes: %8.1f MB/s%n", size, mbs);
+        }
+    }
+
+    /**
+     * Transfer the given amount of data over a new pair of loopback
+     * {@link SecureSocket}s.
+     *
+     * @return the throughput of the transfer (MB/s)
+     */
+    private static double run(SSLContext serverContext, SSLContext clientContext,
+            long megabytes, final int chunk, int readSize) throws Exception {
+        final long total = megabytes * 1024 * 1024;
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        SocketChannel clientChannel = SocketChannel.open(ssc.socket().getLocalSocketAddress());
+        SocketChannel serverChannel = ssc.accept();
+        ssc.close();
+
+        TimeoutWorker toWorker = new TimeoutWorker();
+        SSLEngine serverEngine = serverContext.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        SSLEngine clientEngine = clientContext.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        final SecureSocket receiver = new SecureSocket(serverChannel, serverEngine,
+                true, null, toWorker, HS_LISTENER, TO_LISTENER);
+        final SecureSocket sender = new SecureSocket(clientChannel, clientEngine,
+                true, null, toWorker, HS_LISTENER, TO_LISTENER);
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer data = BufferPool.acquire(chunk);
+                try {
+                    handshake(sender);
+                    for (long sent = 0; sent < total; sent += chunk) {
+                        data.clear();
+                        data.limit(chunk);
+                        sender.write(data);
+                    }
+                } catch (IOException ioe) {
+                    failure.set(ioe);
+                } finally {
+                    BufferPool.release(data);
+                }
+            }
+        }, "TLSThroughputBenchSender");
+        senderThread.start();
+
+        handshake(receiver);
+        ByteBuffer buffer = BufferPool.acquire(readSize);
+        long received = 0;
+        long begin = System.nanoTime();
+        while (received < total) {
+            buffer.clear();
+            buffer.limit(readSize);
+            int count = receiver.read(buffer);
+            if (count == -1) {
+                break;
+            }
+            received += count;
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        senderThread.join();
+        BufferPool.release(buffer);
+        clientChannel.close();
+        serverChannel.close();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (received < total) {
+            System.out.println("Received " + received + " of " + total + " bytes");
+        }
+        return received / seconds / (1024 * 1024);
+    }
+
+    /**
+     * Drive the SSL/TLS handshake of a blocking {@link SecureSocket} to
+     * completion.
+     */
+    private static void handshake(SecureSocket socket) throws IOException {
+        socket.initHandshake();
+        while (socket.handshakePending()) {
+            if (socket.getEngine().isInboundDone()
+                    || socket.getEngine().isOutboundDone()) {
+                throw new SSLException("SSLEngine closed during handshake");
+            }
+            socket.processHandshake();
+        }
+    }
+
+    /**
+     * Create an {@link SSLContext} from a keystore on the classpath, used as
+     * the keystore of a server or as the truststore of a client.
+     */
+    private static SSLContext createContext(String resource, String passphrase,
+            boolean server) throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(TLSThroughputBench.class.getClassLoader()
+                .getResourceAsStream(resource), passphrase.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        if (server) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(ks, passphrase.toCharArray());
+            context.init(kmf.getKeyManagers(), null, null);
+        } else {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            tmf.init(ks);
+            context.init(null, tmf.getTrustManagers(), null);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.test.variablebyte;
+
+import ch.dermitza.securenio.BlockingServer;
+import ch.dermitza.securenio.TCPClient;
+import ch.dermitza.securenio.packet.PacketIF;
+import ch.dermitza.securenio.packet.PacketListener;
+import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
+import ch.dermitza.securenio.packet.worker.PacketWorkerFactory;
+import ch.dermitza.securenio.socket.SocketIF;
+import ch.dermitza.securenio.util.Configuration;
+import ch.dermitza.securenio.util.logging.LoggerHandler;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * The {@link ServerTest} echo server, running on the thread-per-connection
+ * {@link BlockingServer} engine instead of the selector-based one, so that
+ * both can be driven by the same {@link ClientTest} load. <p> Run with the
+ * "concurrent" argument, the server also pushes packets to each client from
+ * a thread of its own, while the connection thread keeps reading and echoing
+ * the packets of the client, which checks that every echoed and pushed
+ * packet arrives intact and in order. Usage: BlockingServerTest
+ * [concurrent [packets]]
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since   0.21
+ */
+public class BlockingServerTest implements PacketListener {
+
+    private final BlockingServer server;
+    private final int pushes;
+    private final Set<SocketIF> pushing = new HashSet<>();
+
+    public BlockingServerTest(InetAddress address, int port, boolean usingSSL,
+            boolean needClientAuth) {
+        this(address, port, usingSSL, needClientAuth, 0,
+                Configuration.getDefault());
+    }
+
+    /**
+     * Create and start the echo server, pushing the given number of packets
+     * to each client once its first packet arrives.
+     */
+    public BlockingServerTest(InetAddress address, int port, boolean usingSSL,
+            boolean needClientAuth, int pushes, Configuration config) {
+        this.pushes = pushes;
+        server = new BlockingServer(address, port, new PacketWorkerFactory() {
+            @Override
+            public AbstractPacketWorker newPacketWorker() {
+                return new TestPacketWorker();
+            }
+        }, usingSSL, needClientAuth, null, config);
+        if (usingSSL) {
+            String trustStoreLoc = null;
+            char[] tsPassPhrase = null;
+            if (needClientAuth) {
+                trustStoreLoc = "clientPublic.jks";
+                tsPassPhrase = "clientPublic".toCharArray();
+            }
+            server.setupSSL(trustStoreLoc, "server.jks", tsPassPhrase,
+                    "server".toCharArray());
+        }
+        server.addListener(this);
+        new Thread(server, "BlockingServerThread").start();
+    }
+
+    @Override
+    public void paketArrived(SocketIF channel, PacketIF packet) {
+        if (packet.getHeader() == AbstractTestPacket.TYPE_ONE) {
+            if (pushes > 0) {
+                startPushing(channel);
+            }
+            server.send(channel, packet);
+        }
+    }
+
+    /**
+     * Start pushing packets to the given socket from a thread other than its
+     * connection thread, unless already started.
+     */
+    private void startPushing(final SocketIF channel) {
+        synchronized (pushing) {
+            if (!pushing.add(channel)) {
+                return;
+            }
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < pushes; i++) {
+                    server.send(channel, newPacket("Push " + i));
+                }
+            }
+        }, "BlockingServerPusher").start();
+    }
+
+    private static TestPacketOne newPacket(String value) {
+        TestPacketOne p = new TestPacketOne();
+        p.setByte((byte) 0xF1);
+        p.setFloat(55.0123f);
+        p.setLong(System.currentTimeMillis());
+        p.setString(value);
+        return p;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("concurrent")) {
+            int packets = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+            LoggerHandler.setLevel(Level.CONFIG);
+            // Socket buffers small enough for both directions to fill up,
+            // but not the 2048 bytes of the setup.properties, which loopback
+            // TCP itself can stall on
+            Configuration config = Configuration.builder().soSndBuf(8192)
+                    .soRcvBuf(8192).build();
+            new BlockingServerTest(null, 44503, true, false, packets, config);
+            Thread.sleep(500);
+            System.exit(new ConcurrentClient(InetAddress.getByName("127.0.0.1"),
+                    44503, packets, config).run() ? 0 : 1);
+        }
+        LoggerHandler.setLevel(Level.ALL);
+        BlockingServerTest s = new BlockingServerTest(null, 44503, true, false);
+        try {
+            Thread.sleep(40000);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * A client sending packets to the server while the server pushes packets
+     * of its own, checking that the echoed and the pushed packets both arrive
+     * intact and in order. All packets are sent at once, so that both ends
+     * push bulk data at each other, and each has to keep reading while its
+     * own data is still queued.
+     */
+    private static class ConcurrentClient implements PacketListener {
+
+        private final TCPClient client;
+        private final int packets;
+        private int echoed = 0;
+        private int pushed = 0;
+        private boolean corrupted = false;
+
+        ConcurrentClient(InetAddress address, int port, int packets,
+                Configuration config) {
+            this.packets = packets;
+            client = new TCPClient(address, port, new TestPacketWorker(),
+                    true, false, config);
+            client.setupSSL("serverPublic.jks", null,
+                    "serverPublic".toCharArray(), null);
+            client.addListener(this);
+        }
+
+        /**
+         * Run the exchange to completion, or until it stalls.
+         *
+         * @return true if all packets arrived intact and in order
+         */
+        boolean run() throws InterruptedException {
+            new Thread(client, "ConcurrentClient").start();
+            while (!client.isConnected()) {
+                Thread.sleep(10);
+            }
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < packets; i++) {
+                client.send(newPacket("Packet " + i));
+            }
+            long deadline = start + 30000;
+            synchronized (this) {
+                while (!corrupted && (echoed < packets || pushed < packets)
+                        && System.currentTimeMillis() < deadline) {
+                    wait(100);
+                }
+            }
+            client.setRunning(false);
+            synchronized (this) {
+                System.out.println("Echoed " + echoed + "/" + packets
+                        + ", pushed " + pushed + "/" + packets + " in "
+                        + (System.currentTimeMillis() - start) + "ms"
+                        + (corrupted ? ", CORRUPTED" : ""));
+                return !corrupted && echoed == packets && pushed == packets;
+            }
+        }
+
+        @Override
+        public synchronized void paketArrived(SocketIF socket, PacketIF packet) {
+            String value = ((TestPacketOne) packet).getString();
+            if (value.equals("Packet " + echoed)) {
+                echoed++;
+            } else if (value.equals("Push " + pushed)) {
+                pushed++;
+            } else {
+                System.out.println("Unexpected packet: " + value);
+                corrupted = true;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -23,7 +23,6 @@ import ch.dermitza.securenio.packet.worker.AbstractPacketWorker;
 import ch.dermitza.securenio.socket.PlainSocket;
 import ch.dermitza.securenio.socket.SocketIF;
 import ch.dermitza.securenio.socket.secure.SecureSocket;
-import ch.dermitza.securenio.util.PropertiesReader;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -129,27 +128,29 @@ public class MultiSocketClient extends AbstractSelector {
             channel.configureBlocking(false);
             channel.connect(new InetSocketAddress(address, port));
 
-            // As part of the registration we'll register
-            // an interest in connection events. These are raised when a channel
-            // is ready to complete connection establishment.
-            channel.register(selector, SelectionKey.OP_CONNECT);
-            channel.setOption(StandardSocketOptions.SO_SNDBUF, PropertiesReader.getSoSndBuf());
-            channel.setOption(StandardSocketOptions.SO_RCVBUF, PropertiesReader.getSoRcvBuf());
-            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, PropertiesReader.getKeepAlive());
-            channel.setOption(StandardSocketOptions.SO_REUSEADDR, PropertiesReader.getReuseAddress());
-            channel.setOption(StandardSocketOptions.IP_TOS, PropertiesReader.getIPTos());
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSoSndBuf());
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getSoRcvBuf());
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, config.getKeepAlive());
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, config.getReuseAddress());
+            channel.setOption(StandardSocketOptions.IP_TOS, config.getIPTos());
 
             // now wrap the channel
             if (usingSSL) {
-                String peerHost = channel.socket().getInetAddress().getHostAddress();
-                int peerPort = channel.socket().getPort();
+                // The configured remote address and port key the session
+                // cache, so that sockets resume each other's sessions
+                String peerHost = address.getHostAddress();
+                int peerPort = port;
                 SSLEngine engine = setupEngine(peerHost, peerPort);
 
                 sc = new SecureSocket(channel, engine, singleThreaded, taskWorker,
-                        toWorker, this, this);
+                        toWorker, this, this, config.getTimeoutMS());
             } else {
                 sc = new PlainSocket(channel);
             }
+            // As part of the registration we'll register
+            // an interest in connection events. These are raised when a channel
+            // is ready to complete connection establishment.
+            sc.register(selector, SelectionKey.OP_CONNECT);
             // add the socket to the container
             container.addSocket(sc.getSocket(), sc);
             sockets[i] = sc;
@@ -188,7 +189,7 @@ public class MultiSocketClient extends AbstractSelector {
         // Finish the connection. If the connection operation failed
         // this will raise an IOException.
         try {
-            container.getSocket(key.channel()).finishConnect();
+            ((SocketIF) key.attachment()).finishConnect();
         } catch (IOException e) {
             // Cancel the channel's registration with our selector
             // since it faled to connect. At this point, there is no
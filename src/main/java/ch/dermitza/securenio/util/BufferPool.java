@@ -0,0 +1,310 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.util;
+
+import ch.dermitza.securenio.util.logging.LoggerHandler;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A static pool of direct {@link ByteBuffer}s used for all network buffers.
+ * <p> Buffers are pooled in power-of-two size classes, from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes. Each thread keeps a small
+ * cache of released buffers per size class, so that the common case of
+ * {@link #acquire(int)} and {@link #release(ByteBuffer)} on the same thread
+ * (e.g. the selector thread) neither locks nor allocates. Buffers overflowing
+ * a thread cache are handed to a global, lock-free cache per size class, from
+ * which any thread may take them. Requests larger than {@link #MAX_SIZE} are
+ * served by unpooled direct buffers. <p> Virtual threads do not keep a
+ * thread cache, as they are typically too short-lived to reuse the buffers
+ * they cache, which would be lost along with the thread. Short-lived platform
+ * threads should do the same via {@link #bypassThreadCache()}. <p> Every
+ * acquired buffer MUST be released exactly once, and MUST NOT be used after
+ * being released. If the bufferpool.leak_detection property is set, the pool
+ * keeps track of all outstanding buffers and where they were acquired,
+ * refuses double releases and reports outstanding buffers via
+ * {@link #reportLeaks()}, which is also called when the VM exits.
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public final class BufferPool {
+
+    private static final Logger LOGGER = LoggerHandler.getLogger(BufferPool.class.getName());
+    /**
+     * The smallest size class (bytes) of this pool
+     */
+    public static final int MIN_SIZE = 64;
+    /**
+     * The largest size class (bytes) of this pool. Larger buffers are not
+     * pooled.
+     */
+    public static final int MAX_SIZE = 262144;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = PropertiesReader.getBufferPoolThreadCacheSize();
+    private static final int GLOBAL_CACHE_SIZE = PropertiesReader.getBufferPoolGlobalCacheSize();
+    private static final boolean LEAK_DETECTION = PropertiesReader.getBufferPoolLeakDetection();
+    private static final GlobalCache[] GLOBAL = new GlobalCache[CLASSES];
+    // The thread cache of threads not caching buffers
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayDeque<ByteBuffer>[] NO_CACHE = new ArrayDeque[0];
+    // Thread.isVirtual(), or null if the JVM does not support virtual threads
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> LOCAL = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected ArrayDeque<ByteBuffer>[] initialValue() {
+            if (isVirtual(Thread.currentThread())) {
+                return NO_CACHE;
+            }
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return caches;
+        }
+    };
+    // Outstanding buffers and their acquisition traces, debug mode only
+    private static final Map<ByteBuffer, Throwable> OUTSTANDING
+            = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            GLOBAL[i] = new GlobalCache();
+        }
+        if (LEAK_DETECTION) {
+            LOGGER.config("Buffer leak detection enabled");
+            // Buffers may be shared by any number of selectors in this VM,
+            // only report what is still outstanding once it exits
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reportLeaks();
+                }
+            }, "BufferPoolLeakReporter"));
+        }
+    }
+
+    private BufferPool() {
+        // static helper, no instances
+    }
+
+    /**
+     * Acquire a direct {@link ByteBuffer} with a capacity of at least
+     * {@code size} bytes. The buffer is returned cleared, i.e. with a position
+     * of 0 and a limit equal to its capacity. Its contents are undefined.
+     *
+     * @param size The minimum capacity of the buffer
+     * @return a cleared direct ByteBuffer of at least {@code size} bytes
+     */
+    public static ByteBuffer acquire(int size) {
+        ByteBuffer buf;
+        if (size > MAX_SIZE) {
+            // Too large to pool, this is not tracked either
+            return ByteBuffer.allocateDirect(size);
+        }
+        int idx = sizeClass(size);
+        ArrayDeque<ByteBuffer>[] local = LOCAL.get();
+        buf = (local == NO_CACHE) ? null : local[idx].pollFirst();
+        if (buf == null) {
+            buf = GLOBAL[idx].poll();
+            if (buf == null) {
+                buf = ByteBuffer.allocateDirect(MIN_SIZE << idx);
+            }
+        }
+        buf.clear();
+        if (LEAK_DETECTION) {
+            OUTSTANDING.put(buf, new Throwable("Buffer of " + buf.capacity()
+                    + " bytes acquired by " + Thread.currentThread().getName()));
+        }
+        return buf;
+    }
+
+    /**
+     * Release a {@link ByteBuffer} previously acquired via
+     * {@link #acquire(int)} back to this pool. Heap buffers and buffers that
+     * do not match one of the size classes of this pool (e.g. unpooled large
+     * buffers) are silently ignored and left to the garbage collector. Only
+     * buffers acquired from this pool may be released to it; this is not
+     * checked unless leak detection is enabled, as it would cost a lookup
+     * on every call. This method does nothing if the given buffer is null.
+     *
+     * @param buf The ByteBuffer to release
+     */
+    public static void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        int cap = buf.capacity();
+        if (cap < MIN_SIZE || cap > MAX_SIZE || Integer.bitCount(cap) != 1) {
+            return;
+        }
+        if (LEAK_DETECTION && OUTSTANDING.remove(buf) == null) {
+            // Never pool a buffer twice, it would be handed out twice
+            LOGGER.log(Level.WARNING, "Releasing a buffer that is not outstanding",
+                    new Throwable("Buffer of " + cap + " bytes released by "
+                            + Thread.currentThread().getName()));
+            return;
+        }
+        int idx = Integer.numberOfTrailingZeros(cap) - MIN_SHIFT;
+        ArrayDeque<ByteBuffer>[] local = LOCAL.get();
+        if (local != NO_CACHE && local[idx].size() < THREAD_CACHE_SIZE) {
+            local[idx].addFirst(buf);
+        } else {
+            GLOBAL[idx].offer(buf);
+        }
+    }
+
+    /**
+     * Stop caching buffers on the calling thread, handing the buffers it has
+     * cached so far to the global cache. From then on, buffers released by
+     * this thread go straight to the global cache. Threads that are not long
+     * lived (e.g. a thread per connection) should call this, as the buffers
+     * cached by a thread are otherwise lost once it terminates. Virtual
+     * threads never cache buffers.
+     */
+    public static void bypassThreadCache() {
+        ArrayDeque<ByteBuffer>[] caches = LOCAL.get();
+        if (caches == NO_CACHE) {
+            return;
+        }
+        LOCAL.set(NO_CACHE);
+        ByteBuffer buf;
+        for (int i = 0; i < CLASSES; i++) {
+            while ((buf = caches[i].pollFirst()) != null) {
+                GLOBAL[i].offer(buf);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers acquired but not yet released. This
+     * information is only available if leak detection is enabled.
+     *
+     * @return the number of outstanding buffers, or -1 if leak detection is
+     * not enabled
+     */
+    public static int getOutstanding() {
+        return LEAK_DETECTION ? OUTSTANDING.size() : -1;
+    }
+
+    /**
+     * Log all buffers acquired but not yet released, along with where they
+     * were acquired. This method does nothing if leak detection is not
+     * enabled.
+     *
+     * @return the number of outstanding buffers reported
+     */
+    public static int reportLeaks() {
+        if (!LEAK_DETECTION) {
+            return 0;
+        }
+        List<Throwable> traces;
+        synchronized (OUTSTANDING) {
+            traces = new ArrayList<>(OUTSTANDING.values());
+        }
+        for (Throwable t : traces) {
+            LOGGER.log(Level.WARNING, "Outstanding buffer", t);
+        }
+        return traces.size();
+    }
+
+    /**
+     * Returns whether the given thread is a virtual thread.
+     *
+     * @param thread The thread to check
+     * @return true if the thread is virtual, false otherwise or if the JVM
+     * does not support virtual threads
+     */
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException roe) {
+            return false;
+        }
+    }
+
+    /**
+     * Look up Thread.isVirtual(), which is only available on JVMs supporting
+     * virtual threads.
+     *
+     * @return the Thread.isVirtual() method, or null if not supported
+     */
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException nsme) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class fitting the given size.
+     *
+     * @param size The size to fit
+     * @return the index of the size class
+     */
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * A bounded, lock-free cache of released buffers of a single size class,
+     * shared by all threads.
+     */
+    private static final class GlobalCache {
+
+        private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        ByteBuffer poll() {
+            ByteBuffer buf = queue.poll();
+            if (buf != null) {
+                size.decrementAndGet();
+            }
+            return buf;
+        }
+
+        void offer(ByteBuffer buf) {
+            // Drop the buffer (leave it to the GC) if the cache is full
+            if (size.incrementAndGet() > GLOBAL_CACHE_SIZE) {
+                size.decrementAndGet();
+                return;
+            }
+            queue.offer(buf);
+        }
+    }
+}
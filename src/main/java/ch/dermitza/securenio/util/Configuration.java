@@ -0,0 +1,1291 @@
+/**
+ * This file is part of SecureNIO. Copyright (C) 2014 K. Dermitzakis
+ * <dermitza@gmail.com>
+ *
+ * SecureNIO is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * SecureNIO is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with SecureNIO. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.dermitza.securenio.util;
+
+/**
+ * An immutable, per-instance configuration of the SecureNIO components. Each
+ * {@link ch.dermitza.securenio.AbstractSelector} (i.e. each
+ * {@link ch.dermitza.securenio.TCPServer} and
+ * {@link ch.dermitza.securenio.TCPClient}), each
+ * {@link ch.dermitza.securenio.BlockingServer} and each
+ * {@link ch.dermitza.securenio.packet.worker.AbstractPacketWorker} is created
+ * with a Configuration, and reads all its options from its final, already
+ * parsed fields, so that the same JVM can run several, differently tuned
+ * instances. <p> A Configuration is created via a {@link Builder}, whose
+ * defaults are read from the setup.properties via the {@link PropertiesReader}
+ * once. Components created without a Configuration use
+ * {@link #getDefault()}. The options of the static {@link BufferPool} are
+ * global to the JVM, and are not part of a Configuration.
+ *
+ * <pre>
+ * Configuration config = Configuration.builder()
+ *         .eventLoops(4)
+ *         .readBudget(16384)
+ *         .build();
+ * </pre>
+ *
+ * @author K. Dermitzakis
+ * @version 0.21
+ * @since 0.21
+ */
+public final class Configuration {
+
+    private final boolean singleThreaded;
+    private final int taskThreads;
+    private final int taskQueue;
+    private final int cryptoThreads;
+    private final boolean processAll;
+    private final int maxChanges;
+    private final long selectorTimeoutMS;
+    private final int eventLoops;
+    private final int acceptBatch;
+    private final int acceptThreads;
+    private final int writeMaxBuffers;
+    private final int writeMaxBytes;
+    private final int readBudget;
+    private final int spinThreshold;
+    private final long spinWindowMS;
+    private final boolean optimizedKeys;
+    private final boolean virtualThreads;
+    private final int packetBufSize;
+    private final long backpressureBytes;
+    private final long admissionRate;
+    private final long admissionBurst;
+    private final int admissionMaxHandshakes;
+    private final long admissionMaxLagMS;
+    private final long admissionPauseMS;
+    private final int backlog;
+    private final int soSndBuf;
+    private final int soRcvBuf;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final boolean reuseAddress;
+    private final boolean reusePort;
+    private final int ipTos;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long hardLimit;
+    private final long evictionMS;
+    private final long timeoutMS;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final int sessionCacheSize;
+    private final int sessionTimeout;
+
+    /**
+     * Create a Configuration from the given {@link Builder}. The builder has
+     * already validated its values.
+     *
+     * @param b The Builder to copy the values from
+     */
+    private Configuration(Builder b) {
+        this.singleThreaded = b.singleThreaded;
+        this.taskThreads = b.taskThreads;
+        this.taskQueue = b.taskQueue;
+        this.cryptoThreads = b.cryptoThreads;
+        this.processAll = b.processAll;
+        this.maxChanges = b.maxChanges;
+        this.selectorTimeoutMS = b.selectorTimeoutMS;
+        this.eventLoops = b.eventLoops;
+        this.acceptBatch = b.acceptBatch;
+        this.acceptThreads = b.acceptThreads;
+        this.writeMaxBuffers = b.writeMaxBuffers;
+        this.writeMaxBytes = b.writeMaxBytes;
+        this.readBudget = b.readBudget;
+        this.spinThreshold = b.spinThreshold;
+        this.spinWindowMS = b.spinWindowMS;
+        this.optimizedKeys = b.optimizedKeys;
+        this.virtualThreads = b.virtualThreads;
+        this.packetBufSize = b.packetBufSize;
+        this.backpressureBytes = b.backpressureBytes;
+        this.admissionRate = b.admissionRate;
+        this.admissionBurst = b.admissionBurst;
+        this.admissionMaxHandshakes = b.admissionMaxHandshakes;
+        this.admissionMaxLagMS = b.admissionMaxLagMS;
+        this.admissionPauseMS = b.admissionPauseMS;
+        this.backlog = b.backlog;
+        this.soSndBuf = b.soSndBuf;
+        this.soRcvBuf = b.soRcvBuf;
+        this.tcpNoDelay = b.tcpNoDelay;
+        this.keepAlive = b.keepAlive;
+        this.reuseAddress = b.reuseAddress;
+        this.reusePort = b.reusePort;
+        this.ipTos = b.ipTos;
+        this.highWatermark = b.highWatermark;
+        this.lowWatermark = b.lowWatermark;
+        this.hardLimit = b.hardLimit;
+        this.evictionMS = b.evictionMS;
+        this.timeoutMS = b.timeoutMS;
+        this.protocols = b.protocols.clone();
+        this.cipherSuites = b.cipherSuites.clone();
+        this.sessionCacheSize = b.sessionCacheSize;
+        this.sessionTimeout = b.sessionTimeout;
+    }
+
+    /**
+     * Returns the default Configuration, read from the setup.properties the
+     * first time it is requested. This is used by components that are not
+     * explicitly given a Configuration.
+     *
+     * @return the default Configuration
+     */
+    public static Configuration getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Create a new {@link Builder}, with its defaults read from the
+     * setup.properties.
+     *
+     * @return a new Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create a new {@link Builder}, with its defaults copied from this
+     * Configuration, e.g. to derive a differently tuned Configuration from
+     * the default one.
+     *
+     * @return a new Builder initialized from this Configuration
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Returns whether SSLEngine tasks are run on the selector thread instead of
+     * a TaskWorker (selector.single_threaded).
+     *
+     * @return whether SSLEngine tasks are run on the selector thread instead of
+     * a TaskWorker
+     */
+    public boolean getSelectorSingleThreaded() {
+        return singleThreaded;
+    }
+
+    /**
+     * Returns the maximum number of threads of a TaskWorker running SSLEngine
+     * tasks (selector.task_threads), 0 for the number of available
+     * processors.
+     *
+     * @return the maximum number of threads of a TaskWorker
+     */
+    public int getTaskThreads() {
+        return taskThreads;
+    }
+
+    /**
+     * Returns the maximum number of sockets queued on a TaskWorker waiting for
+     * their SSLEngine tasks to be run (selector.task_queue).
+     *
+     * @return the maximum number of sockets queued on a TaskWorker
+     */
+    public int getTaskQueue() {
+        return taskQueue;
+    }
+
+    /**
+     * Returns the number of threads of a CryptoWorker wrapping and unwrapping
+     * the application data of established SSL/TLS sockets
+     * (selector.crypto_threads), 0 to do so on the selector thread.
+     *
+     * @return the number of threads of a CryptoWorker
+     */
+    public int getCryptoThreads() {
+        return cryptoThreads;
+    }
+
+    /**
+     * Returns whether the selector thread processes all pending changes at each
+     * iteration (selector.process_all_changes).
+     *
+     * @return whether the selector thread processes all pending changes at each
+     * iteration
+     */
+    public boolean getSelectorProcessAll() {
+        return processAll;
+    }
+
+    /**
+     * Returns the maximum number of changes processed at each iteration, if not
+     * processing all (selector.max_changes).
+     *
+     * @return the maximum number of changes processed at each iteration, if not
+     * processing all
+     */
+    public int getMaxChanges() {
+        return maxChanges;
+    }
+
+    /**
+     * Returns the maximum time (ms) a select() waits for, if not processing all
+     * changes (selector.timeout_ms).
+     *
+     * @return the maximum time (ms) a select() waits for, if not processing all
+     * changes
+     */
+    public long getSelectorTimeoutMS() {
+        return selectorTimeoutMS;
+    }
+
+    /**
+     * Returns the number of event loops of a TCPServer (selector.event_loops).
+     *
+     * @return the number of event loops of a TCPServer
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Returns the maximum number of connections accepted per OP_ACCEPT event
+     * (selector.accept_batch).
+     *
+     * @return the maximum number of connections accepted per OP_ACCEPT event
+     */
+    public int getAcceptBatch() {
+        return acceptBatch;
+    }
+
+    /**
+     * Returns the number of threads accepted connections are set up on
+     * (selector.accept_threads).
+     *
+     * @return the number of threads accepted connections are set up on
+     */
+    public int getAcceptThreads() {
+        return acceptThreads;
+    }
+
+    /**
+     * Returns the maximum number of buffers gathered in a single write
+     * (selector.write_max_buffers).
+     *
+     * @return the maximum number of buffers gathered in a single write
+     */
+    public int getWriteMaxBuffers() {
+        return writeMaxBuffers;
+    }
+
+    /**
+     * Returns the number of bytes after which no more buffers are gathered in a
+     * single write (selector.write_max_bytes).
+     *
+     * @return the number of bytes after which no more buffers are gathered in a
+     * single write
+     */
+    public int getWriteMaxBytes() {
+        return writeMaxBytes;
+    }
+
+    /**
+     * Returns the number of bytes read from a single ready socket before
+     * servicing the next one (selector.read_budget).
+     *
+     * @return the number of bytes read from a single ready socket before
+     * servicing the next one
+     */
+    public int getReadBudget() {
+        return readBudget;
+    }
+
+    /**
+     * Returns the number of premature empty selects after which the selector is
+     * rebuilt (selector.spin_threshold).
+     *
+     * @return the number of premature empty selects after which the selector is
+     * rebuilt
+     */
+    public int getSpinThreshold() {
+        return spinThreshold;
+    }
+
+    /**
+     * Returns the window (ms) premature empty selects are counted in
+     * (selector.spin_window_ms).
+     *
+     * @return the window (ms) premature empty selects are counted in
+     */
+    public long getSpinWindowMS() {
+        return spinWindowMS;
+    }
+
+    /**
+     * Returns whether selected keys are iterated via an array-backed set
+     * (selector.optimized_keys).
+     *
+     * @return whether selected keys are iterated via an array-backed set
+     */
+    public boolean getOptimizedKeys() {
+        return optimizedKeys;
+    }
+
+    /**
+     * Returns whether a BlockingServer runs its connections on virtual threads
+     * (blocking.virtual_threads).
+     *
+     * @return whether a BlockingServer runs its connections on virtual threads
+     */
+    public boolean getVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the initial size of the buffers packet workers reassemble packets
+     * in (packetworker.buffer_size).
+     *
+     * @return the initial size of the buffers packet workers reassemble packets
+     * in
+     */
+    public int getPacketBufSize() {
+        return packetBufSize;
+    }
+
+    /**
+     * Returns the number of unprocessed bytes above which a packet worker is
+     * backpressured (packetworker.backpressure_bytes).
+     *
+     * @return the number of unprocessed bytes above which a packet worker is
+     * backpressured
+     */
+    public long getBackpressureBytes() {
+        return backpressureBytes;
+    }
+
+    /**
+     * Returns the number of connections admitted per second (admission.rate).
+     *
+     * @return the number of connections admitted per second
+     */
+    public long getAdmissionRate() {
+        return admissionRate;
+    }
+
+    /**
+     * Returns the number of connections admitted at once (admission.burst).
+     *
+     * @return the number of connections admitted at once
+     */
+    public long getAdmissionBurst() {
+        return admissionBurst;
+    }
+
+    /**
+     * Returns the maximum number of handshakes in progress before accepting is
+     * paused (admission.max_handshakes).
+     *
+     * @return the maximum number of handshakes in progress before accepting is
+     * paused
+     */
+    public int getAdmissionMaxHandshakes() {
+        return admissionMaxHandshakes;
+    }
+
+    /**
+     * Returns the selector thread lag (ms) above which accepting is paused
+     * (admission.max_lag_ms).
+     *
+     * @return the selector thread lag (ms) above which accepting is paused
+     */
+    public long getAdmissionMaxLagMS() {
+        return admissionMaxLagMS;
+    }
+
+    /**
+     * Returns the time (ms) accepting is paused for (admission.pause_ms).
+     *
+     * @return the time (ms) accepting is paused for
+     */
+    public long getAdmissionPauseMS() {
+        return admissionPauseMS;
+    }
+
+    /**
+     * Returns the backlog of server listeners (socket.backlog).
+     *
+     * @return the backlog of server listeners
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Returns the SO_SNDBUF socket option (socket.so_sndbuf).
+     *
+     * @return the SO_SNDBUF socket option
+     */
+    public int getSoSndBuf() {
+        return soSndBuf;
+    }
+
+    /**
+     * Returns the SO_RCVBUF socket option (socket.so_rcvbuf).
+     *
+     * @return the SO_RCVBUF socket option
+     */
+    public int getSoRcvBuf() {
+        return soRcvBuf;
+    }
+
+    /**
+     * Returns the TCP_NODELAY socket option (socket.tcp_nodelay).
+     *
+     * @return the TCP_NODELAY socket option
+     */
+    public boolean getTCPNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns the SO_KEEPALIVE socket option (socket.so_keepalive).
+     *
+     * @return the SO_KEEPALIVE socket option
+     */
+    public boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Returns the SO_REUSEADDR socket option (socket.so_reuseaddr).
+     *
+     * @return the SO_REUSEADDR socket option
+     */
+    public boolean getReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * Returns whether server listeners are bound with SO_REUSEPORT
+     * (socket.so_reuseport).
+     *
+     * @return whether server listeners are bound with SO_REUSEPORT
+     */
+    public boolean getReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Returns the IP_TOS socket option (socket.ip_tos).
+     *
+     * @return the IP_TOS socket option
+     */
+    public int getIPTos() {
+        return ipTos;
+    }
+
+    /**
+     * Returns the outbound bytes queued above which a socket becomes unwritable
+     * (socket.high_watermark).
+     *
+     * @return the outbound bytes queued above which a socket becomes unwritable
+     */
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Returns the outbound bytes queued at or below which a socket becomes
+     * writable again (socket.low_watermark).
+     *
+     * @return the outbound bytes queued at or below which a socket becomes
+     * writable again
+     */
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Returns the outbound bytes queued above which a slow socket is evicted
+     * (socket.hard_limit).
+     *
+     * @return the outbound bytes queued above which a slow socket is evicted
+     */
+    public long getHardLimit() {
+        return hardLimit;
+    }
+
+    /**
+     * Returns the time (ms) a socket may stay above the hard limit
+     * (socket.eviction_ms).
+     *
+     * @return the time (ms) a socket may stay above the hard limit
+     */
+    public long getEvictionMS() {
+        return evictionMS;
+    }
+
+    /**
+     * Returns the timeout (ms) of a SecureSocket waiting on its peer during a
+     * handshake (timeout.period_ms).
+     *
+     * @return the timeout (ms) of a SecureSocket waiting on its peer during a
+     * handshake
+     */
+    public long getTimeoutMS() {
+        return timeoutMS;
+    }
+
+    /**
+     * Returns the enabled SSL/TLS protocols (secure.protocols). A copy is
+     * returned, as the
+     * configuration is immutable.
+     *
+     * @return the enabled SSL/TLS protocols
+     */
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * Returns the enabled SSL/TLS cipher suites (secure.cipherSuites). A copy
+     * is returned, as the
+     * configuration is immutable.
+     *
+     * @return the enabled SSL/TLS cipher suites
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites.clone();
+    }
+
+    /**
+     * Returns the maximum number of SSL/TLS sessions cached for resumption
+     * (secure.session_cache_size), 0 for no limit.
+     *
+     * @return the maximum number of SSL/TLS sessions cached for resumption
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Returns the time (s) a cached SSL/TLS session may be resumed for
+     * (secure.session_timeout_s), 0 for no limit.
+     *
+     * @return the time (s) a cached SSL/TLS session may be resumed for
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Lazily initialized holder of the default Configuration.
+     */
+    private static final class DefaultHolder {
+
+        private static final Configuration DEFAULT = new Builder().build();
+    }
+
+    /**
+     * A builder of immutable {@link Configuration}s. Each setter returns the
+     * builder itself, so that calls can be chained; {@link #build()} validates
+     * all values the same way the {@link PropertiesReader} does.
+     */
+    public static final class Builder {
+
+        private boolean singleThreaded;
+        private int taskThreads;
+        private int taskQueue;
+        private int cryptoThreads;
+        private boolean processAll;
+        private int maxChanges;
+        private long selectorTimeoutMS;
+        private int eventLoops;
+        private int acceptBatch;
+        private int acceptThreads;
+        private int writeMaxBuffers;
+        private int writeMaxBytes;
+        private int readBudget;
+        private int spinThreshold;
+        private long spinWindowMS;
+        private boolean optimizedKeys;
+        private boolean virtualThreads;
+        private int packetBufSize;
+        private long backpressureBytes;
+        private long admissionRate;
+        private long admissionBurst;
+        private int admissionMaxHandshakes;
+        private long admissionMaxLagMS;
+        private long admissionPauseMS;
+        private int backlog;
+        private int soSndBuf;
+        private int soRcvBuf;
+        private boolean tcpNoDelay;
+        private boolean keepAlive;
+        private boolean reuseAddress;
+        private boolean reusePort;
+        private int ipTos;
+        private long highWatermark;
+        private long lowWatermark;
+        private long hardLimit;
+        private long evictionMS;
+        private long timeoutMS;
+        private String[] protocols;
+        private String[] cipherSuites;
+        private int sessionCacheSize;
+        private int sessionTimeout;
+
+        /**
+         * Create a Builder with its defaults read from the setup.properties.
+         */
+        private Builder() {
+            singleThreaded = PropertiesReader.getSelectorSingleThreaded();
+            taskThreads = PropertiesReader.getTaskThreads();
+            taskQueue = PropertiesReader.getTaskQueue();
+            cryptoThreads = PropertiesReader.getCryptoThreads();
+            processAll = PropertiesReader.getSelectorProcessAll();
+            maxChanges = PropertiesReader.getMaxChanges();
+            selectorTimeoutMS = PropertiesReader.getSelectorTimeoutMS();
+            eventLoops = PropertiesReader.getEventLoops();
+            acceptBatch = PropertiesReader.getAcceptBatch();
+            acceptThreads = PropertiesReader.getAcceptThreads();
+            writeMaxBuffers = PropertiesReader.getWriteMaxBuffers();
+            writeMaxBytes = PropertiesReader.getWriteMaxBytes();
+            readBudget = PropertiesReader.getReadBudget();
+            spinThreshold = PropertiesReader.getSpinThreshold();
+            spinWindowMS = PropertiesReader.getSpinWindowMS();
+            optimizedKeys = PropertiesReader.getOptimizedKeys();
+            virtualThreads = PropertiesReader.getVirtualThreads();
+            packetBufSize = PropertiesReader.getPacketBufSize();
+            backpressureBytes = PropertiesReader.getBackpressureBytes();
+            admissionRate = PropertiesReader.getAdmissionRate();
+            admissionBurst = PropertiesReader.getAdmissionBurst();
+            admissionMaxHandshakes
+                    = PropertiesReader.getAdmissionMaxHandshakes();
+            admissionMaxLagMS = PropertiesReader.getAdmissionMaxLagMS();
+            admissionPauseMS = PropertiesReader.getAdmissionPauseMS();
+            backlog = PropertiesReader.getBacklog();
+            soSndBuf = PropertiesReader.getSoSndBuf();
+            soRcvBuf = PropertiesReader.getSoRcvBuf();
+            tcpNoDelay = PropertiesReader.getTCPNoDelay();
+            keepAlive = PropertiesReader.getKeepAlive();
+            reuseAddress = PropertiesReader.getReuseAddress();
+            reusePort = PropertiesReader.getReusePort();
+            ipTos = PropertiesReader.getIPTos();
+            highWatermark = PropertiesReader.getHighWatermark();
+            lowWatermark = PropertiesReader.getLowWatermark();
+            hardLimit = PropertiesReader.getHardLimit();
+            evictionMS = PropertiesReader.getEvictionMS();
+            timeoutMS = PropertiesReader.getTimeoutMS();
+            protocols = PropertiesReader.getProtocols();
+            cipherSuites = PropertiesReader.getCipherSuites();
+            sessionCacheSize = PropertiesReader.getSessionCacheSize();
+            sessionTimeout = PropertiesReader.getSessionTimeout();
+        }
+
+        /**
+         * Create a Builder with its defaults copied from the given
+         * {@link Configuration}.
+         *
+         * @param c The Configuration to copy the defaults from
+         */
+        private Builder(Configuration c) {
+            singleThreaded = c.singleThreaded;
+            taskThreads = c.taskThreads;
+            taskQueue = c.taskQueue;
+            cryptoThreads = c.cryptoThreads;
+            processAll = c.processAll;
+            maxChanges = c.maxChanges;
+            selectorTimeoutMS = c.selectorTimeoutMS;
+            eventLoops = c.eventLoops;
+            acceptBatch = c.acceptBatch;
+            acceptThreads = c.acceptThreads;
+            writeMaxBuffers = c.writeMaxBuffers;
+            writeMaxBytes = c.writeMaxBytes;
+            readBudget = c.readBudget;
+            spinThreshold = c.spinThreshold;
+            spinWindowMS = c.spinWindowMS;
+            optimizedKeys = c.optimizedKeys;
+            virtualThreads = c.virtualThreads;
+            packetBufSize = c.packetBufSize;
+            backpressureBytes = c.backpressureBytes;
+            admissionRate = c.admissionRate;
+            admissionBurst = c.admissionBurst;
+            admissionMaxHandshakes = c.admissionMaxHandshakes;
+            admissionMaxLagMS = c.admissionMaxLagMS;
+            admissionPauseMS = c.admissionPauseMS;
+            backlog = c.backlog;
+            soSndBuf = c.soSndBuf;
+            soRcvBuf = c.soRcvBuf;
+            tcpNoDelay = c.tcpNoDelay;
+            keepAlive = c.keepAlive;
+            reuseAddress = c.reuseAddress;
+            reusePort = c.reusePort;
+            ipTos = c.ipTos;
+            highWatermark = c.highWatermark;
+            lowWatermark = c.lowWatermark;
+            hardLimit = c.hardLimit;
+            evictionMS = c.evictionMS;
+            timeoutMS = c.timeoutMS;
+            protocols = c.protocols;
+            cipherSuites = c.cipherSuites;
+            sessionCacheSize = c.sessionCacheSize;
+            sessionTimeout = c.sessionTimeout;
+        }
+
+        /**
+         * Set whether SSLEngine tasks are run on the selector thread instead of
+         * a TaskWorker (selector.single_threaded).
+         *
+         * @param singleThreaded The new value
+         * @return this Builder
+         */
+        public Builder singleThreaded(boolean singleThreaded) {
+            this.singleThreaded = singleThreaded;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of threads of a TaskWorker running SSLEngine
+         * tasks (selector.task_threads).
+         *
+         * @param taskThreads The new value
+         * @return this Builder
+         */
+        public Builder taskThreads(int taskThreads) {
+            this.taskThreads = taskThreads;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of sockets queued on a TaskWorker waiting for
+         * their SSLEngine tasks to be run (selector.task_queue).
+         *
+         * @param taskQueue The new value
+         * @return this Builder
+         */
+        public Builder taskQueue(int taskQueue) {
+            this.taskQueue = taskQueue;
+            return this;
+        }
+
+        /**
+         * Set the number of threads of a CryptoWorker wrapping and unwrapping
+         * the application data of established SSL/TLS sockets
+         * (selector.crypto_threads).
+         *
+         * @param cryptoThreads The new value
+         * @return this Builder
+         */
+        public Builder cryptoThreads(int cryptoThreads) {
+            this.cryptoThreads = cryptoThreads;
+            return this;
+        }
+
+        /**
+         * Set whether the selector thread processes all pending changes at each
+         * iteration (selector.process_all_changes).
+         *
+         * @param processAll The new value
+         * @return this Builder
+         */
+        public Builder processAll(boolean processAll) {
+            this.processAll = processAll;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of changes processed at each iteration, if not
+         * processing all (selector.max_changes).
+         *
+         * @param maxChanges The new value
+         * @return this Builder
+         */
+        public Builder maxChanges(int maxChanges) {
+            this.maxChanges = maxChanges;
+            return this;
+        }
+
+        /**
+         * Set the maximum time (ms) a select() waits for, if not processing all
+         * changes (selector.timeout_ms).
+         *
+         * @param selectorTimeoutMS The new value
+         * @return this Builder
+         */
+        public Builder selectorTimeoutMS(long selectorTimeoutMS) {
+            this.selectorTimeoutMS = selectorTimeoutMS;
+            return this;
+        }
+
+        /**
+         * Set the number of event loops of a TCPServer (selector.event_loops).
+         *
+         * @param eventLoops The new value
+         * @return this Builder
+         */
+        public Builder eventLoops(int eventLoops) {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of connections accepted per OP_ACCEPT event
+         * (selector.accept_batch).
+         *
+         * @param acceptBatch The new value
+         * @return this Builder
+         */
+        public Builder acceptBatch(int acceptBatch) {
+            this.acceptBatch = acceptBatch;
+            return this;
+        }
+
+        /**
+         * Set the number of threads accepted connections are set up on
+         * (selector.accept_threads).
+         *
+         * @param acceptThreads The new value
+         * @return this Builder
+         */
+        public Builder acceptThreads(int acceptThreads) {
+            this.acceptThreads = acceptThreads;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of buffers gathered in a single write
+         * (selector.write_max_buffers).
+         *
+         * @param writeMaxBuffers The new value
+         * @return this Builder
+         */
+        public Builder writeMaxBuffers(int writeMaxBuffers) {
+            this.writeMaxBuffers = writeMaxBuffers;
+            return this;
+        }
+
+        /**
+         * Set the number of bytes after which no more buffers are gathered in a
+         * single write (selector.write_max_bytes).
+         *
+         * @param writeMaxBytes The new value
+         * @return this Builder
+         */
+        public Builder writeMaxBytes(int writeMaxBytes) {
+            this.writeMaxBytes = writeMaxBytes;
+            return this;
+        }
+
+        /**
+         * Set the number of bytes read from a single ready socket before
+         * servicing the next one (selector.read_budget).
+         *
+         * @param readBudget The new value
+         * @return this Builder
+         */
+        public Builder readBudget(int readBudget) {
+            this.readBudget = readBudget;
+            return this;
+        }
+
+        /**
+         * Set the number of premature empty selects after which the selector is
+         * rebuilt (selector.spin_threshold).
+         *
+         * @param spinThreshold The new value
+         * @return this Builder
+         */
+        public Builder spinThreshold(int spinThreshold) {
+            this.spinThreshold = spinThreshold;
+            return this;
+        }
+
+        /**
+         * Set the window (ms) premature empty selects are counted in
+         * (selector.spin_window_ms).
+         *
+         * @param spinWindowMS The new value
+         * @return this Builder
+         */
+        public Builder spinWindowMS(long spinWindowMS) {
+            this.spinWindowMS = spinWindowMS;
+            return this;
+        }
+
+        /**
+         * Set whether selected keys are iterated via an array-backed set
+         * (selector.optimized_keys).
+         *
+         * @param optimizedKeys The new value
+         * @return this Builder
+         */
+        public Builder optimizedKeys(boolean optimizedKeys) {
+            this.optimizedKeys = optimizedKeys;
+            return this;
+        }
+
+        /**
+         * Set whether a BlockingServer runs its connections on virtual threads
+         * (blocking.virtual_threads).
+         *
+         * @param virtualThreads The new value
+         * @return this Builder
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Set the initial size of the buffers packet workers reassemble packets
+         * in (packetworker.buffer_size).
+         *
+         * @param packetBufSize The new value
+         * @return this Builder
+         */
+        public Builder packetBufSize(int packetBufSize) {
+            this.packetBufSize = packetBufSize;
+            return this;
+        }
+
+        /**
+         * Set the number of unprocessed bytes above which a packet worker is
+         * backpressured (packetworker.backpressure_bytes).
+         *
+         * @param backpressureBytes The new value
+         * @return this Builder
+         */
+        public Builder backpressureBytes(long backpressureBytes) {
+            this.backpressureBytes = backpressureBytes;
+            return this;
+        }
+
+        /**
+         * Set the number of connections admitted per second (admission.rate).
+         *
+         * @param admissionRate The new value
+         * @return this Builder
+         */
+        public Builder admissionRate(long admissionRate) {
+            this.admissionRate = admissionRate;
+            return this;
+        }
+
+        /**
+         * Set the number of connections admitted at once (admission.burst).
+         *
+         * @param admissionBurst The new value
+         * @return this Builder
+         */
+        public Builder admissionBurst(long admissionBurst) {
+            this.admissionBurst = admissionBurst;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of handshakes in progress before accepting is
+         * paused (admission.max_handshakes).
+         *
+         * @param admissionMaxHandshakes The new value
+         * @return this Builder
+         */
+        public Builder admissionMaxHandshakes(int admissionMaxHandshakes) {
+            this.admissionMaxHandshakes = admissionMaxHandshakes;
+            return this;
+        }
+
+        /**
+         * Set the selector thread lag (ms) above which accepting is paused
+         * (admission.max_lag_ms).
+         *
+         * @param admissionMaxLagMS The new value
+         * @return this Builder
+         */
+        public Builder admissionMaxLagMS(long admissionMaxLagMS) {
+            this.admissionMaxLagMS = admissionMaxLagMS;
+            return this;
+        }
+
+        /**
+         * Set the time (ms) accepting is paused for (admission.pause_ms).
+         *
+         * @param admissionPauseMS The new value
+         * @return this Builder
+         */
+        public Builder admissionPauseMS(long admissionPauseMS) {
+            this.admissionPauseMS = admissionPauseMS;
+            return this;
+        }
+
+        /**
+         * Set the backlog of server listeners (socket.backlog).
+         *
+         * @param backlog The new value
+         * @return this Builder
+         */
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Set the SO_SNDBUF socket option (socket.so_sndbuf).
+         *
+         * @param soSndBuf The new value
+         * @return this Builder
+         */
+        public Builder soSndBuf(int soSndBuf) {
+            this.soSndBuf = soSndBuf;
+            return this;
+        }
+
+        /**
+         * Set the SO_RCVBUF socket option (socket.so_rcvbuf).
+         *
+         * @param soRcvBuf The new value
+         * @return this Builder
+         */
+        public Builder soRcvBuf(int soRcvBuf) {
+            this.soRcvBuf = soRcvBuf;
+            return this;
+        }
+
+        /**
+         * Set the TCP_NODELAY socket option (socket.tcp_nodelay).
+         *
+         * @param tcpNoDelay The new value
+         * @return this Builder
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * Set the SO_KEEPALIVE socket option (socket.so_keepalive).
+         *
+         * @param keepAlive The new value
+         * @return this Builder
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Set the SO_REUSEADDR socket option (socket.so_reuseaddr).
+         *
+         * @param reuseAddress The new value
+         * @return this Builder
+         */
+        public Builder reuseAddress(boolean reuseAddress) {
+            this.reuseAddress = reuseAddress;
+            return this;
+        }
+
+        /**
+         * Set whether server listeners are bound with SO_REUSEPORT
+         * (socket.so_reuseport).
+         *
+         * @param reusePort The new value
+         * @return this Builder
+         */
+        public Builder reusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        /**
+         * Set the IP_TOS socket option (socket.ip_tos).
+         *
+         * @param ipTos The new value
+         * @return this Builder
+         */
+        public Builder ipTos(int ipTos) {
+            this.ipTos = ipTos;
+            return this;
+        }
+
+        /**
+         * Set the outbound bytes queued above which a socket becomes unwritable
+         * (socket.high_watermark).
+         *
+         * @param highWatermark The new value
+         * @return this Builder
+         */
+        public Builder highWatermark(long highWatermark) {
+            this.highWatermark = highWatermark;
+            return this;
+        }
+
+        /**
+         * Set the outbound bytes queued at or below which a socket becomes
+         * writable again (socket.low_watermark).
+         *
+         * @param lowWatermark The new value
+         * @return this Builder
+         */
+        public Builder lowWatermark(long lowWatermark) {
+            this.lowWatermark = lowWatermark;
+            return this;
+        }
+
+        /**
+         * Set the outbound bytes queued above which a slow socket is evicted
+         * (socket.hard_limit).
+         *
+         * @param hardLimit The new value
+         * @return this Builder
+         */
+        public Builder hardLimit(long hardLimit) {
+            this.hardLimit = hardLimit;
+            return this;
+        }
+
+        /**
+         * Set the time (ms) a socket may stay above the hard limit
+         * (socket.eviction_ms).
+         *
+         * @param evictionMS The new value
+         * @return this Builder
+         */
+        public Builder evictionMS(long evictionMS) {
+            this.evictionMS = evictionMS;
+            return this;
+        }
+
+        /**
+         * Set the timeout (ms) of a SecureSocket waiting on its peer during a
+         * handshake (timeout.period_ms).
+         *
+         * @param timeoutMS The new value
+         * @return this Builder
+         */
+        public Builder timeoutMS(long timeoutMS) {
+            this.timeoutMS = timeoutMS;
+            return this;
+        }
+
+        /**
+         * Set the enabled SSL/TLS protocols (secure.protocols).
+         *
+         * @param protocols The new value
+         * @return this Builder
+         */
+        public Builder protocols(String[] protocols) {
+            this.protocols = protocols.clone();
+            return this;
+        }
+
+        /**
+         * Set the enabled SSL/TLS cipher suites (secure.cipherSuites).
+         *
+         * @param cipherSuites The new value
+         * @return this Builder
+         */
+        public Builder cipherSuites(String[] cipherSuites) {
+            this.cipherSuites = cipherSuites.clone();
+            return this;
+        }
+
+        /**
+         * Set the maximum number of SSL/TLS sessions cached for resumption
+         * (secure.session_cache_size).
+         *
+         * @param sessionCacheSize The new value
+         * @return this Builder
+         */
+        public Builder sessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        /**
+         * Set the time (s) a cached SSL/TLS session may be resumed for
+         * (secure.session_timeout_s).
+         *
+         * @param sessionTimeout The new value
+         * @return this Builder
+         */
+        public Builder sessionTimeout(int sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+            return this;
+        }
+
+        /**
+         * Validate the values of this Builder and create an immutable
+         * {@link Configuration} from them.
+         *
+         * @return the new Configuration
+         * @throws IllegalArgumentException if a value is invalid
+         */
+        public Configuration build() {
+            check(taskThreads >= 0, "selector.task_threads", taskThreads);
+            check(taskQueue >= 1, "selector.task_queue", taskQueue);
+            check(cryptoThreads >= 0, "selector.crypto_threads", cryptoThreads);
+            check(maxChanges >= 0, "selector.max_changes", maxChanges);
+            check(selectorTimeoutMS >= 0, "selector.timeout_ms",
+                    selectorTimeoutMS);
+            check(eventLoops >= 0, "selector.event_loops", eventLoops);
+            check(acceptBatch >= 1, "selector.accept_batch", acceptBatch);
+            check(acceptThreads >= 0, "selector.accept_threads", acceptThreads);
+            check(writeMaxBuffers >= 1, "selector.write_max_buffers",
+                    writeMaxBuffers);
+            check(writeMaxBytes >= 1, "selector.write_max_bytes",
+                    writeMaxBytes);
+            check(readBudget >= 1, "selector.read_budget", readBudget);
+            check(spinThreshold >= 0, "selector.spin_threshold", spinThreshold);
+            check(spinWindowMS >= 1, "selector.spin_window_ms", spinWindowMS);
+            check(packetBufSize >= 0, "packetworker.buffer_size",
+                    packetBufSize);
+            check(backpressureBytes >= 1, "packetworker.backpressure_bytes",
+                    backpressureBytes);
+            check(admissionRate >= 0, "admission.rate", admissionRate);
+            check(admissionBurst >= 1, "admission.burst", admissionBurst);
+            check(admissionMaxHandshakes >= 0, "admission.max_handshakes",
+                    admissionMaxHandshakes);
+            check(admissionMaxLagMS >= 0, "admission.max_lag_ms",
+                    admissionMaxLagMS);
+            check(admissionPauseMS >= 0, "admission.pause_ms",
+                    admissionPauseMS);
+            check(backlog >= 0, "socket.backlog", backlog);
+            check(soSndBuf >= 0, "socket.so_sndbuf", soSndBuf);
+            check(soRcvBuf >= 0, "socket.so_rcvbuf", soRcvBuf);
+            check(ipTos >= 0, "socket.ip_tos", ipTos);
+            check(highWatermark >= 1, "socket.high_watermark", highWatermark);
+            check(lowWatermark >= 0 && lowWatermark <= highWatermark,
+                    "socket.low_watermark", lowWatermark);
+            check(hardLimit >= 0, "socket.hard_limit", hardLimit);
+            check(evictionMS >= 0, "socket.eviction_ms", evictionMS);
+            check(timeoutMS >= 0, "timeout.period_ms", timeoutMS);
+            check(protocols != null, "secure.protocols", protocols);
+            check(cipherSuites != null, "secure.cipherSuites", cipherSuites);
+            check(sessionCacheSize >= 0, "secure.session_cache_size",
+                    sessionCacheSize);
+            check(sessionTimeout >= 0, "secure.session_timeout_s",
+                    sessionTimeout);
+            return new Configuration(this);
+        }
+
+        /**
+         * Throw an {@link IllegalArgumentException} if a value is invalid.
+         *
+         * @param valid Whether the value is valid
+         * @param key The property the value corresponds to
+         * @param value The value
+         */
+        private static void check(boolean valid, String key, Object value) {
+            if (!valid) {
+                throw new IllegalArgumentException(key + " value is invalid: "
+                        + value);
+            }
+        }
+    }
+}
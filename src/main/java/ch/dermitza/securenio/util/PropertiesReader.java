@@ -29,7 +29,10 @@ import java.util.logging.Logger;
 /**
  * A static helper implementation for setting up static runtime options. The
  * options are located in a {@link Properties} file. For further information on
- * the options set, please look at the supplied setup.properties.
+ * the options set, please look at the supplied setup.properties. <p> The
+ * properties are parsed on every call; components read them once, via the
+ * defaults of a {@link Configuration.Builder}, and keep the parsed values in
+ * the immutable {@link Configuration} they are created with.
  *
  * @author K. Dermitzakis
  * @version 0.21
@@ -68,6 +71,70 @@ public class PropertiesReader {
         return getPropAsBool("selector.single_threaded");
     }
 
+    /**
+     * Returns the maximum number of threads a
+     * {@link ch.dermitza.securenio.socket.secure.TaskWorker} runs
+     * {@link javax.net.ssl.SSLEngine} tasks on. If zero, the number of
+     * available processors is used.
+     *
+     * @return the maximum number of threads of a TaskWorker, or 0 for the
+     * number of available processors
+     *
+     * @see ch.dermitza.securenio.socket.secure.TaskWorker
+     */
+    public static int getTaskThreads() {
+        int i = getPropAsInt("selector.task_threads");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.task_threads value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the maximum number of sockets queued on a
+     * {@link ch.dermitza.securenio.socket.secure.TaskWorker}, waiting for
+     * their {@link javax.net.ssl.SSLEngine} tasks to be run. The tasks of
+     * sockets exceeding it are run on the selector thread instead.
+     *
+     * @return the maximum number of sockets queued on a TaskWorker
+     *
+     * @see ch.dermitza.securenio.socket.secure.TaskWorker
+     */
+    public static int getTaskQueue() {
+        int i = getPropAsInt("selector.task_queue");
+
+        if (i < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.task_queue value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of threads of a
+     * {@link ch.dermitza.securenio.CryptoWorker} wrapping and unwrapping the
+     * application data of established SSL/TLS sockets, or 0 to do so on the
+     * selector thread itself.
+     *
+     * @return the number of threads of a CryptoWorker
+     *
+     * @see ch.dermitza.securenio.CryptoWorker
+     */
+    public static int getCryptoThreads() {
+        int i = getPropAsInt("selector.crypto_threads");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.crypto_threads value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
     /**
      * Return whether the selector thread should process all
      * {@link ch.dermitza.securenio.ChangeRequest}s at each iteration. If not,
@@ -85,6 +152,187 @@ public class PropertiesReader {
         return getPropAsBool("selector.process_all_changes");
     }
 
+    /**
+     * Returns the maximum number of pending connections a
+     * {@link ch.dermitza.securenio.TCPServer} accepts per OP_ACCEPT event.
+     *
+     * @return the maximum number of connections accepted per OP_ACCEPT event
+     */
+    public static int getAcceptBatch() {
+        int i = getPropAsInt("selector.accept_batch");
+
+        if (i < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.accept_batch value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of threads a {@link ch.dermitza.securenio.TCPServer}
+     * sets up accepted connections on (socket options, SSL/TLS engine and
+     * socket creation). If zero, connections are set up on the selector
+     * thread accepting them.
+     *
+     * @return the number of connection setup threads of a TCPServer
+     */
+    public static int getAcceptThreads() {
+        int i = getPropAsInt("selector.accept_threads");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.accept_threads value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of {@link ch.dermitza.securenio.EventLoop}s a
+     * {@link ch.dermitza.securenio.TCPServer} hands accepted sockets to. If
+     * zero, the server thread services all sockets itself.
+     *
+     * @return the number of event loops used by a
+     * {@link ch.dermitza.securenio.TCPServer}
+     *
+     * @see ch.dermitza.securenio.EventLoop
+     */
+    public static int getEventLoops() {
+        int i = getPropAsInt("selector.event_loops");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.event_loops value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of bytes the selector thread reads from a single
+     * ready socket, before moving on to the next ready socket.
+     *
+     * @return the read budget (bytes) per ready socket
+     *
+     * @see ch.dermitza.securenio.AbstractSelector#read(java.nio.channels.SelectionKey)
+     */
+    public static int getReadBudget() {
+        int i = getPropAsInt("selector.read_budget");
+
+        if (i < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.read_budget value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns whether the selector thread should replace the selected-key set
+     * of its selector with an array-backed set, so that dispatching selected
+     * keys allocates nothing. This falls back to the default selected-key set
+     * if the JDK selector internals are not accessible.
+     *
+     * @return whether the selector uses an array-backed selected-key set
+     */
+    public static boolean getOptimizedKeys() {
+        return getPropAsBool("selector.optimized_keys");
+    }
+
+    /**
+     * Returns whether a {@link ch.dermitza.securenio.BlockingServer} should
+     * run each of its connections on a virtual thread. Platform threads are
+     * used if this is not set, or if the JVM does not support virtual threads.
+     *
+     * @return whether connections of a BlockingServer run on virtual threads
+     */
+    public static boolean getVirtualThreads() {
+        return getPropAsBool("blocking.virtual_threads");
+    }
+
+    /**
+     * Returns the number of consecutive premature empty returns of select()
+     * within {@link #getSpinWindowMS()}, after which the selector is
+     * considered to be spinning and is rebuilt. A value of 0 disables spin
+     * detection.
+     *
+     * @return the spin detection threshold of the selector
+     *
+     * @see ch.dermitza.securenio.AbstractSelector#getSelectorRebuilds()
+     */
+    public static int getSpinThreshold() {
+        int i = getPropAsInt("selector.spin_threshold");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.spin_threshold value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the time window (ms) within which {@link #getSpinThreshold()}
+     * premature empty returns of select() have to happen for the selector to
+     * be considered spinning.
+     *
+     * @return the spin detection window (ms) of the selector
+     *
+     * @see #getSpinThreshold()
+     */
+    public static long getSpinWindowMS() {
+        long l = getPropAsLong("selector.spin_window_ms");
+
+        if (l < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.spin_window_ms value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the maximum number of queued buffers the selector thread gathers
+     * in a single write on a socket (i.e. the iovec count of a gathering
+     * write).
+     *
+     * @return the maximum number of buffers written per gathering write
+     *
+     * @see #getWriteMaxBytes()
+     * @see ch.dermitza.securenio.AbstractSelector#write(java.nio.channels.SelectionKey)
+     */
+    public static int getWriteMaxBuffers() {
+        int i = getPropAsInt("selector.write_max_buffers");
+
+        if (i < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.write_max_buffers value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of bytes after which the selector thread stops
+     * gathering more queued buffers into a single write on a socket.
+     *
+     * @return the maximum number of bytes gathered per gathering write
+     *
+     * @see #getWriteMaxBuffers()
+     * @see ch.dermitza.securenio.AbstractSelector#write(java.nio.channels.SelectionKey)
+     */
+    public static int getWriteMaxBytes() {
+        int i = getPropAsInt("selector.write_max_bytes");
+
+        if (i < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "selector.write_max_bytes value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
     /**
      * If the selector thread should process all
      * {@link ch.dermitza.securenio.ChangeRequest}s at each iteration, this
@@ -98,11 +346,11 @@ public class PropertiesReader {
      * @see ch.dermitza.securenio.AbstractSelector#processChanges()
      */
     public static int getMaxChanges() {
-        int i = getPropAsInt("socket.max_changes");
+        int i = getPropAsInt("selector.max_changes");
 
         if (i < 0) {
             LOGGER.log(Level.SEVERE,
-                    "socket.max_changes value is invalid: {0}. Shutting down", i);
+                    "selector.max_changes value is invalid: {0}. Shutting down", i);
             System.exit(-1);
         }
         return i;
@@ -122,11 +370,11 @@ public class PropertiesReader {
      * @see ch.dermitza.securenio.AbstractSelector#processChanges()
      */
     public static long getSelectorTimeoutMS() {
-        long l = getPropAsLong("socket.max_changes");
+        long l = getPropAsLong("selector.timeout_ms");
 
         if (l < 0) {
             LOGGER.log(Level.SEVERE,
-                    "socket.max_changes value is invalid: {0}. Shutting down", l);
+                    "selector.timeout_ms value is invalid: {0}. Shutting down", l);
             System.exit(-1);
         }
         return l;
@@ -146,7 +394,109 @@ public class PropertiesReader {
 
         if (l < 0) {
             LOGGER.log(Level.SEVERE,
-                    "socket.max_changes value is invalid: {0}. Shutting down", l);
+                    "timeout.period_ms value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns whether a {@link ch.dermitza.securenio.TCPServer} binds its
+     * listeners with SO_REUSEPORT, sharding its port over its event loops
+     * and allowing several servers on the same host to share the port.
+     *
+     * @return whether server listeners are bound with SO_REUSEPORT
+     *
+     * @see ch.dermitza.securenio.TCPServer#setReusePort(boolean)
+     */
+    public static boolean getReusePort() {
+        return getPropAsBool("socket.so_reuseport");
+    }
+
+    /**
+     * Returns the number of new connections per second a
+     * {@link ch.dermitza.securenio.TCPServer} admits. A value of 0 disables
+     * connection rate limiting.
+     *
+     * @return the number of connections admitted per second
+     */
+    public static long getAdmissionRate() {
+        long l = getPropAsLong("admission.rate");
+
+        if (l < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "admission.rate value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the number of new connections a
+     * {@link ch.dermitza.securenio.TCPServer} admits at once, i.e. the size of
+     * its connection rate token bucket.
+     *
+     * @return the number of connections admitted at once
+     */
+    public static long getAdmissionBurst() {
+        long l = getPropAsLong("admission.burst");
+
+        if (l < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "admission.burst value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the maximum number of SSL/TLS handshakes a
+     * {@link ch.dermitza.securenio.TCPServer} has in progress before it stops
+     * accepting connections. A value of 0 disables the limit.
+     *
+     * @return the maximum number of handshakes in progress
+     */
+    public static int getAdmissionMaxHandshakes() {
+        int i = getPropAsInt("admission.max_handshakes");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "admission.max_handshakes value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the lag (ms) of its selector threads above which a
+     * {@link ch.dermitza.securenio.TCPServer} is overloaded and stops
+     * accepting connections. A value of 0 disables the limit.
+     *
+     * @return the maximum selector thread lag (ms)
+     */
+    public static long getAdmissionMaxLagMS() {
+        long l = getPropAsLong("admission.max_lag_ms");
+
+        if (l < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "admission.max_lag_ms value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the time (ms) a {@link ch.dermitza.securenio.TCPServer} pauses
+     * accepting connections for, once a connection was not admitted.
+     *
+     * @return the time (ms) accepting is paused for
+     */
+    public static long getAdmissionPauseMS() {
+        long l = getPropAsLong("admission.pause_ms");
+
+        if (l < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "admission.pause_ms value is invalid: {0}. Shutting down", l);
             System.exit(-1);
         }
         return l;
@@ -194,6 +544,159 @@ public class PropertiesReader {
         return i;
     }
 
+    /**
+     * Returns the number of bytes handed to an
+     * {@link ch.dermitza.securenio.packet.worker.AbstractPacketWorker} and not
+     * yet processed, above which the worker signals backpressure to the
+     * selector threads reading data.
+     *
+     * @return the backpressure threshold (bytes) of a packet worker
+     *
+     * @see ch.dermitza.securenio.packet.worker.AbstractPacketWorker#isBackpressured()
+     */
+    public static long getBackpressureBytes() {
+        long l = getPropAsLong("packetworker.backpressure_bytes");
+
+        if (l < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "packetworker.backpressure_bytes value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the number of released buffers each thread caches per size class
+     * of the {@link BufferPool}.
+     *
+     * @return the number of buffers cached per thread and size class
+     *
+     * @see BufferPool
+     */
+    public static int getBufferPoolThreadCacheSize() {
+        int i = getPropAsInt("bufferpool.thread_cache_size");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "bufferpool.thread_cache_size value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of released buffers the {@link BufferPool} caches
+     * per size class, shared by all threads, once the thread caches are full.
+     *
+     * @return the number of buffers cached globally per size class
+     *
+     * @see BufferPool
+     */
+    public static int getBufferPoolGlobalCacheSize() {
+        int i = getPropAsInt("bufferpool.global_cache_size");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "bufferpool.global_cache_size value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns whether the {@link BufferPool} should track outstanding buffers
+     * to detect leaks and double releases. This is a debugging aid and should
+     * not be enabled in production.
+     *
+     * @return whether buffer leak detection is enabled
+     *
+     * @see BufferPool#reportLeaks()
+     */
+    public static boolean getBufferPoolLeakDetection() {
+        return getPropAsBool("bufferpool.leak_detection");
+    }
+
+    /**
+     * Returns the number of outbound bytes queued on a socket above which the
+     * socket becomes unwritable.
+     *
+     * @return the high watermark (bytes) of a socket's outbound queue
+     *
+     * @see #getLowWatermark()
+     * @see ch.dermitza.securenio.socket.OutboundQueue#isWritable()
+     */
+    public static long getHighWatermark() {
+        long l = getPropAsLong("socket.high_watermark");
+
+        if (l < 1) {
+            LOGGER.log(Level.SEVERE,
+                    "socket.high_watermark value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the number of outbound bytes queued on an unwritable socket, at
+     * or below which the socket becomes writable again. This must not be
+     * larger than the high watermark.
+     *
+     * @return the low watermark (bytes) of a socket's outbound queue
+     *
+     * @see #getHighWatermark()
+     * @see ch.dermitza.securenio.socket.OutboundQueue#isWritable()
+     */
+    public static long getLowWatermark() {
+        long l = getPropAsLong("socket.low_watermark");
+
+        if (l < 0 || l > getHighWatermark()) {
+            LOGGER.log(Level.SEVERE,
+                    "socket.low_watermark value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the number of outbound bytes queued on a socket, above which the
+     * socket is disconnected if it stays above it for longer than
+     * {@link #getEvictionMS()}. A value of 0 disables slow consumer eviction.
+     *
+     * @return the hard limit (bytes) of a socket's outbound queue, or 0 if
+     * there is no hard limit
+     *
+     * @see #getEvictionMS()
+     */
+    public static long getHardLimit() {
+        long l = getPropAsLong("socket.hard_limit");
+
+        if (l < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "socket.hard_limit value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
+    /**
+     * Returns the time (ms) a socket is allowed to stay above the hard limit
+     * of its outbound queue, before it is disconnected as a slow consumer.
+     *
+     * @return the slow consumer eviction period (ms)
+     *
+     * @see #getHardLimit()
+     */
+    public static long getEvictionMS() {
+        long l = getPropAsLong("socket.eviction_ms");
+
+        if (l < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "socket.eviction_ms value is invalid: {0}. Shutting down", l);
+            System.exit(-1);
+        }
+        return l;
+    }
+
     /**
      * Returns the SO_SNDBUF size (bytes) to be set for each socket.
      *
@@ -273,6 +776,45 @@ public class PropertiesReader {
         return ret;
     }
 
+    /**
+     * Returns the maximum number of SSL/TLS sessions cached for resumption by
+     * an {@link javax.net.ssl.SSLContext}. A value of 0 sets no limit.
+     *
+     * @return the maximum number of SSL/TLS sessions cached for resumption
+     *
+     * @see javax.net.ssl.SSLSessionContext#setSessionCacheSize(int)
+     */
+    public static int getSessionCacheSize() {
+        int i = getPropAsInt("secure.session_cache_size");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "secure.session_cache_size value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the time (s) an SSL/TLS session cached by an
+     * {@link javax.net.ssl.SSLContext} may be resumed for. A value of 0 sets
+     * no limit.
+     *
+     * @return the time (s) a cached SSL/TLS session may be resumed for
+     *
+     * @see javax.net.ssl.SSLSessionContext#setSessionTimeout(int)
+     */
+    public static int getSessionTimeout() {
+        int i = getPropAsInt("secure.session_timeout_s");
+
+        if (i < 0) {
+            LOGGER.log(Level.SEVERE,
+                    "secure.session_timeout_s value is invalid: {0}. Shutting down", i);
+            System.exit(-1);
+        }
+        return i;
+    }
+
     /**
      * Returns the TCP_NODELAY size (bytes) to be set for each socket.
      *